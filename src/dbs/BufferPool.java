@@ -0,0 +1,66 @@
+package dbs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct byte buffers, all with the same capacity. A Multicaster acquires a
+ * buffer for each datagram it reads and the processor runnable that handles the datagram
+ * releases it back once it is done, so under sustained load the same few buffers are
+ * recycled instead of allocating a new packet array for every datagram.
+ * If the pool runs dry a fresh buffer is allocated; if too many buffers are returned the
+ * excess is simply dropped, so the pool never grows beyond its limit.
+ */
+public final class BufferPool {
+
+  private final ConcurrentLinkedQueue<ByteBuffer> free;
+  private final AtomicInteger pooled;
+  private final int bufferSize;
+  private final int limit;
+
+  /**
+   * @param bufferSize The capacity of each buffer, in bytes
+   * @param limit      The maximum number of idle buffers kept by the pool
+   */
+  public BufferPool(int bufferSize, int limit) {
+    this.free = new ConcurrentLinkedQueue<>();
+    this.pooled = new AtomicInteger(0);
+    this.bufferSize = bufferSize;
+    this.limit = limit;
+  }
+
+  /**
+   * @return A cleared buffer, either recycled or newly allocated.
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = free.poll();
+    if (buffer == null) return ByteBuffer.allocateDirect(bufferSize);
+
+    pooled.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Return a buffer to the pool. The caller must not touch the buffer (or any view of
+   * it) afterwards.
+   *
+   * @param buffer A buffer previously acquired from this pool
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null || buffer.capacity() != bufferSize) return;
+    if (pooled.incrementAndGet() > limit) {
+      pooled.decrementAndGet();
+      return;
+    }
+    free.offer(buffer);
+  }
+
+  /**
+   * @return The number of idle buffers currently held.
+   */
+  public int idle() {
+    return pooled.get();
+  }
+}
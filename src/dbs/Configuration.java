@@ -24,9 +24,42 @@ public class Configuration {
   // Chunk file prefix.
   public static String chunkPrefix = "chunk-";
 
+  // Pack the backed up chunks into large memory-mapped segment files with an in-memory
+  // index, instead of keeping one file per chunk.
+  public static boolean segmentChunkStore = false;
+
+  // Segment file prefix, inside the backup subdirectory (segment chunk store only)
+  public static String segmentPrefix = "segment-";
+
+  // Size of each segment file, in bytes (segment chunk store only)
+  public static int segmentSize = 64 * 1024 * 1024;
+
+  // Fraction of a sealed segment that must be taken by deleted chunks before its live
+  // chunks are copied forward and the segment file removed (segment chunk store only)
+  public static double segmentCompactRatio = 0.5;
+
+  // Store every distinct chunk content only once, whatever the files it belongs to,
+  // and the chunks as references to their contents (enhanced peers only)
+  public static boolean deduplication = false;
+
+  // Journal of the chunk references, inside the backup subdirectory (deduplication only)
+  public static String referencesFile = "references";
+
+  // Subdirectory of the backup subdirectory where the chunk contents are stored, apart
+  // from the chunks themselves (deduplication only)
+  public static String contentsDir = "contents";
+
   // Restore subdirectory, where files restored are kept.
   public static String restoredDir = "restored";
 
+  // Suffix of a restored file while its chunks are still being written (streaming
+  // restore only)
+  public static String partialSuffix = ".part";
+
+  // Write each restored chunk to its place in the restored file as soon as it arrives,
+  // instead of holding the whole file in memory until every chunk is received.
+  public static boolean streamingRestore = false;
+
   public static String filesinfoDir = "filesinfo";
 
   // My file info (desired replication degree, set of peers which have a backup of those
@@ -37,15 +70,63 @@ public class Configuration {
   // backup of those files)
   public static String otherFilesinfo = "otherfiles-metadata";
 
+  // Prefix of the metadata journal files, inside the filesinfo subdirectory. Every
+  // change to the files' metadata is appended to the journal, and replayed on top of
+  // the two metadata files above when the peer starts.
+  public static String journalPrefix = "journal-";
+
+  // Number of records appended to the metadata journal before a new journal is started
+  // and the metadata files are rewritten in the background, to bound the replay.
+  public static int journalCheckpointRecords = 10000;
+
+  // Force each metadata journal record to the disk before going on, so it survives a
+  // crash of the machine and not only of the peer.
+  public static boolean journalSync = false;
+
   // Multicaster's timeout for reading from multicast socket
   public static int multicastTimeout = 300; // milliseconds
 
+  // Receive multicast datagrams through NIO DatagramChannels into pooled direct buffers
+  // instead of allocating a new DatagramPacket for every datagram.
+  public static boolean nioMulticast = false;
+
+  // Name of the network interface used to join the multicast groups in NIO mode.
+  // If null, the first multicast capable interface that is up is chosen.
+  public static String multicastInterface = null;
+
+  // Maximum number of idle receive buffers kept by each Multicaster's pool (NIO mode)
+  public static int receiveBufferPoolSize = 256;
+
+  // Drive the three multicast channels and the peer's outbound socket from a single
+  // Selector thread instead of one timeout-polling thread each. Implies NIO receive.
+  public static boolean eventLoop = false;
+
   // Peer socket's timeout for waiting on new queue message
   public static int socketTimeout = 300; // milliseconds
 
   // Peer socket's message queue capacity, (in datagram packets)
   public static int socketQueueCapacity = 10000;
 
+  // Process received datagrams through the bounded Dispatcher, which drops datagrams
+  // when overworked, instead of the peer's pool and its unbounded queue. The dispatcher
+  // has peerThreadPoolSize workers.
+  public static boolean boundedDispatch = false;
+
+  // Dispatcher queue capacities, for each channel (in datagrams)
+  public static int mcQueueCapacity = 1024;
+  public static int mdrQueueCapacity = 256;
+  public static int mdbQueueCapacity = 64;
+
+  // Partition the dispatcher by channel and ChunkKey: each channel gets its own lanes,
+  // each with one worker, and every datagram goes to the lane its chunk hashes to, so
+  // the messages of one chunk are handled in order (bounded dispatch only)
+  public static boolean chunkLanes = false;
+
+  // Number of lanes of each channel (chunk lanes only)
+  public static int mcLanes = 4;
+  public static int mdrLanes = 2;
+  public static int mdbLanes = 4;
+
   // Thread pool sizes (core pool sizes)
   public static int peerThreadPoolSize = 8;
   public static int putchunkPoolSize = 8;
@@ -56,12 +137,120 @@ public class Configuration {
   public static int waiterPoolSize = 25;
   public static int removerPoolSize = 20;
 
+  // Run processors and transmitters on virtual threads (if the runtime supports them,
+  // otherwise on a cached thread pool) instead of the fixed-size pools above.
+  public static boolean virtualThreads = false;
+
+  // Number of threads of the shared timer that dispatches delayed tasks when running on
+  // virtual threads
+  public static int timerThreads = 2;
+
+  // Maximum number of chunks of a file being backed up that are read into memory and
+  // transmitted at the same time
+  public static int backupWindow = 32;
+
+  // Adapt the number of chunks in flight of each backup (up to backupWindow) and the
+  // PUTCHUNK retry timeout to the round-trip time measured from STORED messages.
+  public static boolean congestionControl = true;
+
+  // Number of chunks in flight of each backup before any STORED is received
+  public static int initialCongestionWindow = 4;
+
+  // Bounds of the adaptive PUTCHUNK retry timeout
+  public static int minRetryTimeout = 100; // milliseconds
+  public static int maxRetryTimeout = 10000; // milliseconds
+
+  // Acknowledge the chunks stored for an enhanced initiator with STOREDSET messages,
+  // one per file for all the chunks stored within the same random delay, instead of one
+  // STORED message per chunk (enhanced peers only)
+  public static boolean storedBatches = true;
+
+  // Back up files with erasure coding instead of full copies: every stripe of
+  // dataShards chunks gets parityShards Reed-Solomon parity chunks, each shard is meant
+  // for a distinct peer, and a stripe can be restored from any dataShards of its shards.
+  // The replication degree of the backup applies to every shard, so 1 is the usual
+  // choice (enhanced peers only)
+  public static boolean erasureCoding = false;
+
+  // Shards of each stripe (erasure coding only), at most 256 together
+  public static int dataShards = 4;
+  public static int parityShards = 2;
+
+  // Time a receiver waits for the next fragment of a PUTCHUNK or CHUNK sent in fragments
+  // before asking its sender for the missing ones (large chunk mode only)
+  public static int fragmentTimeout = 200; // milliseconds
+
+  // Number of times a receiver asks for the missing fragments of a message before it
+  // drops the fragments it got (large chunk mode only)
+  public static int maxFragmentRequests = 3;
+
+  // Time a message sent in fragments is kept to resend the fragments asked for (large
+  // chunk mode only)
+  public static int fragmentRetention = 3000; // milliseconds
+
+  // Follow every group of PUTCHUNK (or CHUNK) messages sent in a row with a PARITY
+  // message, the XOR of their bodies, so a receiver that lost one of them rebuilds it
+  // without waiting for a retransmission. Chunks sent in fragments are not protected
+  // (enhanced peers only)
+  public static boolean forwardErrorCorrection = false;
+
+  // Number of messages protected by each PARITY message, at most 8
+  public static int fecGroupSize = 4;
+
+  // Time an incomplete group waits for more messages before its PARITY is sent anyway
+  public static int fecFlushDelay = 50; // milliseconds
+
+  // Time a receiver keeps the bodies of the messages it got, to rebuild a lost one
+  public static int fecRetention = 2000; // milliseconds
+
+  // Announce each chunk with a body-less PUTDIGEST carrying its content digest before
+  // its first PUTCHUNK. Peers already storing identical content reply STORED at once,
+  // and the chunk itself is only sent if the replication degree is still short after
+  // the retry timeout (enhanced peers only)
+  public static boolean digestProbe = false;
+
   // Maximum number of allowed PUTCHUNKs for each chunk before the backup gives up
   public static int maxPutchunkAttempts = 5;
 
+  // Restore files by requesting their chunks with GETCHUNKSET messages, through a
+  // sliding window, instead of one GETCHUNK message per chunk. Every peer holding the
+  // chunks must be enhanced too (enhanced peers only)
+  public static boolean batchRestore = false;
+
+  // Maximum number of chunks requested by one GETCHUNKSET (batch restore only)
+  public static int getchunkSetSize = 64;
+
+  // Maximum number of chunks requested and not yet received of each file being
+  // restored (batch restore only)
+  public static int restoreWindow = 256;
+
+  // Have the chunks of a restore sent straight to this peer over TCP, instead of being
+  // multicast on MDR to the whole group. The peers holding them only multicast a
+  // header-only CHUNK, so the others know the chunk was sent (enhanced peers only)
+  public static boolean tcpRestore = false;
+
+  // Time allowed for a chunk to be sent or received over TCP
+  public static int tcpChunkTimeout = 5000; // milliseconds
+
   // Maximum number of allowed GETCHUNKs for each chunk before the restore gives up
   public static int maxGetchunkAttempts = 5;
 
   // Maximum storage capacity for chunks.
   public static volatile long storageCapacityKB = 10000; // KB ?
+
+  // Give up chunks replicated beyond their desired degree in the background, before the
+  // storage capacity is reached, to keep room for new chunks (enhanced peers only)
+  public static boolean autoReclaim = false;
+
+  // Fractions of the storage capacity: once the used space goes above the high
+  // watermark, over-replicated chunks are given up until it is below the low watermark
+  public static double reclaimHighWatermark = 0.9;
+  public static double reclaimLowWatermark = 0.75;
+
+  // Time between two checks of the used space by the background reclaimer
+  public static int reclaimInterval = 2000; // milliseconds
+
+  // Maximum random delay before the background reclaimer gives up each chunk, so the
+  // peers holding it give it up one at a time, each seeing the others' REMOVED first
+  public static int reclaimJitter = 5000; // milliseconds
 }
@@ -0,0 +1,241 @@
+package dbs;
+
+import dbs.message.Message;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Bounded replacement for the peer's pool as the executor of received datagrams, used
+ * when Configuration.boundedDispatch is set. Each multicast channel has its own bounded
+ * queue, and a fixed set of workers always serves MC first, then MDR, then MDB, so
+ * control traffic keeps flowing under a PUTCHUNK storm.
+ *
+ * With Configuration.chunkLanes set, each channel instead gets its own set of lanes,
+ * each a bounded queue with a single worker, and every datagram goes to the lane its
+ * ChunkKey hashes to. All messages about one chunk on one channel are then handled in
+ * order by the same thread, without locks, and a flood on one channel cannot delay the
+ * others.
+ *
+ * A datagram that finds its queue full is dropped right away, as is a PUTCHUNK for a
+ * chunk that already has a PUTCHUNK waiting in an MDB queue (the initiator retransmits
+ * it anyway). Dropped datagrams release their buffer immediately, so the memory held by
+ * received datagrams is bounded by the queue capacities.
+ */
+public final class Dispatcher {
+
+  private static final class Task {
+    private final Runnable runnable;
+    private final Runnable onDrop;
+    private final ChunkKey putchunk;
+
+    private Task(Runnable runnable, Runnable onDrop, ChunkKey putchunk) {
+      this.runnable = runnable;
+      this.onDrop = onDrop;
+      this.putchunk = putchunk;
+    }
+
+    private void drop() {
+      if (onDrop != null) onDrop.run();
+    }
+  }
+
+  /**
+   * The queues and drop counter of one channel. In lane mode the channel has one queue
+   * per lane, otherwise a single queue served by the shared workers.
+   */
+  private final class Channel {
+    private final String name;
+    private final ArrayBlockingQueue<Task>[] queues;
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Channel(String name, int lanes, int capacity) {
+      this.name = name;
+      this.queues = new ArrayBlockingQueue[lanes];
+      int laneCapacity = Math.max(capacity / lanes, 1);
+      for (int i = 0; i < lanes; ++i) queues[i] = new ArrayBlockingQueue<>(laneCapacity);
+    }
+
+    private ArrayBlockingQueue<Task> queue(ChunkKey key) {
+      if (key == null || queues.length == 1) return queues[0];
+      return queues[Math.floorMod(key.hashCode(), queues.length)];
+    }
+
+    private boolean offer(ChunkKey key, Task task) {
+      if (!queue(key).offer(task)) {
+        dropped.incrementAndGet();
+        task.drop();
+        return false;
+      }
+      if (!Configuration.chunkLanes) pending.release();
+      return true;
+    }
+
+    private int size() {
+      int size = 0;
+      for (ArrayBlockingQueue<Task> queue : queues) size += queue.size();
+      return size;
+    }
+  }
+
+  private final Channel mc;
+  private final Channel mdr;
+  private final Channel mdb;
+  private final Semaphore pending = new Semaphore(0);
+  private final Set<ChunkKey> queuedPutchunks = ConcurrentHashMap.newKeySet();
+  private final Thread[] workers;
+  private volatile boolean finished = false;
+
+  private final AtomicLong duplicatePutchunks = new AtomicLong(0);
+
+  Dispatcher() {
+    boolean lanes = Configuration.chunkLanes;
+    this.mc = new Channel("MC", lanes ? Configuration.mcLanes : 1,
+        Configuration.mcQueueCapacity);
+    this.mdr = new Channel("MDR", lanes ? Configuration.mdrLanes : 1,
+        Configuration.mdrQueueCapacity);
+    this.mdb = new Channel("MDB", lanes ? Configuration.mdbLanes : 1,
+        Configuration.mdbQueueCapacity);
+
+    if (lanes) {
+      int count = mc.queues.length + mdr.queues.length + mdb.queues.length;
+      this.workers = new Thread[count];
+      int i = 0;
+      for (Channel channel : new Channel[]{mc, mdr, mdb}) {
+        for (int lane = 0; lane < channel.queues.length; ++lane) {
+          ArrayBlockingQueue<Task> queue = channel.queues[lane];
+          workers[i++] = new Thread(() -> work(queue), channel.name + "-lane-" + lane);
+        }
+      }
+    } else {
+      this.workers = new Thread[Configuration.peerThreadPoolSize];
+      for (int i = 0; i < workers.length; ++i) {
+        workers[i] = new Thread(this::work, "dispatcher-" + i);
+      }
+    }
+
+    for (Thread worker : workers) worker.start();
+  }
+
+  /**
+   * Queue a received datagram for processing, or drop it.
+   *
+   * @param channel The channel the datagram was received on
+   * @param task    The processor's runnable for the datagram
+   * @param content The datagram's content, only peeked at
+   * @param onDrop  Called if the datagram is dropped, e.g. to release its buffer. May
+   *                be null.
+   * @return true if the datagram was queued, false if it was dropped.
+   */
+  boolean dispatch(MulticastChannel channel, Runnable task, ByteBuffer content,
+                   Runnable onDrop) {
+    if (finished) {
+      if (onDrop != null) onDrop.run();
+      return false;
+    }
+
+    boolean lanes = Configuration.chunkLanes;
+    if (channel == Protocol.mc || channel == Protocol.mdr) {
+      ChunkKey key = lanes ? Message.peekChunkKey(content) : null;
+      Channel target = channel == Protocol.mc ? mc : mdr;
+      return target.offer(key, new Task(task, onDrop, null));
+    }
+
+    ChunkKey putchunk = Message.peekPutchunk(content);
+    if (putchunk != null && !queuedPutchunks.add(putchunk)) {
+      duplicatePutchunks.incrementAndGet();
+      if (onDrop != null) onDrop.run();
+      return false;
+    }
+
+    ChunkKey key = putchunk == null && lanes ? Message.peekChunkKey(content) : putchunk;
+    if (!mdb.offer(key, new Task(task, onDrop, putchunk))) {
+      if (putchunk != null) queuedPutchunks.remove(putchunk);
+      return false;
+    }
+    return true;
+  }
+
+  private static void run(Task task) {
+    try {
+      task.runnable.run();
+    } catch (RuntimeException e) {
+      Peer.log("Processor failed", e, Level.WARNING);
+    }
+  }
+
+  /**
+   * @return The next task by channel priority (shared workers only). Only called with a
+   * permit acquired, so some queue has a task.
+   */
+  private Task next() {
+    Task task = mc.queues[0].poll();
+    if (task == null) task = mdr.queues[0].poll();
+    if (task == null) task = mdb.queues[0].poll();
+    if (task != null && task.putchunk != null) queuedPutchunks.remove(task.putchunk);
+    return task;
+  }
+
+  /**
+   * Shared worker: serves every channel, by priority.
+   */
+  private void work() {
+    while (!finished) {
+      try {
+        pending.acquire();
+      } catch (InterruptedException e) {
+        continue;
+      }
+
+      Task task = next();
+      if (task != null) run(task);
+    }
+  }
+
+  /**
+   * Lane worker: serves its own queue, in order.
+   */
+  private void work(ArrayBlockingQueue<Task> queue) {
+    while (!finished) {
+      Task task;
+      try {
+        task = queue.take();
+      } catch (InterruptedException e) {
+        continue;
+      }
+
+      if (task.putchunk != null) queuedPutchunks.remove(task.putchunk);
+      run(task);
+    }
+  }
+
+  /**
+   * Stop the workers. Datagrams still queued are dropped.
+   */
+  void finish() {
+    finished = true;
+    for (Thread worker : workers) worker.interrupt();
+
+    for (Channel channel : new Channel[]{mc, mdr, mdb}) {
+      for (ArrayBlockingQueue<Task> queue : channel.queues) {
+        Task task;
+        while ((task = queue.poll()) != null) task.drop();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Dispatcher queues: MC " + mc.size() + ", MDR " + mdr.size()
+        + ", MDB " + mdb.size() + "\n"
+        + "Dispatcher dropped: MC " + mc.dropped.get() + ", MDR " + mdr.dropped.get()
+        + ", MDB " + mdb.dropped.get() + ", duplicate PUTCHUNKs "
+        + duplicatePutchunks.get() + "\n";
+  }
+}
@@ -0,0 +1,174 @@
+package dbs;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8), with a Cauchy matrix. A stripe of
+ * dataShards shards is encoded into parityShards parity shards, and the data shards can
+ * be rebuilt from any dataShards of the dataShards + parityShards shards. Shards of
+ * different lengths are padded with zeros to the longest one.
+ */
+public final class ErasureCode {
+
+  private static final int polynomial = 0x11d;
+  private static final byte[] exp = new byte[510];
+  private static final int[] log = new int[256];
+  private static final byte[][] mul = new byte[256][256];
+
+  static {
+    int x = 1;
+    for (int i = 0; i < 255; ++i) {
+      exp[i] = exp[i + 255] = (byte) x;
+      log[x] = i;
+      x <<= 1;
+      if (x >= 256) x ^= polynomial;
+    }
+    for (int a = 1; a < 256; ++a) {
+      for (int b = 1; b < 256; ++b) mul[a][b] = exp[log[a] + log[b]];
+    }
+  }
+
+  private static int inverse(int a) {
+    assert a != 0;
+    return exp[255 - log[a]] & 0xff;
+  }
+
+  private final int dataShards;
+  private final int parityShards;
+  private final int[][] cauchy;  // parityShards x dataShards
+
+  public ErasureCode(int dataShards, int parityShards) {
+    if (dataShards < 1 || parityShards < 1 || dataShards + parityShards > 256)
+      throw new IllegalArgumentException("Invalid erasure code " + dataShards + "+"
+          + parityShards);
+    this.dataShards = dataShards;
+    this.parityShards = parityShards;
+    this.cauchy = new int[parityShards][dataShards];
+    for (int j = 0; j < parityShards; ++j) {
+      for (int i = 0; i < dataShards; ++i) cauchy[j][i] = inverse((dataShards + j) ^ i);
+    }
+  }
+
+  /**
+   * out ^= coefficient * in, byte by byte, over the length of in.
+   */
+  private static void multiplyAdd(int coefficient, byte[] in, byte[] out) {
+    if (coefficient == 0) return;
+    byte[] row = mul[coefficient];
+    int length = Math.min(in.length, out.length);
+    if (coefficient == 1) {
+      for (int b = 0; b < length; ++b) out[b] ^= in[b];
+    } else {
+      for (int b = 0; b < length; ++b) out[b] ^= row[in[b] & 0xff];
+    }
+  }
+
+  /**
+   * @param data The data shards of one stripe, exactly dataShards, none null
+   * @return The parity shards, each as long as the longest data shard.
+   */
+  public byte[][] encode(byte[][] data) {
+    assert data.length == dataShards;
+    int length = 0;
+    for (byte[] shard : data) length = Math.max(length, shard.length);
+
+    byte[][] parity = new byte[parityShards][length];
+    for (int j = 0; j < parityShards; ++j) {
+      for (int i = 0; i < dataShards; ++i) multiplyAdd(cauchy[j][i], data[i], parity[j]);
+    }
+    return parity;
+  }
+
+  /**
+   * Rebuild the data shards of one stripe.
+   *
+   * @param shards The shards of the stripe, data shards first and then parity shards,
+   *               exactly dataShards + parityShards, null for those missing
+   * @return The data shards, those present as given and those rebuilt as long as the
+   * longest shard present.
+   * @throws IllegalArgumentException If fewer than dataShards shards are present.
+   */
+  public byte[][] decode(byte[][] shards) {
+    assert shards.length == dataShards + parityShards;
+
+    // Pick dataShards of the shards present, the data shards first.
+    int[] picked = new int[dataShards];
+    int count = 0, length = 0;
+    for (int s = 0; s < shards.length && count < dataShards; ++s) {
+      if (shards[s] == null) continue;
+      picked[count++] = s;
+      length = Math.max(length, shards[s].length);
+    }
+    if (count < dataShards)
+      throw new IllegalArgumentException("Only " + count + " of " + dataShards
+          + " shards needed are present");
+
+    byte[][] data = new byte[dataShards][];
+    boolean missing = false;
+    for (int i = 0; i < dataShards; ++i) {
+      data[i] = shards[i];
+      missing |= shards[i] == null;
+    }
+    if (!missing) return data;
+
+    // Invert the rows of the encoding matrix of the shards picked.
+    int[][] matrix = new int[dataShards][];
+    for (int r = 0; r < dataShards; ++r) {
+      int s = picked[r];
+      if (s < dataShards) {
+        matrix[r] = new int[dataShards];
+        matrix[r][s] = 1;
+      } else {
+        matrix[r] = cauchy[s - dataShards].clone();
+      }
+    }
+    int[][] decoding = invert(matrix);
+
+    for (int i = 0; i < dataShards; ++i) {
+      if (data[i] != null) continue;
+      data[i] = new byte[length];
+      for (int r = 0; r < dataShards; ++r) {
+        multiplyAdd(decoding[i][r], shards[picked[r]], data[i]);
+      }
+    }
+    return data;
+  }
+
+  /**
+   * Gauss-Jordan elimination over GF(2^8). The matrix is destroyed.
+   */
+  private static int[][] invert(int[][] matrix) {
+    int n = matrix.length;
+    int[][] inverse = new int[n][n];
+    for (int i = 0; i < n; ++i) inverse[i][i] = 1;
+
+    for (int c = 0; c < n; ++c) {
+      int pivot = c;
+      while (matrix[pivot][c] == 0) ++pivot;  // never runs out, the matrix is invertible
+      int[] swap = matrix[c];
+      matrix[c] = matrix[pivot];
+      matrix[pivot] = swap;
+      swap = inverse[c];
+      inverse[c] = inverse[pivot];
+      inverse[pivot] = swap;
+
+      int scale = inverse(matrix[c][c]);
+      for (int k = 0; k < n; ++k) {
+        matrix[c][k] = times(scale, matrix[c][k]);
+        inverse[c][k] = times(scale, inverse[c][k]);
+      }
+
+      for (int r = 0; r < n; ++r) {
+        int factor = matrix[r][c];
+        if (r == c || factor == 0) continue;
+        for (int k = 0; k < n; ++k) {
+          matrix[r][k] ^= times(factor, matrix[c][k]);
+          inverse[r][k] ^= times(factor, inverse[c][k]);
+        }
+      }
+    }
+    return inverse;
+  }
+
+  private static int times(int a, int b) {
+    return mul[a][b] & 0xff;
+  }
+}
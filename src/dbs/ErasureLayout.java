@@ -0,0 +1,91 @@
+package dbs;
+
+import java.io.Serializable;
+
+/**
+ * Layout of a file backed up with erasure coding. The file's chunks are grouped in
+ * stripes of dataShards chunks, in order, and each stripe gets parityShards parity
+ * chunks. The data chunks keep their numbers; the parity chunks are numbered after the
+ * last data chunk, stripe by stripe, so every shard is an ordinary chunk of the file to
+ * the rest of the protocol. The last stripe may have fewer data chunks; the missing
+ * ones count as empty.
+ */
+public final class ErasureLayout implements Serializable {
+
+  private static final long serialVersionUID = 5764654406977568296L;
+
+  private final int dataShards;
+  private final int parityShards;
+  private final int dataChunks;
+
+  /**
+   * @throws IllegalArgumentException If the code or the number of chunks is invalid.
+   */
+  public ErasureLayout(int dataShards, int parityShards, int dataChunks) {
+    if (dataShards < 1 || parityShards < 1 || dataShards + parityShards > 256
+        || dataChunks < 1)
+      throw new IllegalArgumentException("Invalid erasure layout " + dataShards + "+"
+          + parityShards + " of " + dataChunks + " chunks");
+    this.dataShards = dataShards;
+    this.parityShards = parityShards;
+    this.dataChunks = dataChunks;
+  }
+
+  public int getDataShards() {
+    return dataShards;
+  }
+
+  public int getParityShards() {
+    return parityShards;
+  }
+
+  /**
+   * @return The number of data chunks of the file.
+   */
+  public int getDataChunks() {
+    return dataChunks;
+  }
+
+  public int stripes() {
+    return (dataChunks + dataShards - 1) / dataShards;
+  }
+
+  /**
+   * @return The number of chunks of the file, data and parity.
+   */
+  public int totalChunks() {
+    return dataChunks + stripes() * parityShards;
+  }
+
+  public boolean isParity(int chunkNo) {
+    return chunkNo >= dataChunks;
+  }
+
+  public int stripeOf(int chunkNo) {
+    return isParity(chunkNo) ? (chunkNo - dataChunks) / parityShards
+                             : chunkNo / dataShards;
+  }
+
+  /**
+   * @return The index of the chunk in its stripe: data shards first, then parity shards.
+   */
+  public int shardOf(int chunkNo) {
+    return isParity(chunkNo) ? dataShards + (chunkNo - dataChunks) % parityShards
+                             : chunkNo % dataShards;
+  }
+
+  /**
+   * @return The number of the chunk at the given index of the stripe, or -1 if it is a
+   * data shard past the end of the file.
+   */
+  public int chunkOf(int stripe, int shard) {
+    if (shard >= dataShards) return dataChunks + stripe * parityShards + shard - dataShards;
+    int chunkNo = stripe * dataShards + shard;
+    return chunkNo < dataChunks ? chunkNo : -1;
+  }
+
+  @Override
+  public String toString() {
+    return dataShards + "+" + parityShards;
+  }
+}
@@ -0,0 +1,118 @@
+package dbs;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Single thread event loop that replaces the four Multicaster/PeerSocket threads when
+ * Configuration.eventLoop is set. The three multicast channels and the peer's outbound
+ * channel are registered with one Selector; readable multicast channels are drained
+ * and their datagrams forwarded to the peer's pool, and the outbound channel is only
+ * registered for writing while its queue has packets.
+ * Nothing here polls on a timeout: the loop sleeps in select() until a datagram
+ * arrives, a packet is queued for sending, or finish() is called.
+ */
+public final class EventLoop implements Runnable {
+
+  private final Selector selector;
+  private final PeerSocket socket;
+  private final SelectionKey socketKey;
+  private final AtomicBoolean pendingWrite = new AtomicBoolean(false);
+  private volatile boolean finished = false;
+
+  EventLoop(PeerSocket socket, Multicaster... multicasters) throws IOException {
+    this.selector = Selector.open();
+    this.socket = socket;
+
+    try {
+      for (Multicaster multicaster : multicasters) {
+        multicaster.channel().register(selector, SelectionKey.OP_READ, multicaster);
+      }
+      this.socketKey = socket.channel().register(selector, 0, socket);
+    } catch (IOException e) {
+      selector.close();
+      throw e;
+    }
+
+    socket.attach(this);
+  }
+
+  /**
+   * Called by the PeerSocket when a packet is queued. The interest set is only changed
+   * by the loop thread itself, so here we just flag it and wake the selector up.
+   */
+  void wakeupWriter() {
+    if (!pendingWrite.getAndSet(true)) selector.wakeup();
+  }
+
+  /**
+   * Orders the loop to terminate. It wakes up immediately, flushes the socket's
+   * remaining queue and closes every channel.
+   */
+  void finish() {
+    finished = true;
+    selector.wakeup();
+  }
+
+  private void handle(SelectionKey key) {
+    if (!key.isValid()) return;
+    Object attachment = key.attachment();
+
+    if (attachment instanceof Multicaster && key.isReadable()) {
+      ((Multicaster) attachment).readable();
+    } else if (attachment instanceof PeerSocket && key.isWritable()) {
+      if (((PeerSocket) attachment).writable()) key.interestOps(0);
+    }
+  }
+
+  private void loop() throws IOException {
+    while (!finished) {
+      if (pendingWrite.getAndSet(false) && socketKey.isValid()) {
+        socketKey.interestOps(SelectionKey.OP_WRITE);
+      }
+
+      selector.select();
+
+      Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+      while (iterator.hasNext()) {
+        SelectionKey key = iterator.next();
+        iterator.remove();
+        handle(key);
+      }
+    }
+  }
+
+  private void die() {
+    for (SelectionKey key : selector.keys()) {
+      Object attachment = key.attachment();
+      if (attachment instanceof Multicaster) ((Multicaster) attachment).finish();
+    }
+
+    try {
+      selector.close();
+    } catch (IOException e) {
+      Peer.log("Failed to close the event loop's selector", e, Level.WARNING);
+    }
+
+    socket.flush();
+  }
+
+  /**
+   * Thread task. Runs the loop until finish() is called.
+   */
+  @Override
+  public void run() {
+    try {
+      loop();
+    } catch (IOException | ClosedSelectorException e) {
+      Peer.log("Event loop stopped unexpectedly", e, Level.SEVERE);
+    }
+
+    die();
+  }
+}
@@ -0,0 +1,105 @@
+package dbs;
+
+import dbs.message.Message;
+import dbs.message.MessageType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sender side of the forward error correction. The PUTCHUNK and CHUNK messages this
+ * peer sends are grouped, per type, in the order they are sent, and every group of
+ * Configuration.fecGroupSize messages is followed by a PARITY message, the XOR of their
+ * bodies. A group that stays incomplete for Configuration.fecFlushDelay is closed
+ * anyway, unless it only has one message.
+ */
+final class FecEncoder {
+
+  private static final int maxGroupSize = 8;
+
+  /**
+   * The group of messages of one type being built.
+   */
+  private final class Group {
+    private final MessageType type;
+    private final ArrayList<Message> members = new ArrayList<>();
+    private final byte[] parity = new byte[Protocol.fragmentSize];
+    private int length = 0;
+    private int generation = 0;
+
+    private Group(MessageType type) {
+      this.type = type;
+    }
+
+    private synchronized void add(Message message) {
+      ByteBuffer body = message.getBodyBuffer();
+      int size = body == null ? 0 : body.remaining();
+      for (int i = 0; i < size; ++i) parity[i] ^= body.get(body.position() + i);
+      length = Math.max(length, size);
+      members.add(message);
+
+      int groupSize = Math.min(Math.max(Configuration.fecGroupSize, 2), maxGroupSize);
+      if (members.size() >= groupSize) {
+        close();
+      } else if (members.size() == 1) {
+        int closing = generation;
+        Peer.getInstance().getPool().schedule(() -> flush(closing),
+            Configuration.fecFlushDelay, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private synchronized void flush(int closing) {
+      if (generation != closing) return;
+      if (members.size() > 1) {
+        close();
+      } else {
+        reset();
+      }
+    }
+
+    /**
+     * Send the group's PARITY and start a new group.
+     */
+    private void close() {
+      byte[] body = new byte[length];
+      System.arraycopy(parity, 0, body, 0, length);
+      socket.send(Message.PARITY(Configuration.version, members.toArray(new Message[0]),
+          body));
+      reset();
+    }
+
+    private void reset() {
+      members.clear();
+      Arrays.fill(parity, 0, length, (byte) 0);
+      length = 0;
+      ++generation;
+    }
+  }
+
+  private final PeerSocket socket;
+  private final Group putchunks = new Group(MessageType.PUTCHUNK);
+  private final Group chunks = new Group(MessageType.CHUNK);
+
+  FecEncoder(PeerSocket socket) {
+    this.socket = socket;
+  }
+
+  /**
+   * @return true if the message is one the forward error correction protects.
+   */
+  static boolean protects(Message message) {
+    MessageType type = message.getType();
+    return (type == MessageType.PUTCHUNK || (type == MessageType.CHUNK
+        && !message.isUnicast())) && !message.isFragment()
+        && message.getBodyLength() <= Protocol.fragmentSize;
+  }
+
+  /**
+   * Add a message just sent to its group, sending the group's PARITY if it is full.
+   */
+  void sent(Message message) {
+    (message.getType() == MessageType.PUTCHUNK ? putchunks : chunks).add(message);
+  }
+}
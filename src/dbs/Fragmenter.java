@@ -0,0 +1,107 @@
+package dbs;
+
+import dbs.message.Message;
+import dbs.message.MessageType;
+
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Sender side of the large chunk mode. A PUTCHUNK or CHUNK whose body does not fit in
+ * one datagram is split into fragments by the PeerSocket, which sends them one after
+ * the other. The Fragmenter keeps the fragments of every message recently sent for
+ * Configuration.fragmentRetention, so that a receiver missing some of them can ask for
+ * those only, with a GETFRAGMENTS, instead of waiting for the whole message to be
+ * retransmitted.
+ */
+public final class Fragmenter {
+
+  private static final class Key {
+    private final MessageType type;
+    private final ChunkKey chunk;
+
+    private Key(MessageType type, ChunkKey chunk) {
+      this.type = type;
+      this.chunk = chunk;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key key = (Key) o;
+      return type == key.type && chunk.equals(key.chunk);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(type, chunk);
+    }
+  }
+
+  private static final class Sent {
+    private final Message whole;
+    private final Message[] fragments;
+
+    private Sent(Message whole, Message[] fragments) {
+      this.whole = whole;
+      this.fragments = fragments;
+    }
+  }
+
+  private final ConcurrentHashMap<Key,Sent> sent = new ConcurrentHashMap<>();
+
+  /**
+   * @return true if the message must be sent in fragments.
+   */
+  static boolean needsFragments(Message message) {
+    MessageType type = message.getType();
+    return (type == MessageType.PUTCHUNK || type == MessageType.CHUNK)
+        && message.getBodyLength() > Protocol.fragmentSize;
+  }
+
+  /**
+   * Split a message into fragments and keep them for a while, for GETFRAGMENTS. The
+   * fragments of a message sent again (e.g. a retransmitted PUTCHUNK) are reused.
+   *
+   * @return The fragments to send, in order.
+   */
+  Message[] split(Message message) {
+    Key key = new Key(message.getType(),
+        new ChunkKey(message.getFileId(), message.getChunkNo()));
+
+    Sent previous = sent.get(key);
+    if (previous != null && previous.whole == message) return previous.fragments;
+
+    Sent entry = new Sent(message, message.fragments(Protocol.fragmentSize));
+    sent.put(key, entry);
+    Peer.getInstance().getPool().schedule(() -> sent.remove(key, entry),
+        Configuration.fragmentRetention, TimeUnit.MILLISECONDS);
+    return entry.fragments;
+  }
+
+  /**
+   * Resend the fragments asked for by a GETFRAGMENTS, if this peer sent them recently.
+   *
+   * @param request The GETFRAGMENTS message received
+   */
+  void resend(Message request, PeerSocket socket) {
+    MessageType of = request.getFragmentsOf();
+    if (of == null) return;
+
+    Sent entry = sent.get(new Key(of, new ChunkKey(request.getFileId(),
+        request.getChunkNo())));
+    if (entry == null) return;
+
+    BitSet missing = request.getMissingFragments();
+    Peer.log("Resending " + missing.cardinality() + " fragments of "
+        + entry.whole.shortText(), Level.INFO);
+    for (int i = missing.nextSetBit(0); i >= 0 && i < entry.fragments.length;
+         i = missing.nextSetBit(i + 1)) {
+      socket.send(entry.fragments[i]);
+    }
+  }
+}
@@ -2,15 +2,18 @@ package dbs;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
 public class MulticastChannel {
 
   private final InetAddress address;
   private final int port;
+  private final InetSocketAddress socketAddress;
 
   public MulticastChannel(InetAddress address, int port) {
     this.address = address;
     this.port = port;
+    this.socketAddress = new InetSocketAddress(address, port);
   }
 
   MulticastChannel(String address, String port) throws IOException {
@@ -28,6 +31,8 @@ public class MulticastChannel {
     } catch (NumberFormatException e) {
       throw new NumberFormatException("Invalid port: " + port);
     }
+
+    this.socketAddress = new InetSocketAddress(this.address, this.port);
   }
 
   InetAddress getAddress() {
@@ -38,6 +43,10 @@ public class MulticastChannel {
     return port;
   }
 
+  InetSocketAddress getSocketAddress() {
+    return socketAddress;
+  }
+
   @Override
   public String toString() {
     return address.toString() + ':' + port;
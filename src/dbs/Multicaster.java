@@ -3,19 +3,45 @@ package dbs;
 import java.io.IOError;
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.Enumeration;
 import java.util.logging.Level;
 
 public final class Multicaster implements Runnable {
 
   public interface Processor {
     Runnable runnable(DatagramPacket packet);
+
+    /**
+     * Create the runnable for a datagram read into a pooled buffer (NIO mode). The
+     * runnable owns the buffer and must release it back to the pool when it finishes,
+     * whether or not the datagram was valid.
+     *
+     * @param buffer The datagram's content, flipped for reading
+     * @param source The datagram's source address
+     * @param pool   The pool the buffer must be released to
+     */
+    Runnable runnable(ByteBuffer buffer, InetSocketAddress source, BufferPool pool);
   }
 
   private MulticastSocket socket;
+  private DatagramChannel channel;
+  private MembershipKey membership;
+  private BufferPool pool;
   private final Processor processor;
-  private boolean finished = false;
+  private volatile boolean finished = false;
   private final MulticastChannel multicastChannel;
 
   /**
@@ -23,8 +49,12 @@ public final class Multicaster implements Runnable {
    * Idempotent operation.
    */
   private void die() {
-    if (socket == null) return;
     finished = true;
+    if (channel != null) {
+      dieChannel();
+      return;
+    }
+    if (socket == null) return;
 
     try {  // throws iff constructor throws, so this never throws.
       socket.leaveGroup(multicastChannel.getAddress());
@@ -36,6 +66,16 @@ public final class Multicaster implements Runnable {
     }
   }
 
+  private void dieChannel() {
+    if (membership != null && membership.isValid()) membership.drop();
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Peer.log("Failed to close multicast channel " + multicastChannel, e,
+          Level.WARNING);
+    }
+  }
+
   /**
    * Receive a packet from the multicast network.
    * If there is a reading timeout, it retries automatically until finished.
@@ -62,6 +102,85 @@ public final class Multicaster implements Runnable {
     }
   }
 
+  /**
+   * Receive a datagram from the multicast channel into a buffer taken from the pool.
+   * Blocks until a datagram arrives or the channel is closed by finish(), unless the
+   * channel is non-blocking (event loop mode).
+   *
+   * @param buffer The pooled buffer to read into, flipped on success
+   * @return The datagram's source address, or null if nothing was read.
+   */
+  private InetSocketAddress receive(ByteBuffer buffer) {
+    try {
+      InetSocketAddress source = (InetSocketAddress) channel.receive(buffer);
+      if (source != null) buffer.flip();
+      return source;
+    } catch (ClosedChannelException e) {
+      finished = true;
+      return null;
+    } catch (IOException e) {
+      if (!channel.isOpen()) {
+        finished = true;
+        return null;
+      }
+      System.err.println(e.getMessage());
+      e.printStackTrace(System.err);
+      return null;
+    }
+  }
+
+  /**
+   * Find the network interface used to join the multicast group in NIO mode. Unlike
+   * MulticastSocket, a DatagramChannel must be told explicitly which interface to use.
+   *
+   * @return The configured interface, or the first multicast capable interface that is
+   * up, preferring non-loopback ones.
+   * @throws SocketException If no usable network interface exists.
+   */
+  private static NetworkInterface multicastInterface() throws SocketException {
+    String name = Configuration.multicastInterface;
+    if (name != null) {
+      NetworkInterface named = NetworkInterface.getByName(name);
+      if (named == null) throw new SocketException("No such interface: " + name);
+      return named;
+    }
+
+    NetworkInterface loopback = null;
+    Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+    while (interfaces != null && interfaces.hasMoreElements()) {
+      NetworkInterface candidate = interfaces.nextElement();
+      if (!candidate.isUp() || !candidate.supportsMulticast()) continue;
+      if (!candidate.isLoopback()) return candidate;
+      if (loopback == null) loopback = candidate;
+    }
+
+    if (loopback == null) throw new SocketException("No multicast capable interface");
+    return loopback;
+  }
+
+  private void openChannel() throws IOException {
+    boolean ipv6 = multicastChannel.getAddress() instanceof Inet6Address;
+    ProtocolFamily family = ipv6 ? StandardProtocolFamily.INET6
+                                 : StandardProtocolFamily.INET;
+    NetworkInterface networkInterface = multicastInterface();
+
+    this.channel = DatagramChannel.open(family);
+    this.channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+    this.channel.bind(new InetSocketAddress(multicastChannel.getPort()));
+    this.channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+    this.channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+    this.membership = this.channel.join(multicastChannel.getAddress(), networkInterface);
+    this.pool = new BufferPool(Protocol.maxPacketSize,
+        Configuration.receiveBufferPoolSize);
+  }
+
+  private void openSocket() throws IOException {
+    this.socket = new MulticastSocket(multicastChannel.getPort());
+    this.socket.joinGroup(multicastChannel.getAddress());
+    this.socket.setSoTimeout(Configuration.multicastTimeout);
+    this.socket.setTimeToLive(1);
+  }
+
   /**
    * Create a Multicaster for a given multicast group and port, with a message
    * processor chosen by the controlling peer.
@@ -76,11 +195,14 @@ public final class Multicaster implements Runnable {
     this.multicastChannel = multicastChannel;
     this.processor = processor;
     try {
-      this.socket = new MulticastSocket(multicastChannel.getPort());
-      this.socket.joinGroup(multicastChannel.getAddress());
-      this.socket.setSoTimeout(Configuration.multicastTimeout);
-      this.socket.setTimeToLive(1);
+      if (Configuration.nioMulticast || Configuration.eventLoop) {
+        openChannel();
+        if (Configuration.eventLoop) channel.configureBlocking(false);
+      } else {
+        openSocket();
+      }
     } catch (IOException e) {
+      if (channel != null) channel.close();
       Peer.log("Could not create socket", e, Level.SEVERE);
       throw e;
     }
@@ -90,8 +212,87 @@ public final class Multicaster implements Runnable {
     return this.processor;
   }
 
+  /**
+   * @return The NIO channel in NIO mode, null otherwise.
+   */
+  final DatagramChannel channel() {
+    return this.channel;
+  }
+
+  /**
+   * Event loop callback, for a non-blocking channel selected for reading. Drains every
+   * datagram currently queued on the channel and forwards each one to the peer.
+   */
+  final void readable() {
+    while (!finished) {
+      ByteBuffer buffer = pool.acquire();
+      InetSocketAddress source = receive(buffer);
+      if (source == null) {
+        pool.release(buffer);
+        return;
+      }
+
+      forward(buffer, source);
+    }
+  }
+
+  /**
+   * Hand a datagram read into a pooled buffer to the peer, either to its dispatcher or
+   * to its pool. A datagram dropped by the dispatcher releases its buffer at once.
+   */
+  private void forward(ByteBuffer buffer, InetSocketAddress source) {
+    Runnable task = processor.runnable(buffer, source, pool);
+    Dispatcher dispatcher = Peer.getInstance().getDispatcher();
+    if (dispatcher == null) {
+      Peer.getInstance().getPool().submit(task);
+    } else {
+      dispatcher.dispatch(multicastChannel, task, buffer, () -> pool.release(buffer));
+    }
+  }
+
+  private void forward(DatagramPacket packet) {
+    Runnable task = processor.runnable(packet);
+    Dispatcher dispatcher = Peer.getInstance().getDispatcher();
+    if (dispatcher == null) {
+      Peer.getInstance().getPool().submit(task);
+    } else {
+      ByteBuffer content = ByteBuffer.wrap(packet.getData(), packet.getOffset(),
+          packet.getLength());
+      dispatcher.dispatch(multicastChannel, task, content, null);
+    }
+  }
+
+  /**
+   * Stop receiving. In NIO mode the channel is closed right away, which wakes up a
+   * blocked receive immediately instead of waiting for the next timeout.
+   */
   final void finish() {
     this.finished = true;
+    if (channel != null) dieChannel();
+  }
+
+  private void runSocket() {
+    DatagramPacket packet;
+
+    while (!finished) {
+      packet = receive();
+      if (packet == null) continue;
+
+      forward(packet);
+    }
+  }
+
+  private void runChannel() {
+    while (!finished) {
+      ByteBuffer buffer = pool.acquire();
+      InetSocketAddress source = receive(buffer);
+      if (source == null) {
+        pool.release(buffer);
+        continue;
+      }
+
+      forward(buffer, source);
+    }
   }
 
   /**
@@ -101,15 +302,12 @@ public final class Multicaster implements Runnable {
    */
   @Override
   public void run() {
-    DatagramPacket packet;
-
-    while (!finished) {
-      packet = receive();
-      if (packet == null) continue;
-
-      Peer.getInstance().getPool().submit(processor.runnable(packet));
+    if (channel != null) {
+      runChannel();
+    } else {
+      runSocket();
     }
 
     die();
   }
-}
\ No newline at end of file
+}
@@ -15,7 +15,6 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -33,8 +32,10 @@ public class Peer implements ClientInterface {
   private Multicaster mdb;
   private Multicaster mdr;
   private PeerSocket socket;
+  private EventLoop loop;
 
-  private ScheduledThreadPoolExecutor pool;  // TODO: do not use scheduled
+  private Scheduler pool;  // TODO: do not use scheduled
+  private Dispatcher dispatcher;
 
   public static Peer getInstance() {
     assert peer != null;
@@ -160,9 +161,15 @@ public class Peer implements ClientInterface {
 
   /**
    * Orders all main threads to terminate orderly.
-   * These threads will end within one socket reading cycle.
+   * These threads will end within one socket reading cycle, or immediately in event
+   * loop mode.
    */
   void finish() {
+    if (dispatcher != null) dispatcher.finish();
+    if (loop != null) {
+      loop.finish();
+      return;
+    }
     socket.finish();
     mc.finish();
     mdb.finish();
@@ -173,6 +180,10 @@ public class Peer implements ClientInterface {
     this.socket.send(message);
   }
 
+  public void resendFragments(Message request) {
+    this.socket.resendFragments(request);
+  }
+
   private void initHandlers() {
     BackupHandler.createInstance();
     RestoreHandler.createInstance();
@@ -195,9 +206,16 @@ public class Peer implements ClientInterface {
   }
 
   private void initPool() {
-    this.pool = new ScheduledThreadPoolExecutor(Configuration.peerThreadPoolSize);
-    // TODO: do not use scheduled, use a limited-size thread pool executor instead,
-    // TODO: dropping received messages when we're overworked and can't handle them.
+    this.pool = new Scheduler(Configuration.peerThreadPoolSize);
+    if (Configuration.boundedDispatch) this.dispatcher = new Dispatcher();
+  }
+
+  private void launchEventLoop() throws IOException {
+    this.loop = new EventLoop(socket, mc, mdb, mdr);
+
+    Thread tLoop = new Thread(loop);
+    tLoop.setPriority(Thread.MAX_PRIORITY);
+    tLoop.start();
   }
 
   private void launchThreads() {
@@ -232,8 +250,12 @@ public class Peer implements ClientInterface {
     initHandlers();
   }
 
-  private void init() {
-    launchThreads();
+  private void init() throws IOException {
+    if (Configuration.eventLoop) {
+      launchEventLoop();
+    } else {
+      launchThreads();
+    }
   }
 
   /**
@@ -258,10 +280,17 @@ public class Peer implements ClientInterface {
     return accessPoint;
   }
 
-  public ScheduledThreadPoolExecutor getPool() {
+  public Scheduler getPool() {
     return pool;
   }
 
+  /**
+   * @return The dispatcher of received datagrams, or null if they go to the pool.
+   */
+  Dispatcher getDispatcher() {
+    return dispatcher;
+  }
+
   /********* Interface Implementation **********/
   public void backup(String pathname, int replicationDegree) {
     if (pathname == null) {
@@ -307,6 +336,7 @@ public class Peer implements ClientInterface {
   public String state() throws RemoteException {
     Peer.log("Received STATE request", Level.INFO);
     String state = FileInfoManager.getInstance().dumpState();
+    if (dispatcher != null) state += dispatcher.toString();
     System.out.print(state);
     return state;
   }
@@ -1,20 +1,44 @@
 package dbs;
 
 import dbs.message.Message;
+import dbs.message.MessageType;
 
 import java.io.IOError;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 public final class PeerSocket implements Runnable {
+
+  /**
+   * A queued message and its destination. The message is only encoded when it reaches
+   * the front of the queue.
+   */
+  private static final class Outgoing {
+    private final Message message;
+    private final InetSocketAddress target;
+
+    private Outgoing(Message message, InetSocketAddress target) {
+      this.message = message;
+      this.target = target;
+    }
+  }
+
   private DatagramSocket socket;
-  private final LinkedBlockingDeque<DatagramPacket> queue;
-  private boolean finished = false;
+  private DatagramChannel channel;
+  private ByteBuffer sendBuffer;  // reusable direct buffer, event loop mode only
+  private EventLoop loop;
+  private final LinkedBlockingDeque<Outgoing> queue;
+  private final Fragmenter fragmenter = new Fragmenter();
+  private final FecEncoder fec = new FecEncoder(this);
+  private volatile boolean finished = false;
   // set to true to quit after next message.
 
   PeerSocket(int port, InetAddress address) throws IOException {
@@ -28,27 +52,115 @@ public final class PeerSocket implements Runnable {
   }
 
   PeerSocket() throws IOException {
-    this.socket = new DatagramSocket();
+    if (Configuration.eventLoop) {
+      this.channel = DatagramChannel.open();
+      this.channel.bind(null);
+      this.channel.configureBlocking(false);
+      this.sendBuffer = ByteBuffer.allocateDirect(Protocol.maxPacketSize);
+    } else {
+      this.socket = new DatagramSocket();
+    }
     this.queue = new LinkedBlockingDeque<>(Configuration.socketQueueCapacity);
   }
 
+  /**
+   * @return The non-blocking channel in event loop mode, null otherwise.
+   */
+  DatagramChannel channel() {
+    return channel;
+  }
+
+  /**
+   * Hand this socket over to an event loop, which is woken up whenever a packet is
+   * queued instead of having this socket's thread poll the queue.
+   */
+  void attach(EventLoop loop) {
+    this.loop = loop;
+  }
+
   /**
    * Close the socket gracefully.
    */
   private void die() {
-    if (socket == null) return;
     finished = true;
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        Peer.log("Failed to close the peer's channel", e, Level.WARNING);
+      }
+      return;
+    }
+    if (socket == null) return;
 
     socket.close();
     socket = null;
   }
 
   /**
-   * Send this packet to the output socket.
+   * Send this message through the non-blocking channel. The message is written into
+   * the reusable direct send buffer, header and body one after the other, so sending
+   * allocates nothing and copies the body exactly once.
    *
-   * @param packet The datagram packet to be sent, taken from the front of the queue.
+   * @param outgoing The message to be sent, at the front of the queue
+   * @return false if the channel had no room for the message and it must be retried.
    */
-  private void send(DatagramPacket packet) {
+  private boolean write(Outgoing outgoing) {
+    sendBuffer.clear();
+    outgoing.message.writeTo(sendBuffer);
+    sendBuffer.flip();
+    try {
+      return channel.send(sendBuffer, outgoing.target) > 0;
+    } catch (IOException e) {
+      if (!channel.isOpen()) {
+        throw new IOError(e);
+      }
+
+      System.err.println(e.getMessage());
+      e.printStackTrace();
+      return true;
+    }
+  }
+
+  /**
+   * Event loop callback, for the channel selected for writing. Sends queued packets
+   * until the queue is empty or the channel is full.
+   *
+   * @return true if the queue was emptied, false if the channel is full.
+   */
+  boolean writable() {
+    Outgoing outgoing;
+
+    while ((outgoing = queue.peekFirst()) != null) {
+      if (!write(outgoing)) return false;
+      queue.pollFirst();
+    }
+    return true;
+  }
+
+  /**
+   * Called by the event loop when it terminates: send everything still queued, blocking
+   * if necessary, and close the channel.
+   */
+  void flush() {
+    try {
+      if (channel.isOpen() && !channel.isBlocking()) channel.configureBlocking(true);
+      writable();
+    } catch (IOException | IOError e) {
+      Peer.log("Failed to flush the peer's queue", Level.WARNING);
+    }
+    die();
+  }
+
+  /**
+   * Send this message to the output socket. The packet wraps the message's cached
+   * encoding, so retransmissions of a message do not copy its body again.
+   *
+   * @param outgoing The message to be sent, taken from the front of the queue.
+   */
+  private void send(Outgoing outgoing) {
+    byte[] bytes = outgoing.message.makeBytes();
+    DatagramPacket packet = new DatagramPacket(bytes, bytes.length, outgoing.target);
     try {
       socket.send(packet);
     } catch (IOException e) {
@@ -71,31 +183,59 @@ public final class PeerSocket implements Runnable {
   public void sendTo(Message message, MulticastChannel channel) {
     if (finished) return;
     String id = Long.toString(Peer.getInstance().getId());
-    queue.add(message.getPacket(id, channel.getPort(), channel.getAddress()));
+    message.setSenderId(id);
+    if (loop == null) message.makeBytes();  // encode in the caller's thread
+    queue.add(new Outgoing(message, channel.getSocketAddress()));
+    if (loop != null) loop.wakeupWriter();
     Peer.log("Sending... " + message.shortText(), Level.INFO);
   }
 
   /**
    * Add this message to the output queue. Automatically detect the channel based on
-   * the message type.
+   * the message type. A chunk too large for one datagram is queued in fragments.
    *
    * @param message The message to be sent.
    */
   public void send(Message message) {
     if (finished) return;
+    if (Fragmenter.needsFragments(message)) {
+      for (Message fragment : fragmenter.split(message)) send(fragment);
+      return;
+    }
+
     MulticastChannel destinationChannel;
     switch (message.getType()) {
     case PUTCHUNK:
+    case PUTDIGEST:
       destinationChannel = Protocol.mdb;
       break;
     case CHUNK:
       destinationChannel = Protocol.mdr;
       break;
+    case PARITY:
+      destinationChannel = message.getParityOf() == MessageType.PUTCHUNK ? Protocol.mdb
+                                                                         : Protocol.mdr;
+      break;
     default:
       destinationChannel = Protocol.mc;
       break;
     }
     sendTo(message, destinationChannel);
+
+    if (Configuration.enhancedPeer && Configuration.forwardErrorCorrection
+        && FecEncoder.protects(message)) {
+      fec.sent(message);
+    }
+  }
+
+  /**
+   * Resend the fragments asked for by a GETFRAGMENTS, if this peer sent them recently.
+   *
+   * @param request The GETFRAGMENTS message received
+   */
+  public void resendFragments(Message request) {
+    if (finished) return;
+    fragmenter.resend(request, this);
   }
 
   final void finish() {
@@ -105,27 +245,27 @@ public final class PeerSocket implements Runnable {
   /**
    * Thread pool task. Dispatches packets added by other agents the output queue through
    * the public send* methods.
-   * The construction of the datagram packet is made by the agents themselves.
+   * The encoding of the messages is made by the agents themselves.
    * Does nothing if called once finished.
    */
   @Override
   public void run() {
-    DatagramPacket packet;
+    Outgoing outgoing;
 
     while (!finished) {
       try {
-        packet = queue.poll(Configuration.socketTimeout, TimeUnit.MILLISECONDS);
+        outgoing = queue.poll(Configuration.socketTimeout, TimeUnit.MILLISECONDS);
       } catch (InterruptedException e) {
         continue;
       }
-      if (packet == null) continue;
-      send(packet);
+      if (outgoing == null) continue;
+      send(outgoing);
     }
 
     while (!queue.isEmpty()) {
-      packet = queue.pop();
-      if (packet == null) continue;
-      send(packet);
+      outgoing = queue.pop();
+      if (outgoing == null) continue;
+      send(outgoing);
     }
 
     die();
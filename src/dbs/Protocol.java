@@ -2,7 +2,14 @@ package dbs;
 
 public final class Protocol {
 
-  public static final int chunkSize = 64000;
+  // Size of each chunk of a file. Every peer of a group must use the same chunk size,
+  // and a peer must restore its files with the chunk size they were backed up with.
+  // Chunks larger than fragmentSize are sent in fragments (large chunk mode, enhanced
+  // peers only).
+  public static int chunkSize = 64000;
+
+  // Maximum body of one datagram
+  public static final int fragmentSize = 64000;
   public static final int maxPacketSize = 65200;
 
   // minimum delay time (for the schedule of new threads) - ms
@@ -26,6 +33,14 @@ public final class Protocol {
   // new message's version
   public static String newMessagesVersion = "1.1";
 
+  /**
+   * @return The maximum size of a whole message, i.e. a header and a chunk, which may
+   * be larger than a datagram.
+   */
+  public static int maxMessageSize() {
+    return chunkSize + maxPacketSize - fragmentSize;
+  }
+
   public static MulticastChannel mc;
   public static MulticastChannel mdb;
   public static MulticastChannel mdr;
@@ -0,0 +1,92 @@
+package dbs;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Executes the peer's tasks: message processors, transmitters and their retry timers.
+ *
+ * By default each Scheduler is its own fixed-size ScheduledThreadPoolExecutor, as
+ * configured by the pool size knobs in Configuration. With Configuration.virtualThreads
+ * set, every Scheduler instead runs its tasks on one shared thread-per-task executor,
+ * backed by virtual threads when the runtime has them, and delays are handled by a
+ * small shared timer that only dispatches the tasks, so the number of outstanding
+ * protocol instances is no longer capped by the pool sizes.
+ *
+ * Note: A scheduled task cancelled after its timer fired is not interrupted, so tasks
+ * must check their own state when they run.
+ */
+public final class Scheduler {
+
+  private static ScheduledThreadPoolExecutor sharedTimer;
+  private static ExecutorService sharedExecutor;
+
+  private final ScheduledThreadPoolExecutor timer;
+  private final ExecutorService executor;
+
+  /**
+   * Create a thread per task executor on virtual threads. The bytecode targets a
+   * release without them, so the factory is looked up at runtime.
+   *
+   * @return The virtual thread executor, or a cached thread pool if the runtime does
+   * not support virtual threads.
+   */
+  private static ExecutorService virtualExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      Peer.log("Virtual threads are not available, using a cached thread pool",
+          Level.WARNING);
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  private static synchronized void initShared() {
+    if (sharedTimer != null) return;
+    sharedTimer = new ScheduledThreadPoolExecutor(Configuration.timerThreads);
+    sharedTimer.setRemoveOnCancelPolicy(true);
+    sharedExecutor = virtualExecutor();
+  }
+
+  /**
+   * @param poolSize The number of threads of this scheduler's own pool, ignored when
+   *                 running on virtual threads.
+   */
+  public Scheduler(int poolSize) {
+    if (Configuration.virtualThreads) {
+      initShared();
+      this.timer = sharedTimer;
+      this.executor = sharedExecutor;
+    } else {
+      this.timer = new ScheduledThreadPoolExecutor(poolSize);
+      this.timer.setRemoveOnCancelPolicy(true);
+      this.executor = timer;
+    }
+  }
+
+  /**
+   * Run a task as soon as possible.
+   *
+   * @return The task's future, which can be cancelled (and interrupted).
+   */
+  public Future<?> submit(Runnable task) {
+    return executor.submit(task);
+  }
+
+  /**
+   * Run a task after the given delay.
+   *
+   * @return The task's future. On virtual threads cancelling it only cancels the timer.
+   */
+  public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+    if (executor == timer) return timer.schedule(task, delay, unit);
+    return timer.schedule(() -> executor.execute(task), delay, unit);
+  }
+}
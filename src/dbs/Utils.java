@@ -1,10 +1,12 @@
 package dbs;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Random;
 
 public class Utils {
@@ -27,6 +29,20 @@ public class Utils {
     return bytesToHex(encodedHash);
   }
 
+  /**
+   * @return The SHA-256 digest of a chunk's content, from its position to its limit, in
+   * hex. The buffer's position is not changed.
+   */
+  public static String digest(ByteBuffer chunk) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(chunk.duplicate());
+      return bytesToHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);  // every Java platform has SHA-256
+    }
+  }
+
   public static int numberOfChunks(long filesize) {
     return (int) ((filesize + Protocol.chunkSize) / Protocol.chunkSize);
   }
@@ -61,20 +77,43 @@ public class Utils {
     return rand.nextInt(max - min + 1) + min;
   }
 
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isDigits(String string) {
+    if (string.isEmpty()) return false;
+    for (int i = 0; i < string.length(); ++i) {
+      if (!isDigit(string.charAt(i))) return false;
+    }
+    return true;
+  }
+
+  private static boolean isHex(String string) {
+    if (string.isEmpty()) return false;
+    for (int i = 0; i < string.length(); ++i) {
+      char c = string.charAt(i);
+      if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f') && !(c >= 'A' && c <= 'F'))
+        return false;
+    }
+    return true;
+  }
+
   public static boolean validVersion(String version) {
-    return version.matches("[0-9]\\.[0-9]");
+    return version.length() == 3 && isDigit(version.charAt(0))
+        && version.charAt(1) == '.' && isDigit(version.charAt(2));
   }
 
   public static boolean validSenderId(String senderId) {
-    return senderId.matches("[0-9]+");
+    return isDigits(senderId);
   }
 
   public static boolean validFileId(String fileId) {
-    return fileId.length() == 64 && fileId.matches("[a-fA-F0-9]+");
+    return fileId.length() == 64 && isHex(fileId);
   }
 
   public static boolean validChunkNo(String chunkNo) {
-    return chunkNo.matches("[0-9]+");
+    return isDigits(chunkNo);
   }
 
   public static boolean validChunkNo(int chunkNo) {
@@ -82,7 +121,7 @@ public class Utils {
   }
 
   public static boolean validReplicationDegree(String replication) {
-    return replication.matches("[0-9]");
+    return replication.length() == 1 && isDigits(replication);
   }
 
   public static boolean validReplicationDegree(int replication) {
@@ -2,21 +2,39 @@ package dbs.files;
 
 import dbs.ChunkKey;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.util.Comparator;
-import java.util.Objects;
+import java.util.Arrays;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ChunkInfo implements Serializable, Comparable<ChunkInfo> {
 
-  private final FileInfo fileInfo;
-  private final Integer chunkNumber;
+  private static final long serialVersionUID = -8060609197212648587L;
 
   /**
-   * Set of peers which have a backup of that chunk.
+   * The fields of the metadata files written with Java serialization by older peers,
+   * still read once to migrate them, and of the serialized form, which is unchanged.
    */
-  private final Set<Long> backupPeers;
+  private static final ObjectStreamField[] serialPersistentFields = {
+      new ObjectStreamField("fileInfo", FileInfo.class),
+      new ObjectStreamField("chunkNumber", Integer.class),
+      new ObjectStreamField("backupPeers", Set.class)
+  };
+
+  private static final long[] noPeers = new long[0];
+
+  private FileInfo fileInfo;
+  private int chunkNumber;
+
+  /**
+   * Ids of the peers which have a backup of that chunk. There are only a few, so this is
+   * a small array, replaced whole on every change and read without locking.
+   */
+  private transient volatile long[] backupPeers;
 
   /**
    * Constructs a new object of the ChunkInfo class.
@@ -24,7 +42,34 @@ public class ChunkInfo implements Serializable, Comparable<ChunkInfo> {
   ChunkInfo(FileInfo fileInfo, int chunkNumber) {
     this.fileInfo = fileInfo;
     this.chunkNumber = chunkNumber;
-    this.backupPeers = ConcurrentHashMap.newKeySet();
+    this.backupPeers = noPeers;
+  }
+
+  private void readObject(ObjectInputStream in)
+      throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField fields = in.readFields();
+    this.fileInfo = (FileInfo) fields.get("fileInfo", null);
+    this.chunkNumber = (Integer) fields.get("chunkNumber", null);
+    Set<?> peers = (Set<?>) fields.get("backupPeers", null);
+    this.backupPeers = peers == null ? noPeers
+        : peers.stream().mapToLong(peer -> (Long) peer).toArray();
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    Set<Long> peers = ConcurrentHashMap.newKeySet();
+    for (long peer : backupPeers) peers.add(peer);
+    ObjectOutputStream.PutField fields = out.putFields();
+    fields.put("fileInfo", fileInfo);
+    fields.put("chunkNumber", (Integer) chunkNumber);
+    fields.put("backupPeers", peers);
+    out.writeFields();
+  }
+
+  private static int indexOf(long[] peers, long peerId) {
+    for (int i = 0; i < peers.length; ++i) {
+      if (peers[i] == peerId) return i;
+    }
+    return -1;
   }
 
   /**
@@ -33,8 +78,8 @@ public class ChunkInfo implements Serializable, Comparable<ChunkInfo> {
    * @param peerId The peer's id.
    * @return True if the given peer has a backup of that chunk and false otherwise.
    */
-  boolean hasBackupPeer(Long peerId) {
-    return this.backupPeers.contains(peerId);
+  boolean hasBackupPeer(long peerId) {
+    return indexOf(this.backupPeers, peerId) != -1;
   }
 
   /**
@@ -42,8 +87,12 @@ public class ChunkInfo implements Serializable, Comparable<ChunkInfo> {
    *
    * @param peerId The peer's id.
    */
-  void addBackupPeer(Long peerId) {
-    this.backupPeers.add(peerId);
+  synchronized void addBackupPeer(long peerId) {
+    long[] peers = this.backupPeers;
+    if (indexOf(peers, peerId) != -1) return;
+    peers = Arrays.copyOf(peers, peers.length + 1);
+    peers[peers.length - 1] = peerId;
+    this.backupPeers = peers;
   }
 
   /**
@@ -51,8 +100,21 @@ public class ChunkInfo implements Serializable, Comparable<ChunkInfo> {
    *
    * @param peerId The peer's id.
    */
-  void removeBackupPeer(Long peerId) {
-    this.backupPeers.remove(peerId);
+  synchronized void removeBackupPeer(long peerId) {
+    long[] peers = this.backupPeers;
+    int index = indexOf(peers, peerId);
+    if (index == -1) return;
+    long[] removed = Arrays.copyOf(peers, peers.length - 1);
+    if (index < removed.length) removed[index] = peers[peers.length - 1];
+    this.backupPeers = removed;
+  }
+
+  /**
+   * @return The ids of the peers which have a backup of this chunk, when called. The
+   * array must not be changed.
+   */
+  long[] getBackupPeers() {
+    return this.backupPeers;
   }
 
   FileInfo getFileInfo() {
@@ -79,7 +141,7 @@ public class ChunkInfo implements Serializable, Comparable<ChunkInfo> {
    * replication degree of the chunk).
    */
   int getReplicationDegree() {
-    return this.backupPeers.size();
+    return this.backupPeers.length;
   }
 
   /**
@@ -96,21 +158,22 @@ public class ChunkInfo implements Serializable, Comparable<ChunkInfo> {
     if (this == o) return true;
     if (o == null || getClass() != o.getClass()) return false;
     ChunkInfo chunkInfo = (ChunkInfo) o;
-    return chunkNumber.equals(chunkInfo.chunkNumber) &&
+    return chunkNumber == chunkInfo.chunkNumber &&
         getFileId().equals(chunkInfo.getFileId());
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(chunkNumber);
+    return Integer.hashCode(chunkNumber);
   }
 
   @Override
   public String toString() {
     StringBuilder string = new StringBuilder();
     string.append("chunk #").append(chunkNumber);
-    string.append(" {").append(backupPeers.size()).append("} ");
-    for (long peer : backupPeers) string.append(peer).append(' ');
+    long[] peers = this.backupPeers;
+    string.append(" {").append(peers.length).append("} ");
+    for (long peer : peers) string.append(peer).append(' ');
     return string.toString();
   }
 
@@ -120,25 +183,4 @@ public class ChunkInfo implements Serializable, Comparable<ChunkInfo> {
     if (this == other) return 0;
     return getKey().compareTo(other.getKey());
   }
-
-  static class ComparisonReplication implements Comparator<ChunkInfo> {
-    @Override
-    public int compare(ChunkInfo lhs, ChunkInfo rhs) {
-      if (lhs == rhs) return 0;
-
-      int lhsPerceived = lhs.getReplicationDegree();
-      int lhsDesired = lhs.fileInfo.getDesiredReplicationDegree();
-      int rhsPerceived = rhs.getReplicationDegree();
-      int rhsDesired = rhs.fileInfo.getDesiredReplicationDegree();
-
-      int lhsDiff = lhsPerceived - lhsDesired;
-      int rhsDiff = rhsPerceived - rhsDesired;
-
-      if (lhsDiff != rhsDiff) return rhsDiff - lhsDiff;
-
-      if (lhsPerceived != rhsPerceived) return rhsPerceived - lhsPerceived;
-
-      return lhs.compareTo(rhs);
-    }
-  }
 }
@@ -0,0 +1,82 @@
+package dbs.files;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashSet;
+import java.util.TreeSet;
+
+/**
+ * Storage backend for the chunks this peer keeps on behalf of other peers. The
+ * FilesManager delegates every chunk operation to one of these, chosen by
+ * Configuration.chunkStore when the peer starts.
+ */
+interface ChunkStore {
+
+  /**
+   * @return true if at least one chunk of this file is stored, false otherwise.
+   */
+  boolean hasFile(String fileId);
+
+  /**
+   * Delete every chunk of this file.
+   *
+   * @return false if some chunk existed and could not be deleted, true otherwise.
+   */
+  boolean deleteFile(String fileId);
+
+  boolean hasChunk(String fileId, int chunkNo);
+
+  /**
+   * @return The entire chunk content, or null if the chunk does not exist/could not be
+   * read.
+   */
+  byte[] getChunk(String fileId, int chunkNo);
+
+  /**
+   * Write the entire chunk content to a channel, e.g. a socket, without copying it
+   * through the heap where the store allows it.
+   *
+   * @return The chunk's size in bytes, or -1 if the chunk does not exist.
+   * @throws IOException If the chunk could not be read or written to the channel.
+   */
+  long transferChunk(String fileId, int chunkNo, WritableByteChannel target)
+      throws IOException;
+
+  /**
+   * Store a chunk, overwriting any previous chunk with the same key. The buffer's
+   * position is not changed.
+   *
+   * @return true if the chunk was successfully written, false otherwise.
+   */
+  boolean putChunk(String fileId, int chunkNo, ByteBuffer chunk);
+
+  /**
+   * @return false if the chunk existed and could not be deleted, true otherwise.
+   */
+  boolean deleteChunk(String fileId, int chunkNo);
+
+  /**
+   * @return The chunk's size in bytes, or -1 if it does not exist.
+   */
+  long chunkSpace(String fileId, int chunkNo);
+
+  /**
+   * @return The total size of this file's stored chunks, 0 if there are none.
+   */
+  long fileSpace(String fileId);
+
+  /**
+   * @return The total size of all stored chunks.
+   */
+  long totalSpace();
+
+  HashSet<String> files();
+
+  TreeSet<Integer> chunks(String fileId);
+
+  /**
+   * Flush and release the store's resources. Called once, when the peer shuts down.
+   */
+  void close() throws IOException;
+}
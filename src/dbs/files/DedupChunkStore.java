@@ -0,0 +1,327 @@
+package dbs.files;
+
+import dbs.ChunkKey;
+import dbs.Configuration;
+import dbs.Peer;
+import dbs.Utils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Chunk store that keeps every distinct chunk content only once, whatever the files it
+ * belongs to. Each content is stored in a store of its own, backup/[contents], under its
+ * SHA-256 digest, as chunk 0 of a file with that id, and each chunk is a reference to a
+ * content. The references are kept in memory and in a journal, backup/[references], of
+ * lines
+ *
+ *   + FILEID CHUNKNO DIGEST
+ *   - FILEID CHUNKNO
+ *
+ * which is replayed and rewritten when the peer starts. A content is deleted with its
+ * last reference, and the contents left without any, e.g. by a crash between writing a
+ * content and journaling its reference, are deleted when the peer starts. Chunks of the
+ * underlying store, e.g. those stored before deduplication was turned on, are served as
+ * they are.
+ */
+final class DedupChunkStore implements ChunkStore {
+
+  private final ChunkStore store;
+  private final ChunkStore contents;
+  private final Path journalPath;
+  private final ConcurrentHashMap<ChunkKey,String> references = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String,Integer> counts = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String,Set<Integer>> fileChunks =
+      new ConcurrentHashMap<>();
+  private final BufferedWriter journal;
+
+  private static String chk(String fileId, int chunkNo) {
+    return "chunk #" + chunkNo + " of file " + fileId.substring(0, 10) + "..";
+  }
+
+  /**
+   * Replay and rewrite the journal of references, and delete the contents it does not
+   * reference.
+   *
+   * @param store     The store holding the chunks not stored by reference
+   * @param contents  The store holding the contents, apart from the chunks
+   * @param backupDir The peer's backup directory, already created
+   * @throws IOException If the journal cannot be read or rewritten.
+   */
+  DedupChunkStore(ChunkStore store, ChunkStore contents, Path backupDir)
+      throws IOException {
+    this.store = store;
+    this.contents = contents;
+    this.journalPath = backupDir.resolve(Configuration.referencesFile);
+
+    if (Files.exists(journalPath)) {
+      for (String line : Files.readAllLines(journalPath, US_ASCII)) replay(line);
+    }
+
+    // Move the contents kept among the chunks by older peers to the contents store.
+    for (String digest : new ArrayList<>(counts.keySet())) {
+      if (!contents.hasChunk(digest, 0) && store.hasChunk(digest, 0)) move(digest);
+    }
+
+    // Drop the references whose content did not make it to the store.
+    for (Map.Entry<ChunkKey,String> entry : new ArrayList<>(references.entrySet())) {
+      if (!contents.hasChunk(entry.getValue(), 0)) unreference(entry.getKey());
+    }
+
+    // Delete the contents whose reference did not make it to the journal.
+    for (String digest : contents.files()) {
+      if (!counts.containsKey(digest)) contents.deleteFile(digest);
+    }
+
+    Path temporary = backupDir.resolve(Configuration.referencesFile + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(temporary, US_ASCII)) {
+      for (Map.Entry<ChunkKey,String> entry : references.entrySet()) {
+        ChunkKey key = entry.getKey();
+        writer.write(added(key.getFileId(), key.getChunkNo(), entry.getValue()));
+      }
+    }
+    Files.move(temporary, journalPath, StandardCopyOption.REPLACE_EXISTING);
+
+    journal = Files.newBufferedWriter(journalPath, US_ASCII, StandardOpenOption.APPEND);
+  }
+
+  private void move(String digest) {
+    byte[] content = store.getChunk(digest, 0);
+    if (content != null && contents.putChunk(digest, 0, ByteBuffer.wrap(content))) {
+      store.deleteChunk(digest, 0);
+    }
+  }
+
+  private static String added(String fileId, int chunkNo, String digest) {
+    return "+ " + fileId + " " + chunkNo + " " + digest + "\n";
+  }
+
+  private static String removed(String fileId, int chunkNo) {
+    return "- " + fileId + " " + chunkNo + "\n";
+  }
+
+  /**
+   * Apply one journal line. Malformed lines, e.g. one torn by a crash, are skipped.
+   */
+  private void replay(String line) {
+    String[] fields = line.trim().split(" +");
+    try {
+      if (fields.length == 4 && fields[0].equals("+") && Utils.validFileId(fields[1])
+          && Utils.validFileId(fields[3])) {
+        ChunkKey key = new ChunkKey(fields[1], Integer.parseInt(fields[2]));
+        if (references.containsKey(key)) unreference(key);
+        reference(key, fields[3]);
+      } else if (fields.length == 3 && fields[0].equals("-")) {
+        unreference(new ChunkKey(fields[1], Integer.parseInt(fields[2])));
+      }
+    } catch (NumberFormatException e) {
+      // skip it
+    }
+  }
+
+  private void reference(ChunkKey key, String digest) {
+    references.put(key, digest);
+    counts.merge(digest, 1, Integer::sum);
+    fileChunks.computeIfAbsent(key.getFileId(), k -> ConcurrentHashMap.newKeySet())
+        .add(key.getChunkNo());
+  }
+
+  /**
+   * @return The digest of the content the key referenced, and whose count was
+   * decremented, or null if the key referenced nothing.
+   */
+  private String unreference(ChunkKey key) {
+    String digest = references.remove(key);
+    if (digest == null) return null;
+
+    counts.computeIfPresent(digest, (d, count) -> count == 1 ? null : count - 1);
+    Set<Integer> chunks = fileChunks.get(key.getFileId());
+    if (chunks != null) {
+      chunks.remove(key.getChunkNo());
+      if (chunks.isEmpty()) fileChunks.remove(key.getFileId());
+    }
+    return digest;
+  }
+
+  private void log(String line) throws IOException {
+    journal.write(line);
+    journal.flush();
+  }
+
+  /**
+   * @return The size of the content with this digest, or -1 if it is not stored.
+   */
+  long digestSpace(String digest) {
+    return counts.containsKey(digest) ? contents.chunkSpace(digest, 0) : -1;
+  }
+
+  /**
+   * Store a chunk as a reference to a content already stored.
+   *
+   * @return false if the content is not stored, or the reference could not be written.
+   */
+  synchronized boolean putReference(String fileId, int chunkNo, String digest) {
+    if (!counts.containsKey(digest)) return false;
+    return link(new ChunkKey(fileId, chunkNo), digest);
+  }
+
+  /**
+   * Point the key at a stored content, releasing whatever it held before. Must be
+   * called with the lock held.
+   */
+  private boolean link(ChunkKey key, String digest) {
+    if (digest.equals(references.get(key))) return true;
+
+    String fileId = key.getFileId();
+    int chunkNo = key.getChunkNo();
+    try {
+      log(added(fileId, chunkNo, digest));
+    } catch (IOException e) {
+      Peer.log("Failed to reference " + chk(fileId, chunkNo), e, Level.WARNING);
+      return false;
+    }
+
+    release(unreference(key));
+    reference(key, digest);
+    if (store.hasChunk(fileId, chunkNo)) store.deleteChunk(fileId, chunkNo);
+    return true;
+  }
+
+  /**
+   * Delete a content with no references left. Must be called with the lock held.
+   */
+  private void release(String digest) {
+    if (digest != null && !counts.containsKey(digest)) contents.deleteChunk(digest, 0);
+  }
+
+  @Override
+  public boolean hasFile(String fileId) {
+    return fileChunks.containsKey(fileId) || store.hasFile(fileId);
+  }
+
+  @Override
+  public boolean deleteFile(String fileId) {
+    boolean ok = true;
+    for (Integer chunkNo : chunks(fileId)) {
+      ok &= deleteChunk(fileId, chunkNo);
+    }
+    return ok;
+  }
+
+  @Override
+  public boolean hasChunk(String fileId, int chunkNo) {
+    return references.containsKey(new ChunkKey(fileId, chunkNo))
+        || store.hasChunk(fileId, chunkNo);
+  }
+
+  @Override
+  public byte[] getChunk(String fileId, int chunkNo) {
+    String digest = references.get(new ChunkKey(fileId, chunkNo));
+    return digest == null ? store.getChunk(fileId, chunkNo)
+                          : contents.getChunk(digest, 0);
+  }
+
+  @Override
+  public long transferChunk(String fileId, int chunkNo, WritableByteChannel target)
+      throws IOException {
+    String digest = references.get(new ChunkKey(fileId, chunkNo));
+    return digest == null ? store.transferChunk(fileId, chunkNo, target)
+                          : contents.transferChunk(digest, 0, target);
+  }
+
+  /**
+   * The chunk's content is hashed, and only written if no identical content is stored.
+   */
+  @Override
+  public synchronized boolean putChunk(String fileId, int chunkNo, ByteBuffer chunk) {
+    String digest = Utils.digest(chunk);
+    if (!counts.containsKey(digest) && !contents.putChunk(digest, 0, chunk)) return false;
+    if (link(new ChunkKey(fileId, chunkNo), digest)) return true;
+
+    release(digest);
+    return false;
+  }
+
+  @Override
+  public synchronized boolean deleteChunk(String fileId, int chunkNo) {
+    ChunkKey key = new ChunkKey(fileId, chunkNo);
+    if (!references.containsKey(key)) return store.deleteChunk(fileId, chunkNo);
+
+    try {
+      log(removed(fileId, chunkNo));
+    } catch (IOException e) {
+      Peer.log("Failed to unreference " + chk(fileId, chunkNo), e, Level.WARNING);
+      return false;
+    }
+    release(unreference(key));
+    return true;
+  }
+
+  @Override
+  public long chunkSpace(String fileId, int chunkNo) {
+    String digest = references.get(new ChunkKey(fileId, chunkNo));
+    return digest == null ? store.chunkSpace(fileId, chunkNo)
+                          : contents.chunkSpace(digest, 0);
+  }
+
+  @Override
+  public long fileSpace(String fileId) {
+    long total = 0;
+    for (Integer chunkNo : chunks(fileId)) {
+      long space = chunkSpace(fileId, chunkNo);
+      if (space > 0) total += space;
+    }
+    return total;
+  }
+
+  /**
+   * @return The space actually taken on disk, each content counted once.
+   */
+  @Override
+  public long totalSpace() {
+    return store.totalSpace() + contents.totalSpace();
+  }
+
+  @Override
+  public HashSet<String> files() {
+    HashSet<String> files = new HashSet<>(fileChunks.keySet());
+    files.addAll(store.files());
+    return files;
+  }
+
+  @Override
+  public TreeSet<Integer> chunks(String fileId) {
+    TreeSet<Integer> chunks = store.chunks(fileId);
+    Set<Integer> referenced = fileChunks.get(fileId);
+    if (referenced != null) chunks.addAll(referenced);
+    return chunks;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      journal.close();
+    } finally {
+      try {
+        contents.close();
+      } finally {
+        store.close();
+      }
+    }
+  }
+}
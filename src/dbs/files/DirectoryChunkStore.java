@@ -0,0 +1,272 @@
+package dbs.files;
+
+import dbs.Configuration;
+import dbs.Peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The original chunk layout: one directory per file and one regular file per chunk,
+ * backup/file-[FILEID]/chunk-[CHUNKNO].
+ */
+final class DirectoryChunkStore implements ChunkStore {
+
+  private final Path backupDir;
+  private final Pattern backupPattern;
+  private final Pattern chunkPattern;
+
+  private static String chk(String fileId, int chunkNo) {
+    return "chunk #" + chunkNo + " of file " + fileId.substring(0, 10) + "..";
+  }
+
+  private static boolean deleteDirectory(File directory) {
+    if (directory == null) return true;
+    if (!directory.isDirectory()) return false;
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    return directory.delete();
+  }
+
+  private String makeBackupEntry(String fileId) {
+    return Configuration.entryPrefix + fileId;
+  }
+
+  private String extractFromBackupEntry(String backupFilename) {
+    Matcher matcher = backupPattern.matcher(backupFilename);
+    if (!matcher.matches()) return null;
+
+    return matcher.group(1);
+  }
+
+  private boolean validBackupEntry(String backupFilename) {
+    return backupPattern.matcher(backupFilename).matches();
+  }
+
+  private String makeChunkEntry(int chunkNo) {
+    return Configuration.chunkPrefix + chunkNo;
+  }
+
+  private int extractFromChunkEntry(String chunkFilename) {
+    Matcher matcher = chunkPattern.matcher(chunkFilename);
+    if (!matcher.matches()) return -1;
+
+    return Integer.parseInt(matcher.group(1));
+  }
+
+  private boolean validChunkEntry(String chunkFilename) {
+    return chunkPattern.matcher(chunkFilename).matches();
+  }
+
+  private Path chunkPath(String fileId, int chunkNo) {
+    return backupDir.resolve(makeBackupEntry(fileId)).resolve(makeChunkEntry(chunkNo));
+  }
+
+  /**
+   * @param backupDir The peer's backup directory, already created
+   */
+  DirectoryChunkStore(Path backupDir) {
+    this.backupDir = backupDir;
+
+    // prefix[FILEID]
+    String backupStr = Pattern.quote(Configuration.entryPrefix) + "([0-9a-fA-F]{64})";
+    backupPattern = Pattern.compile(backupStr);
+
+    // prefix[CHUNKNO]
+    String chunkStr = Pattern.quote(Configuration.chunkPrefix) + "([0-9]+)";
+    chunkPattern = Pattern.compile(chunkStr);
+  }
+
+  @Override
+  public boolean hasFile(String fileId) {
+    Path filepath = backupDir.resolve(makeBackupEntry(fileId));
+    return Files.exists(filepath) && Files.isDirectory(filepath);
+  }
+
+  @Override
+  public boolean deleteFile(String fileId) {
+    Path filepath = backupDir.resolve(makeBackupEntry(fileId));
+    return deleteDirectory(filepath.toFile());
+  }
+
+  @Override
+  public boolean hasChunk(String fileId, int chunkNo) {
+    Path chunkpath = chunkPath(fileId, chunkNo);
+    return Files.exists(chunkpath) && Files.isRegularFile(chunkpath);
+  }
+
+  @Override
+  public byte[] getChunk(String fileId, int chunkNo) {
+    try {
+      Path chunkpath = chunkPath(fileId, chunkNo);
+      if (Files.notExists(chunkpath)) return null;
+      return Files.readAllBytes(chunkpath);
+    } catch (IOException e) {
+      Peer.log("Failed to get " + chk(fileId, chunkNo), e, Level.WARNING);
+      return null;
+    }
+  }
+
+  @Override
+  public long transferChunk(String fileId, int chunkNo, WritableByteChannel target)
+      throws IOException {
+    Path chunkpath = chunkPath(fileId, chunkNo);
+    if (Files.notExists(chunkpath)) return -1;
+
+    try (FileChannel in = FileChannel.open(chunkpath, StandardOpenOption.READ)) {
+      long size = in.size();
+      long position = 0;
+      while (position < size) {
+        position += in.transferTo(position, size - position, target);
+      }
+      return size;
+    }
+  }
+
+  @Override
+  public boolean putChunk(String fileId, int chunkNo, ByteBuffer chunk) {
+    try {
+      Path path = backupDir.resolve(makeBackupEntry(fileId));
+      Path filepath = Files.createDirectories(path);
+      Path chunkpath = filepath.resolve(makeChunkEntry(chunkNo));
+      ByteBuffer data = chunk.duplicate();
+      try (FileChannel out = FileChannel.open(chunkpath, StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        while (data.hasRemaining()) out.write(data);
+      }
+      return true;
+    } catch (IOException e) {
+      Peer.log("Failed to put " + chk(fileId, chunkNo), e, Level.WARNING);
+      return false;
+    }
+  }
+
+  @Override
+  public boolean deleteChunk(String fileId, int chunkNo) {
+    try {
+      Path chunkpath = chunkPath(fileId, chunkNo);
+      if (Files.notExists(chunkpath)) return true;
+      Files.deleteIfExists(chunkpath);
+      return true;
+    } catch (IOException e) {
+      Peer.log("Failed to delete " + chk(fileId, chunkNo), e, Level.WARNING);
+      return false;
+    }
+  }
+
+  private File[] backupFilterFilesList(File[] files) {
+    return Arrays.stream(files)
+        .filter(file -> validBackupEntry(file.getName()))
+        .toArray(File[]::new);
+  }
+
+  private File[] backupFilterChunksList(File[] chunks) {
+    return Arrays.stream(chunks)
+        .filter(chunk -> validChunkEntry(chunk.getName()))
+        .toArray(File[]::new);
+  }
+
+  private File[] backupFilesList() {
+    File[] files = backupDir.toFile().listFiles();
+    if (files == null) {
+      return new File[0];
+    } else {
+      return backupFilterFilesList(files);
+    }
+  }
+
+  private File[] backupChunksList(File file) {
+    if (!file.exists() || !file.isDirectory()) return new File[0];
+    File[] chunks = file.listFiles();
+    if (chunks == null) {
+      return new File[0];
+    } else {
+      return backupFilterChunksList(chunks);
+    }
+  }
+
+  private File[] backupChunksList(String fileId) {
+    Path filepath = backupDir.resolve(makeBackupEntry(fileId));
+    if (Files.notExists(filepath)) return new File[0];
+
+    return backupChunksList(filepath.toFile());
+  }
+
+  @Override
+  public HashSet<String> files() {
+    File[] files = backupFilesList();
+    HashSet<String> set = new HashSet<>();
+
+    for (File file : files) {
+      set.add(extractFromBackupEntry(file.getName()));
+    }
+
+    return set;
+  }
+
+  @Override
+  public TreeSet<Integer> chunks(String fileId) {
+    File[] files = backupChunksList(fileId);
+    TreeSet<Integer> set = new TreeSet<>();
+
+    for (File file : files) {
+      set.add(extractFromChunkEntry(file.getName()));
+    }
+
+    return set;
+  }
+
+  /**
+   * Get total amount of disk space occupied by this backup file. Internal auxiliary.
+   *
+   * @param file A file object, presumably valid and inside the backup/ subdirectory
+   * @return The total amount of disk space, 0 if it does not exist or is not a folder.
+   */
+  private long fileSpace(File file) {
+    File[] chunks = backupChunksList(file);
+
+    long total = 0;
+    for (File chunk : chunks) total += chunk.length();
+    return total;
+  }
+
+  @Override
+  public long chunkSpace(String fileId, int chunkNo) {
+    File file = chunkPath(fileId, chunkNo).toFile();
+    if (!file.exists() || !file.isFile()) return -1;
+    return file.length();
+  }
+
+  @Override
+  public long fileSpace(String fileId) {
+    return fileSpace(backupDir.resolve(makeBackupEntry(fileId)).toFile());
+  }
+
+  @Override
+  public long totalSpace() {
+    File[] files = backupFilesList();
+
+    long total = 0;
+    for (File file : files) total += fileSpace(file);
+    return total;
+  }
+
+  @Override
+  public void close() {}
+}
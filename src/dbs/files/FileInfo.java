@@ -1,32 +1,68 @@
 package dbs.files;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 class FileInfo implements Serializable {
 
-  private final String fileId;
+  private static final long serialVersionUID = -5264618192150828644L;
 
   /**
-   * Maps the number of a file's chunk (greater or equal to 0) to the information of
-   * that chunk.
+   * How far beyond twice its number of chunks the array may grow for a new chunk. Chunks
+   * numbered further than that, e.g. by a malformed or hostile message, go to farChunks
+   * instead, so a single chunk number cannot have the array allocated up to it.
    */
-  final ConcurrentHashMap<Integer,ChunkInfo> fileChunks;
+  private static final int DENSE_SLACK = 1024;
+
+  /**
+   * The fields of the metadata files written with Java serialization by older peers,
+   * still read once to migrate them, and of the serialized form, which is unchanged.
+   */
+  private static final ObjectStreamField[] serialPersistentFields = {
+      new ObjectStreamField("fileId", String.class),
+      new ObjectStreamField("fileChunks", ConcurrentHashMap.class),
+      new ObjectStreamField("desiredReplicationDegree", Integer.class)
+  };
+
+  private String fileId;
+
+  /**
+   * The information of the file's chunks, indexed by chunk number, null for the chunks
+   * unknown. Chunk numbers are dense, from 0 up, so this takes a reference per chunk
+   * instead of a map entry and a boxed key. Grown and written with the lock held, and
+   * read without locking.
+   */
+  private transient volatile AtomicReferenceArray<ChunkInfo> fileChunks;
+
+  /**
+   * The information of the chunks numbered beyond fileChunks' length when they were
+   * added, moved to fileChunks once it grows past them. Null until needed.
+   */
+  private transient volatile ConcurrentHashMap<Integer,ChunkInfo> farChunks;
+
+  /**
+   * Number of non-null entries of fileChunks and farChunks.
+   */
+  private transient volatile int chunkCount;
 
   /**
    * The desired replication degree of that file.
    */
-  private Integer desiredReplicationDegree;
+  private volatile int desiredReplicationDegree;
 
   /**
    * Constructs a new object of the FileInfo class.
    */
   FileInfo(String fileId) {
-    this.fileId = fileId;
-    this.fileChunks = new ConcurrentHashMap<>();
-    this.desiredReplicationDegree = 0;
+    this(fileId, 0);
   }
 
   /**
@@ -37,10 +73,37 @@ class FileInfo implements Serializable {
    */
   FileInfo(String fileId, Integer desiredReplicationDegree) {
     this.fileId = fileId;
-    this.fileChunks = new ConcurrentHashMap<>();
+    this.fileChunks = new AtomicReferenceArray<>(0);
     this.desiredReplicationDegree = desiredReplicationDegree;
   }
 
+  private void readObject(ObjectInputStream in)
+      throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField fields = in.readFields();
+    this.fileId = (String) fields.get("fileId", null);
+    Integer desired = (Integer) fields.get("desiredReplicationDegree", null);
+    this.desiredReplicationDegree = desired == null ? 0 : desired;
+    this.fileChunks = new AtomicReferenceArray<>(0);
+
+    Map<?,?> chunks = (Map<?,?>) fields.get("fileChunks", null);
+    if (chunks == null) return;
+    for (Map.Entry<?,?> entry : new TreeMap<>(chunks).entrySet()) {
+      put((Integer) entry.getKey(), (ChunkInfo) entry.getValue());
+    }
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    ConcurrentHashMap<Integer,ChunkInfo> chunks = new ConcurrentHashMap<>();
+    for (ChunkInfo chunkInfo : chunkInfos()) {
+      chunks.put(chunkInfo.getChunkNumber(), chunkInfo);
+    }
+    ObjectOutputStream.PutField fields = out.putFields();
+    fields.put("fileId", fileId);
+    fields.put("fileChunks", chunks);
+    fields.put("desiredReplicationDegree", (Integer) desiredReplicationDegree);
+    out.writeFields();
+  }
+
   /**
    * Returns true if the map contains an entry for the given chunk and false otherwise.
    *
@@ -48,7 +111,7 @@ class FileInfo implements Serializable {
    * @return True if the map contains an entry for the given chunk and false otherwise.
    */
   public boolean hasChunk(Integer chunkNumber) {
-    return this.fileChunks.containsKey(chunkNumber);
+    return getChunkInfo(chunkNumber) != null;
   }
 
   /**
@@ -58,8 +121,21 @@ class FileInfo implements Serializable {
    * @return The information regarding the specified chunk or null if that information
    * doesn't exist.
    */
-  ChunkInfo getChunkInfo(Integer chunkNumber) {
-    return this.fileChunks.get(chunkNumber);
+  ChunkInfo getChunkInfo(int chunkNumber) {
+    AtomicReferenceArray<ChunkInfo> chunks = this.fileChunks;
+    if (chunkNumber < 0) return null;
+    if (chunkNumber < chunks.length()) {
+      ChunkInfo info = chunks.get(chunkNumber);
+      if (info != null) return info;
+    }
+    // Moved to the array after it was read above, if it grew since.
+    ConcurrentHashMap<Integer,ChunkInfo> far = this.farChunks;
+    if (far != null) {
+      ChunkInfo info = far.get(chunkNumber);
+      if (info != null) return info;
+    }
+    chunks = this.fileChunks;
+    return chunkNumber < chunks.length() ? chunks.get(chunkNumber) : null;
   }
 
   /**
@@ -67,9 +143,112 @@ class FileInfo implements Serializable {
    *
    * @param chunkNumber The number of the new chunk of that file.
    */
-  ChunkInfo addChunkInfo(Integer chunkNumber) {
-    return this.fileChunks.computeIfAbsent(chunkNumber,
-        n -> new ChunkInfo(this, chunkNumber));
+  ChunkInfo addChunkInfo(int chunkNumber) {
+    ChunkInfo info = getChunkInfo(chunkNumber);
+    if (info != null) return info;
+
+    synchronized (this) {
+      info = getChunkInfo(chunkNumber);
+      if (info == null) put(chunkNumber, info = new ChunkInfo(this, chunkNumber));
+      return info;
+    }
+  }
+
+  /**
+   * Set a chunk's entry, growing the array if the chunk is close enough to the chunks
+   * already known, or in farChunks otherwise. Must be called with the lock held, or
+   * while deserializing.
+   */
+  private void put(int chunkNumber, ChunkInfo info) {
+    if (chunkNumber < 0)
+      throw new IllegalArgumentException("Invalid chunk number " + chunkNumber);
+
+    AtomicReferenceArray<ChunkInfo> chunks = this.fileChunks;
+    if (chunkNumber >= chunks.length()) {
+      if ((long) chunkNumber >= 2L * chunkCount + DENSE_SLACK) {
+        if (farChunks == null) farChunks = new ConcurrentHashMap<>();
+        if (farChunks.put(chunkNumber, info) == null) ++chunkCount;
+        return;
+      }
+      grow(Math.max(chunkNumber + 1, Math.min(2 * chunks.length(),
+          2 * chunkCount + DENSE_SLACK)));
+      chunks = this.fileChunks;
+    }
+    if (chunks.getAndSet(chunkNumber, info) == null) ++chunkCount;
+  }
+
+  /**
+   * Replace the array by a longer one, and move to it the far chunks that now fit. The
+   * new array is published before they leave farChunks, so readers find them in either.
+   * Must be called with the lock held, or while deserializing.
+   */
+  private void grow(int length) {
+    AtomicReferenceArray<ChunkInfo> chunks = this.fileChunks;
+    AtomicReferenceArray<ChunkInfo> grown = new AtomicReferenceArray<>(length);
+    for (int i = 0; i < chunks.length(); ++i) grown.set(i, chunks.get(i));
+
+    ConcurrentHashMap<Integer,ChunkInfo> far = this.farChunks;
+    if (far == null) {
+      this.fileChunks = grown;
+      return;
+    }
+    for (Map.Entry<Integer,ChunkInfo> entry : far.entrySet()) {
+      if (entry.getKey() < length) grown.set(entry.getKey(), entry.getValue());
+    }
+    this.fileChunks = grown;
+    far.keySet().removeIf(chunkNumber -> chunkNumber < length);
+  }
+
+  /**
+   * Removes a chunk's entry, if it exists.
+   *
+   * @param chunkNumber The chunk's number.
+   */
+  synchronized void removeChunkInfo(int chunkNumber) {
+    AtomicReferenceArray<ChunkInfo> chunks = this.fileChunks;
+    if (chunkNumber < 0) return;
+    if (chunkNumber < chunks.length()) {
+      if (chunks.getAndSet(chunkNumber, null) != null) --chunkCount;
+    } else if (farChunks != null && farChunks.remove(chunkNumber) != null) {
+      --chunkCount;
+    }
+  }
+
+  /**
+   * @return The number of chunks of the file with an entry.
+   */
+  int chunkCount() {
+    return chunkCount;
+  }
+
+  /**
+   * @return The numbers of the chunks with an entry, in increasing order, when called.
+   */
+  int[] chunkNumbers() {
+    ArrayList<ChunkInfo> infos = chunkInfos();
+    int[] numbers = new int[infos.size()];
+    for (int i = 0; i < numbers.length; ++i) numbers[i] = infos.get(i).getChunkNumber();
+    return numbers;
+  }
+
+  /**
+   * @return The information of the chunks with an entry, by chunk number, when called.
+   */
+  ArrayList<ChunkInfo> chunkInfos() {
+    ConcurrentHashMap<Integer,ChunkInfo> far = this.farChunks;
+    AtomicReferenceArray<ChunkInfo> chunks = this.fileChunks;
+    ArrayList<ChunkInfo> infos = new ArrayList<>(chunkCount);
+    for (int i = 0; i < chunks.length(); ++i) {
+      ChunkInfo info = chunks.get(i);
+      if (info != null) infos.add(info);
+    }
+    if (far != null && !far.isEmpty()) {
+      // Those moved to the array meanwhile are already listed.
+      for (ChunkInfo info : new TreeMap<>(far).values()) {
+        if (info.getChunkNumber() >= chunks.length()) infos.add(info);
+      }
+    }
+    return infos;
   }
 
   /**
@@ -92,7 +271,8 @@ class FileInfo implements Serializable {
    * @return the new perceived replication degree of the chunk.
    */
   void removeBackupPeer(Integer chunkNumber, Long peerId) {
-    this.getChunkInfo(chunkNumber).removeBackupPeer(peerId);
+    ChunkInfo chunkInfo = this.getChunkInfo(chunkNumber);
+    if (chunkInfo != null) chunkInfo.removeBackupPeer(peerId);
   }
 
   /**
@@ -102,9 +282,8 @@ class FileInfo implements Serializable {
    *               given file
    */
   void removeBackupPeer(Long peerId) {
-    for (Map.Entry<Integer,ChunkInfo> integerChunkInfoEntry :
-        this.fileChunks.entrySet()) {
-      this.removeBackupPeer(integerChunkInfoEntry.getKey(), peerId);
+    for (ChunkInfo chunkInfo : this.chunkInfos()) {
+      chunkInfo.removeBackupPeer(peerId);
     }
   }
 
@@ -127,11 +306,8 @@ class FileInfo implements Serializable {
    * otherwise.
    */
   public boolean hasBackupPeers() {
-    Iterator it = this.fileChunks.entrySet().iterator();
-    while (it.hasNext()) {
-      Map.Entry pair = (Map.Entry) it.next();
-      if (((ChunkInfo) pair.getValue()).hasBackupPeers())
-        return true;
+    for (ChunkInfo chunkInfo : this.chunkInfos()) {
+      if (chunkInfo.hasBackupPeers()) return true;
     }
     return false;
   }
@@ -181,8 +357,8 @@ class FileInfo implements Serializable {
     string.append(' ').append(fileId).append('\n');
     string.append("   Desired Replication Degree: ");
     string.append(desiredReplicationDegree).append('\n');
-    for (Map.Entry<Integer, ChunkInfo> entry : this.fileChunks.entrySet()) {
-      string.append("     ").append(entry.getValue().toString()).append('\n');
+    for (ChunkInfo chunkInfo : this.chunkInfos()) {
+      string.append("     ").append(chunkInfo.toString()).append('\n');
     }
     return string.toString();
   }
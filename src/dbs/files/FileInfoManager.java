@@ -2,11 +2,15 @@ package dbs.files;
 
 import dbs.ChunkKey;
 import dbs.Configuration;
+import dbs.ErasureLayout;
 import dbs.Peer;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Level;
 
 public class FileInfoManager {
@@ -32,10 +36,37 @@ public class FileInfoManager {
    */
   private final ConcurrentHashMap<String,OwnFileInfo> pathnameMap;
 
+  /**
+   * Index of the chunks this peer is backing up and their sizes in bytes. Built once
+   * from the backup subsystem by cleanup() and kept up to date by storeChunk() and
+   * deleteChunk(), so presence and size checks never touch the disk.
+   */
+  private final ConcurrentHashMap<ChunkKey,Long> storedChunks = new ConcurrentHashMap<>();
+
+  /**
+   * The chunks being written by storeChunk(), not yet in storedChunks. Completed with
+   * whether the write succeeded, so a concurrent store of the same chunk waits for it
+   * instead of writing it again or acknowledging it before it is on disk.
+   */
+  private final ConcurrentHashMap<ChunkKey,CompletableFuture<Boolean>> pendingChunks =
+      new ConcurrentHashMap<>();
+
   private final AtomicLong usedSpace = new AtomicLong(0);
 
+  /**
+   * The chunks in storedChunks whose file's metadata is known, in reclaim order. Changed
+   * with the journal's lock held, along with the metadata it derives from.
+   */
+  private final ReclaimIndex reclaimIndex = new ReclaimIndex();
+
   private Set<ChunkKey> missingChunks;
 
+  /**
+   * Journal of every change to ownFilesInfo and otherFilesInfo, replayed on top of their
+   * last snapshot when the peer starts. See MetadataJournal.
+   */
+  private final MetadataJournal journal;
+
   public static FileInfoManager getInstance() {
     return manager;
   }
@@ -54,17 +85,24 @@ public class FileInfoManager {
     if (this.ownFilesInfo == null) this.ownFilesInfo = new ConcurrentHashMap<>();
     if (this.otherFilesInfo == null) this.otherFilesInfo = new ConcurrentHashMap<>();
 
+    this.pathnameMap = new ConcurrentHashMap<>();
+    this.journal = FilesManager.getInstance().openJournal(this::storeState);
+    for (String record : journal.read()) replay(record);
+
     cleanup();
-    usedSpace.set(FilesManager.getInstance().backupTotalSpace());
 
     // Populate pathname Map.
-    this.pathnameMap = new ConcurrentHashMap<>();
     for (Map.Entry<String,OwnFileInfo> entry : ownFilesInfo.entrySet()) {
       OwnFileInfo info = entry.getValue();
       pathnameMap.put(info.getPathname(), info);
     }
 
-    Runtime.getRuntime().addShutdownHook(new Thread(this::storeState));
+    for (ChunkKey key : storedChunks.keySet()) reindex(key.getFileId(), key.getChunkNo());
+
+    // Fold the journal replayed and the cleanup into a new snapshot.
+    journal.start();
+
+    Runtime.getRuntime().addShutdownHook(new Thread(journal::close));
   }
 
   /**
@@ -91,40 +129,49 @@ public class FileInfoManager {
   private void cleanup() {
     missingChunks = new HashSet<>();
 
+    indexStoredChunks();
+
     findMissingMetadata();
 
     findMissingData();
   }
 
-  private void findMissingMetadata() {
+  /**
+   * Fill the stored chunks index from the backup subsystem, and the used space with it.
+   * This is the only time the chunks' sizes are read from disk.
+   */
+  private void indexStoredChunks() {
     FilesManager manager = FilesManager.getInstance();
     HashMap<String,TreeSet<Integer>> chunkData = manager.backupAllChunksMap();
+    long total = 0;
 
-    // Handle case 2
     for (Map.Entry<String,TreeSet<Integer>> entry : chunkData.entrySet()) {
       String fileId = entry.getKey();
-      TreeSet<Integer> numbers = entry.getValue();
+      for (Integer chunkNumber : entry.getValue()) {
+        long size = manager.backupChunkTotalSpace(fileId, chunkNumber);
+        if (size == -1) continue;
+        storedChunks.put(new ChunkKey(fileId, chunkNumber), size);
+        total += size;
+      }
+    }
 
-      FileInfo info = otherFilesInfo.get(fileId);
+    usedSpace.set(total);
+  }
 
-      if (info == null) {
-        // Add all chunks to the missingChunks set
-        for (Integer chunkNumber : numbers) {
-          missingChunks.add(new ChunkKey(fileId, chunkNumber));
-        }
-      } else {
-        // Check each chunk number
-        for (Integer chunkNumber : numbers) {
-          if (!info.hasChunk(chunkNumber)) {
-            missingChunks.add(new ChunkKey(fileId, chunkNumber));
-          }
-        }
+  private void findMissingMetadata() {
+    // Handle case 2
+    for (ChunkKey key : storedChunks.keySet()) {
+      FileInfo info = otherFilesInfo.get(key.getFileId());
+
+      if (info == null || !info.hasChunk(key.getChunkNo())) {
+        missingChunks.add(key);
       }
     }
   }
 
   private void findMissingData() {
-    FilesManager manager = FilesManager.getInstance();
+    HashSet<String> storedFiles = new HashSet<>();
+    for (ChunkKey key : storedChunks.keySet()) storedFiles.add(key.getFileId());
 
     Set<Map.Entry<String,FileInfo>> filesInfoSet = otherFilesInfo.entrySet();
     Iterator<Map.Entry<String,FileInfo>> filesIterator = filesInfoSet.iterator();
@@ -134,11 +181,12 @@ public class FileInfoManager {
       String fileId = file.getKey();
       FileInfo fileInfo = file.getValue();
 
-      if (!manager.hasBackupFolder(fileId)) {
+      if (!storedFiles.contains(fileId)) {
         filesIterator.remove();
       } else {
-        Set<Integer> chunkSet = fileInfo.fileChunks.keySet();
-        chunkSet.removeIf(chunkNumber -> !manager.hasChunk(fileId, chunkNumber));
+        for (int chunkNumber : fileInfo.chunkNumbers()) {
+          if (!hasChunk(fileId, chunkNumber)) fileInfo.removeChunkInfo(chunkNumber);
+        }
       }
     }
   }
@@ -222,7 +270,33 @@ public class FileInfoManager {
    */
   public void addOwnFileInfo(String pathname, String fileId,
                              int numberOfChunks, int desired) {
-    OwnFileInfo info = new OwnFileInfo(pathname, fileId, numberOfChunks, desired);
+    addOwnFileInfo(pathname, fileId, numberOfChunks, desired, null, null);
+  }
+
+  /**
+   * Adds a new entry to the ownFilesInfo map, for a file backed up with erasure coding.
+   *
+   * @param pathname       The original path name.
+   * @param fileId         The id of the new file.
+   * @param numberOfChunks The file's chunk count, parity chunks excluded
+   * @param layout         The file's erasure layout, or null
+   * @param length         The file's length, or null
+   */
+  public void addOwnFileInfo(String pathname, String fileId, int numberOfChunks,
+                             int desired, ErasureLayout layout, Long length) {
+    synchronized (journal) {
+      putOwnFileInfo(pathname, fileId, numberOfChunks, desired, layout, length);
+      journal.append("OWN " + fileId + " " + numberOfChunks + " " + desired + " "
+          + (layout == null ? "0 0" : layout.getDataShards() + " "
+          + layout.getParityShards()) + " " + (length == null ? -1 : length) + " "
+          + pathname);
+    }
+  }
+
+  private void putOwnFileInfo(String pathname, String fileId, int numberOfChunks,
+                              int desired, ErasureLayout layout, Long length) {
+    OwnFileInfo info = new OwnFileInfo(pathname, fileId, numberOfChunks, desired, layout,
+        length);
 
     synchronized (pathnameMap) {
       this.ownFilesInfo.put(fileId, info);
@@ -236,10 +310,21 @@ public class FileInfoManager {
    * @param fileId The id of the new file.
    */
   public void addOtherFileInfo(String fileId, int desired) {
-    this.otherFilesInfo.computeIfAbsent(fileId, k -> new FileInfo(fileId, desired));
+    synchronized (journal) {
+      this.otherFilesInfo.computeIfAbsent(fileId, k -> new FileInfo(fileId, desired));
+      journal.append("OTHER " + fileId + " " + desired);
+      reindex(fileId);
+    }
   }
 
   public void deleteOwnFileInfo(String fileId) {
+    synchronized (journal) {
+      removeOwnFileInfo(fileId);
+      journal.append("UNOWN " + fileId);
+    }
+  }
+
+  private void removeOwnFileInfo(String fileId) {
     synchronized (pathnameMap) {
       OwnFileInfo info = this.ownFilesInfo.remove(fileId);
       if (info != null) pathnameMap.remove(info.getPathname());
@@ -247,14 +332,20 @@ public class FileInfoManager {
   }
 
   public void deleteOtherFile(String fileId) {
-    FileInfo info = otherFilesInfo.remove(fileId);
-    if (info == null) return;
+    FileInfo info;
+    synchronized (journal) {
+      info = otherFilesInfo.remove(fileId);
+      if (info == null) return;
+      journal.append("DELETE " + fileId);
+      for (int chunkNo : info.chunkNumbers()) {
+        reclaimIndex.remove(new ChunkKey(fileId, chunkNo));
+      }
+    }
 
-    for (Map.Entry<Integer,ChunkInfo> chunkInfo : info.fileChunks.entrySet()) {
-      int chunkNo = chunkInfo.getKey();
-      long size = FilesManager.getInstance().backupChunkTotalSpace(fileId, chunkNo);
-      if (size == -1) continue;
-      if (size > 0) usedSpace.addAndGet(-size);
+    for (int chunkNo : info.chunkNumbers()) {
+      Long size = storedChunks.remove(new ChunkKey(fileId, chunkNo));
+      if (size == null) continue;
+      usedSpace.addAndGet(-size);
       FilesManager.getInstance().deleteChunk(fileId, chunkNo);
     }
     FilesManager.getInstance().deleteBackupFile(fileId);
@@ -270,7 +361,18 @@ public class FileInfoManager {
    * @return True if the given chunk is backed up by this peer and false otherwise.
    */
   public boolean hasChunk(String fileId, Integer chunkNumber) {
-    return FilesManager.getInstance().hasChunk(fileId, chunkNumber);
+    return storedChunks.containsKey(new ChunkKey(fileId, chunkNumber));
+  }
+
+  /**
+   * Returns the size of a chunk backed up by this peer.
+   *
+   * @param fileId      The file's id.
+   * @param chunkNumber The chunk's number.
+   * @return The chunk's size in bytes, or -1 if it is not backed up by this peer.
+   */
+  public long getChunkSize(String fileId, Integer chunkNumber) {
+    return storedChunks.getOrDefault(new ChunkKey(fileId, chunkNumber), -1L);
   }
 
   /**
@@ -281,25 +383,83 @@ public class FileInfoManager {
    * @param chunk       The chunk's content
    */
   public boolean storeChunk(String fileId, Integer chunkNumber, byte[] chunk) {
-    FileInfo info = this.otherFilesInfo.computeIfAbsent(fileId, FileInfo::new);
-    if (FilesManager.getInstance().hasChunk(fileId, chunkNumber)) return true;
+    return storeChunk(fileId, chunkNumber, ByteBuffer.wrap(chunk));
+  }
+
+  /**
+   * Stores a new chunk straight from a buffer, without copying it to an array first.
+   *
+   * @param fileId      The file's id
+   * @param chunkNumber The chunk's number
+   * @param chunk       The chunk's content, from its position to its limit
+   */
+  public boolean storeChunk(String fileId, Integer chunkNumber, ByteBuffer chunk) {
+    return storeChunk(fileId, chunkNumber, chunk.remaining(),
+        () -> FilesManager.getInstance().putChunk(fileId, chunkNumber, chunk));
+  }
+
+  /**
+   * Stores a new chunk as a reference to identical content this peer already stores,
+   * without receiving it (deduplication only). If the chunk already exists, we continue.
+   *
+   * @param fileId      The file's id
+   * @param chunkNumber The chunk's number
+   * @param digest      The chunk content's SHA-256 digest, in hex
+   * @return false if no identical content is stored, or there is no room for the chunk.
+   */
+  public boolean storeReference(String fileId, Integer chunkNumber, String digest) {
+    if (hasChunk(fileId, chunkNumber)) return true;
+    long size = FilesManager.getInstance().digestSpace(digest);
+    if (size < 0) return false;
+
+    return storeChunk(fileId, chunkNumber, size,
+        () -> FilesManager.getInstance().putReference(fileId, chunkNumber, digest));
+  }
 
-    // NOTE: Annoying race here... ...
-    long size = FilesManager.getInstance().backupChunkTotalSpace(fileId, chunkNumber);
-    long increment = chunk.length - (size == -1 ? 0 : size);
+  /**
+   * Account for a new chunk of the given size and have the backup subsystem write it.
+   * A chunk stored by reference takes its full size too, as deleting it may not free
+   * any space. The chunk is only published in storedChunks once it is written.
+   */
+  private boolean storeChunk(String fileId, Integer chunkNumber, long size,
+                             BooleanSupplier put) {
+    FileInfo info = this.otherFilesInfo.computeIfAbsent(fileId, FileInfo::new);
+    ChunkKey key = new ChunkKey(fileId, chunkNumber);
+    if (storedChunks.containsKey(key)) return true;
+
+    // Claim the chunk, so concurrent PUTCHUNKs store it only once and wait for the write.
+    CompletableFuture<Boolean> claim = new CompletableFuture<>();
+    CompletableFuture<Boolean> pending = pendingChunks.putIfAbsent(key, claim);
+    if (pending != null) return pending.join();
+
+    boolean reserved = false, stored = false;
+    try {
+      // It may have been published between the check above and the claim.
+      if (storedChunks.containsKey(key)) {
+        stored = true;
+        return true;
+      }
 
-    if (increment > 0) {
-      long newTotal = usedSpace.addAndGet(increment);
-      if (newTotal > Configuration.storageCapacityKB * 1000) {
-        usedSpace.addAndGet(-increment);
-        return false;
+      reserved = true;
+      long newTotal = usedSpace.addAndGet(size);
+      if (newTotal > Configuration.storageCapacityKB * 1000) return false;
+      if (!put.getAsBoolean()) return false;
+
+      long self = Peer.getInstance().getId();
+      synchronized (journal) {
+        storedChunks.put(key, size);
+        info.addBackupPeer(chunkNumber, self);
+        journal.append("ADD " + fileId + " " + chunkNumber + " " + self);
+        reindex(fileId, chunkNumber);
       }
+      reserved = false;
+      stored = true;
+      return true;
+    } finally {
+      if (reserved) usedSpace.addAndGet(-size);
+      pendingChunks.remove(key, claim);
+      claim.complete(stored);
     }
-
-    info.addChunkInfo(chunkNumber);
-    info.addBackupPeer(chunkNumber, Peer.getInstance().getId());
-    FilesManager.getInstance().putChunk(fileId, chunkNumber, chunk);
-    return true;
   }
 
   /**
@@ -311,10 +471,17 @@ public class FileInfoManager {
   public void deleteChunk(String fileId, Integer chunkNumber) {
     FileInfo info = this.otherFilesInfo.get(fileId);
     if (info == null) return;
-    info.removeBackupPeer(chunkNumber, Peer.getInstance().getId());
+    long self = Peer.getInstance().getId();
+    Long size;
+    synchronized (journal) {
+      info.removeBackupPeer(chunkNumber, self);
+      journal.append("REMOVE " + fileId + " " + chunkNumber + " " + self);
+      ChunkKey key = new ChunkKey(fileId, chunkNumber);
+      size = storedChunks.remove(key);
+      reclaimIndex.remove(key);
+    }
 
-    long size = FilesManager.getInstance().backupChunkTotalSpace(fileId, chunkNumber);
-    if (size == -1) return;
+    if (size == null) return;
     usedSpace.addAndGet(-size);
     FilesManager.getInstance().deleteChunk(fileId, chunkNumber);
   }
@@ -322,14 +489,23 @@ public class FileInfoManager {
   // ***** Methods concerning replication degrees
 
   /**
-   * Updates the desired replication degree of a file
+   * Updates the desired replication degree of a file. Called for every chunk stored, so
+   * nothing is journaled or reindexed unless the degree actually changes.
    *
    * @param fileId  The file's id.
    * @param desired The desired replication degree of that file.
    */
   public void setDesiredReplicationDegree(String fileId, Integer desired) {
-    FileInfo info = this.otherFilesInfo.computeIfAbsent(fileId, FileInfo::new);
-    info.setDesiredReplicationDegree(desired);
+    FileInfo known = this.otherFilesInfo.get(fileId);
+    if (known != null && known.getDesiredReplicationDegree() == desired) return;
+
+    synchronized (journal) {
+      FileInfo info = this.otherFilesInfo.computeIfAbsent(fileId, FileInfo::new);
+      if (info.getDesiredReplicationDegree() == desired) return;
+      info.setDesiredReplicationDegree(desired);
+      journal.append("DESIRED " + fileId + " " + desired);
+      reindex(fileId);
+    }
   }
 
   /**
@@ -411,6 +587,14 @@ public class FileInfoManager {
    * @param peerId      The new backup peer's id.
    */
   public void addBackupPeer(String fileId, Integer chunkNumber, Long peerId) {
+    synchronized (journal) {
+      putBackupPeer(fileId, chunkNumber, peerId);
+      journal.append("ADD " + fileId + " " + chunkNumber + " " + peerId);
+      reindex(fileId, chunkNumber);
+    }
+  }
+
+  private void putBackupPeer(String fileId, Integer chunkNumber, Long peerId) {
     // We do not know if this fileId is ours or someone else's. We must check that.
     FileInfo own = this.ownFilesInfo.get(fileId);
 
@@ -424,6 +608,32 @@ public class FileInfoManager {
     }
   }
 
+  /**
+   * Adds a backup peer to many chunks of the same file at once, e.g. for a STOREDSET
+   * message, looking up the file's info only once.
+   *
+   * @param fileId       The file's id.
+   * @param chunkNumbers The chunks' numbers.
+   * @param peerId       The id of the new peer to backup those chunks.
+   */
+  public void addBackupPeer(String fileId, int[] chunkNumbers, Long peerId) {
+    StringBuilder record = new StringBuilder();
+    for (int chunkNumber : chunkNumbers) {
+      if (record.length() > 0) record.append('\n');
+      record.append("ADD ").append(fileId).append(' ').append(chunkNumber).append(' ')
+          .append(peerId);
+    }
+
+    synchronized (journal) {
+      FileInfo info = this.ownFilesInfo.get(fileId);
+      if (info == null) info = this.otherFilesInfo.computeIfAbsent(fileId, FileInfo::new);
+
+      for (int chunkNumber : chunkNumbers) info.addBackupPeer(chunkNumber, peerId);
+      if (chunkNumbers.length > 0) journal.append(record.toString());
+      for (int chunkNumber : chunkNumbers) reindex(fileId, chunkNumber);
+    }
+  }
+
   /**
    * Removes a backup peer from the given chunk (identified by its number and the id of
    * the file to which it belongs).
@@ -433,6 +643,14 @@ public class FileInfoManager {
    * @param peerId      The id of the peer which used to have a backup of that chunk.
    */
   public void removeBackupPeer(String fileId, Integer chunkNumber, Long peerId) {
+    synchronized (journal) {
+      dropBackupPeer(fileId, chunkNumber, peerId);
+      journal.append("REMOVE " + fileId + " " + chunkNumber + " " + peerId);
+      reindex(fileId, chunkNumber);
+    }
+  }
+
+  private void dropBackupPeer(String fileId, Integer chunkNumber, Long peerId) {
     // We do not know if this fileId is ours or someone else's. We must check that.
     FileInfo own = this.ownFilesInfo.get(fileId);
 
@@ -454,6 +672,14 @@ public class FileInfoManager {
    *               given file.
    */
   public void removeBackupPeer(String fileId, Long peerId) {
+    synchronized (journal) {
+      dropBackupPeer(fileId, peerId);
+      journal.append("REMOVEALL " + fileId + " " + peerId);
+      reindex(fileId);
+    }
+  }
+
+  private void dropBackupPeer(String fileId, Long peerId) {
     // We do not know if this fileId is ours or someone else's. We must check that.
     FileInfo own = this.ownFilesInfo.get(fileId);
 
@@ -480,14 +706,46 @@ public class FileInfoManager {
   }
 
   // ***** Methods concerning storage capacity
+
+  /**
+   * Put a chunk in its place in the reclaim index, or take it out if this peer does not
+   * store it or its file's metadata is unknown. Must be called with the journal's lock
+   * held, or before the peer starts.
+   */
+  private void reindex(String fileId, int chunkNumber) {
+    ChunkKey key = new ChunkKey(fileId, chunkNumber);
+    FileInfo info = this.otherFilesInfo.get(fileId);
+    if (info == null || !info.hasChunk(chunkNumber) || !storedChunks.containsKey(key)) {
+      reclaimIndex.remove(key);
+    } else {
+      reclaimIndex.update(key, info.getChunkReplicationDegree(chunkNumber),
+          info.getDesiredReplicationDegree());
+    }
+  }
+
+  /**
+   * Reindex every chunk of a file, e.g. after its desired replication degree changed.
+   */
+  private void reindex(String fileId) {
+    FileInfo info = this.otherFilesInfo.get(fileId);
+    if (info == null) return;
+    for (int chunkNumber : info.chunkNumbers()) reindex(fileId, chunkNumber);
+  }
+
+  /**
+   * Select the chunks to give up so that the used space fits in the storage capacity,
+   * walking the reclaim index from its most replicated chunks. Only concurrent calls to
+   * this method wait for each other.
+   *
+   * @return The chunks to give up, or null if the used space already fits.
+   */
   public synchronized TreeSet<ChunkKey> trimBackup() {
     long maxDiskSpaceKB = Configuration.storageCapacityKB;
-    long maxDiskSpace = maxDiskSpaceKB * 1000; // 9000000
-    long used = usedSpace.get(); // 10000000
+    long maxDiskSpace = maxDiskSpaceKB * 1000;
+    long used = usedSpace.get();
     long usedKB = used / 1000;
 
-    System.out.println("maxDiskSpace: " + maxDiskSpace);
-    System.out.println("used: " + used);
+    Peer.log("Trimming backup: " + used + " bytes used of " + maxDiskSpace, Level.FINE);
 
     // The used storage is lower than the maximum!
     if (used <= maxDiskSpace) {
@@ -497,25 +755,38 @@ public class FileInfoManager {
       return null;
     }
 
-    // Get a map of all chunks.
-    TreeSet<ChunkInfo> set = getChunkSet();
-    TreeSet<ChunkKey> filtered = new TreeSet<>();
+    return selectVictims(reclaimIndex.victims(), used - maxDiskSpace);
+  }
 
-    long recoverTotal = used - maxDiskSpace;
+  /**
+   * Select over-replicated chunks to give up ahead of time, i.e. chunks that would
+   * still be replicated at least to their desired degree without this peer (background
+   * reclaim only). Concurrent calls, and calls to trimBackup(), wait for each other.
+   *
+   * @param recoverTotal The number of bytes to free
+   * @return The chunks to give up, possibly fewer than needed, or none.
+   */
+  public synchronized TreeSet<ChunkKey> trimSurplus(long recoverTotal) {
+    return selectVictims(reclaimIndex.surplusVictims(), recoverTotal);
+  }
+
+  /**
+   * @return The first victims that free at least recoverTotal bytes, or all of them.
+   */
+  private TreeSet<ChunkKey> selectVictims(Iterable<ChunkKey> victims, long recoverTotal) {
+    TreeSet<ChunkKey> filtered = new TreeSet<>();
     long total = 0;
 
-    for (ChunkInfo chunkInfo : set) {
-      String fileId = chunkInfo.getFileId();
-      int chunkNumber = chunkInfo.getChunkNumber();
-      long length = FilesManager.getInstance().backupChunkTotalSpace(fileId, chunkNumber);
+    for (ChunkKey key : victims) {
+      if (total >= recoverTotal) break;
+      long length = getChunkSize(key.getFileId(), key.getChunkNo());
+      if (length == -1) continue;
 
       total += length;
-      filtered.add(chunkInfo.getKey());
-
-      // Check if we have selected enough chunks for removal.
-      if (total >= recoverTotal) break;
+      filtered.add(key);
     }
 
+    if (filtered.isEmpty()) return filtered;
     long totalKB = total / 1000;
 
     Peer.log("Removing " + filtered.size() + " external chunks to reclaim memory space." +
@@ -524,21 +795,81 @@ public class FileInfoManager {
     return filtered;
   }
 
-  private TreeSet<ChunkInfo> getChunkSet() {
-    TreeSet<ChunkInfo> set = new TreeSet<>(new ChunkInfo.ComparisonReplication());
-
-    for (FileInfo file : otherFilesInfo.values()) {
-      set.addAll(file.fileChunks.values());
-    }
-
-    System.out.println("Set size: " + set.size());
+  /**
+   * @return The space taken by the chunks this peer backs up, in bytes.
+   */
+  public long getUsedSpace() {
+    return usedSpace.get();
+  }
 
-    return set;
+  /**
+   * Write a snapshot of the metadata, taken while changes go on. See MetadataJournal.
+   *
+   * @return false if either metadata file could not be written.
+   */
+  private boolean storeState() {
+    return FilesManager.getInstance().writeOwnFilesInfo(ownFilesInfo)
+        & FilesManager.getInstance().writeOtherFilesInfo(otherFilesInfo);
   }
 
-  private void storeState() {
-    FilesManager.getInstance().writeOwnFilesInfo(ownFilesInfo);
-    FilesManager.getInstance().writeOtherFilesInfo(otherFilesInfo);
+  /**
+   * Apply one record of the metadata journal, one of
+   *
+   *   OWN FILEID CHUNKS DESIRED K M LENGTH PATHNAME
+   *   UNOWN FILEID
+   *   OTHER FILEID DESIRED
+   *   DESIRED FILEID DESIRED
+   *   DELETE FILEID
+   *   ADD FILEID CHUNKNO PEERID
+   *   REMOVE FILEID CHUNKNO PEERID
+   *   REMOVEALL FILEID PEERID
+   *
+   * where K = M = 0 and LENGTH = -1 for files backed up without erasure coding.
+   * Malformed records, e.g. one torn by a crash, are skipped.
+   */
+  private void replay(String record) {
+    String[] fields = record.split(" ", 8);
+    try {
+      switch (fields[0]) {
+        case "OWN": {
+          int chunks = Integer.parseInt(fields[2]), k = Integer.parseInt(fields[4]);
+          long length = Long.parseLong(fields[6]);
+          ErasureLayout layout = k == 0 ? null
+              : new ErasureLayout(k, Integer.parseInt(fields[5]), chunks);
+          putOwnFileInfo(fields[7], fields[1], chunks, Integer.parseInt(fields[3]), layout,
+              length == -1 ? null : length);
+          break;
+        }
+        case "UNOWN":
+          removeOwnFileInfo(fields[1]);
+          break;
+        case "OTHER": {
+          int desired = Integer.parseInt(fields[2]);
+          otherFilesInfo.computeIfAbsent(fields[1], k -> new FileInfo(k, desired));
+          break;
+        }
+        case "DESIRED":
+          otherFilesInfo.computeIfAbsent(fields[1], FileInfo::new)
+              .setDesiredReplicationDegree(Integer.parseInt(fields[2]));
+          break;
+        case "DELETE":
+          otherFilesInfo.remove(fields[1]);
+          break;
+        case "ADD":
+          putBackupPeer(fields[1], Integer.parseInt(fields[2]), Long.parseLong(fields[3]));
+          break;
+        case "REMOVE":
+          dropBackupPeer(fields[1], Integer.parseInt(fields[2]), Long.parseLong(fields[3]));
+          break;
+        case "REMOVEALL":
+          dropBackupPeer(fields[1], Long.parseLong(fields[2]));
+          break;
+        default:
+          Peer.log("Skipped metadata journal record " + record, Level.WARNING);
+      }
+    } catch (RuntimeException e) {
+      Peer.log("Skipped metadata journal record " + record, Level.WARNING);
+    }
   }
 
   /**
@@ -4,27 +4,28 @@ import dbs.Configuration;
 import dbs.Peer;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Level;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public final class FilesManager {
 
   private static FilesManager manager;
 
-  private final Path backupDir;
   private final Path restoredDir;
   private final Path filesinfoDir;
-  private final Pattern backupPattern;
-  private final Pattern chunkPattern;
+  private final ChunkStore store;
+  private final DedupChunkStore dedup;
 
   public static FilesManager getInstance() {
     return manager;
@@ -34,14 +35,6 @@ public final class FilesManager {
     return manager == null ? (manager = new FilesManager()) : manager;
   }
 
-  private static String chk(String fileId, int chunkNo) {
-    return "chunk #" + chunkNo + " of file " + id(fileId);
-  }
-
-  private static String id(String fileId) {
-    return fileId.substring(0, 10) + "..";
-  }
-
   private static byte[] concatenateChunks(byte[][] chunks) {
     int length = 0;
     for (byte[] chunk : chunks) length += chunk.length;
@@ -70,48 +63,6 @@ public final class FilesManager {
     return file.delete();
   }
 
-  private static boolean deleteDirectory(File directory) {
-    if (directory == null) return true;
-    if (!directory.isDirectory()) return false;
-    File[] files = directory.listFiles();
-    if (files != null) {
-      for (File file : files) {
-        file.delete();
-      }
-    }
-    return directory.delete();
-  }
-
-  private String makeBackupEntry(String fileId) {
-    return Configuration.entryPrefix + fileId;
-  }
-
-  private String extractFromBackupEntry(String backupFilename) {
-    Matcher matcher = backupPattern.matcher(backupFilename);
-    if (!matcher.matches()) return null;
-
-    return matcher.group(1);
-  }
-
-  private boolean validBackupEntry(String backupFilename) {
-    return backupPattern.matcher(backupFilename).matches();
-  }
-
-  private String makeChunkEntry(int chunkNo) {
-    return Configuration.chunkPrefix + chunkNo;
-  }
-
-  private int extractFromChunkEntry(String chunkFilename) {
-    Matcher matcher = chunkPattern.matcher(chunkFilename);
-    if (!matcher.matches()) return -1;
-
-    return Integer.parseInt(matcher.group(1));
-  }
-
-  private boolean validChunkEntry(String chunkFilename) {
-    return chunkPattern.matcher(chunkFilename).matches();
-  }
-
   /**
    * Constructs a files manager for a peer's id and config.
    *
@@ -131,7 +82,7 @@ public final class FilesManager {
 
     // dbs/peer-ID/backup/
     path = peerDir.resolve(Configuration.backupDir);
-    backupDir = Files.createDirectories(path);
+    Path backupDir = Files.createDirectories(path);
 
     // dbs/peer-ID/restored/
     path = peerDir.resolve(Configuration.restoredDir);
@@ -141,15 +92,36 @@ public final class FilesManager {
     path = peerDir.resolve(Configuration.filesinfoDir);
     filesinfoDir = Files.createDirectories(path);
 
-    // prefix[FILEID]
-    String backupStr = Pattern.quote(Configuration.entryPrefix) + "([0-9a-fA-F]{64})";
-    backupPattern = Pattern.compile(backupStr);
+    ChunkStore chunks = openChunkStore(backupDir);
 
-    // prefix[CHUNKNO]
-    String chunkStr = Pattern.quote(Configuration.chunkPrefix) + "([0-9]+)";
-    chunkPattern = Pattern.compile(chunkStr);
+    if (Configuration.enhancedPeer && Configuration.deduplication) {
+      // dbs/peer-ID/backup/contents/
+      path = backupDir.resolve(Configuration.contentsDir);
+      ChunkStore contents = openChunkStore(Files.createDirectories(path));
+      dedup = new DedupChunkStore(chunks, contents, backupDir);
+      store = dedup;
+    } else {
+      dedup = null;
+      store = chunks;
+    }
+
+    Runtime.getRuntime().addShutdownHook(new Thread(this::closeStore));
+  }
+
+  private static ChunkStore openChunkStore(Path dir) throws IOException {
+    if (Configuration.segmentChunkStore) {
+      return new SegmentChunkStore(dir);
+    } else {
+      return new DirectoryChunkStore(dir);
+    }
+  }
 
-    //backupSpace = (backupTotalSpace());
+  private void closeStore() {
+    try {
+      store.close();
+    } catch (IOException e) {
+      Peer.log("Failed to close the chunk store", e, Level.SEVERE);
+    }
   }
 
   /**
@@ -159,8 +131,7 @@ public final class FilesManager {
    * @return true if the folder exists, and false otherwise.
    */
   public boolean hasBackupFolder(String fileId) {
-    Path filepath = backupDir.resolve(makeBackupEntry(fileId));
-    return Files.exists(filepath) && Files.isDirectory(filepath);
+    return store.hasFile(fileId);
   }
 
   /**
@@ -171,8 +142,7 @@ public final class FilesManager {
    * otherwise.
    */
   public boolean deleteBackupFile(String fileId) {
-    Path filepath = backupDir.resolve(makeBackupEntry(fileId));
-    return deleteDirectory(filepath.toFile());
+    return store.deleteFile(fileId);
   }
 
   /**
@@ -183,9 +153,7 @@ public final class FilesManager {
    * @return true if the file exists, and false otherwise.
    */
   public boolean hasChunk(String fileId, int chunkNo) {
-    Path filepath = backupDir.resolve(makeBackupEntry(fileId));
-    Path chunkpath = filepath.resolve(makeChunkEntry(chunkNo));
-    return Files.exists(chunkpath) && Files.isRegularFile(chunkpath);
+    return store.hasChunk(fileId, chunkNo);
   }
 
   /**
@@ -198,15 +166,22 @@ public final class FilesManager {
    * read.
    */
   public byte[] getChunk(String fileId, int chunkNo) {
-    try {
-      Path filepath = backupDir.resolve(makeBackupEntry(fileId));
-      Path chunkpath = filepath.resolve(makeChunkEntry(chunkNo));
-      if (Files.notExists(chunkpath)) return null;
-      return Files.readAllBytes(chunkpath);
-    } catch (IOException e) {
-      Peer.log("Failed to get " + chk(fileId, chunkNo), e, Level.WARNING);
-      return null;
-    }
+    return store.getChunk(fileId, chunkNo);
+  }
+
+  /**
+   * Writes the content of this chunk to a channel, e.g. a socket, zero-copy where the
+   * chunk store allows it.
+   *
+   * @param fileId  The file id
+   * @param chunkNo The chunk number
+   * @param target  The channel to write the chunk to
+   * @return The chunk's size in bytes, or -1 if it does not exist.
+   * @throws IOException If the chunk could not be read or written to the channel.
+   */
+  public long transferChunk(String fileId, int chunkNo, WritableByteChannel target)
+      throws IOException {
+    return store.transferChunk(fileId, chunkNo, target);
   }
 
   /**
@@ -219,16 +194,45 @@ public final class FilesManager {
    * @return true if the file was successfully written, false otherwise
    */
   public boolean putChunk(String fileId, int chunkNo, byte[] chunk) {
-    try {
-      Path path = backupDir.resolve(makeBackupEntry(fileId));
-      Path filepath = Files.createDirectories(path);
-      Path chunkpath = filepath.resolve(makeChunkEntry(chunkNo));
-      Files.write(chunkpath, chunk);
-      return true;
-    } catch (IOException e) {
-      Peer.log("Failed to put " + chk(fileId, chunkNo), e, Level.WARNING);
-      return false;
-    }
+    return putChunk(fileId, chunkNo, ByteBuffer.wrap(chunk));
+  }
+
+  /**
+   * Stores a new chunk straight from a buffer, e.g. the body view of a received
+   * message. The buffer's position is not changed.
+   *
+   * @param fileId  The file id
+   * @param chunkNo The chunk number
+   * @param chunk   The chunk content, from its position to its limit
+   * @return true if the file was successfully written, false otherwise
+   */
+  public boolean putChunk(String fileId, int chunkNo, ByteBuffer chunk) {
+    return store.putChunk(fileId, chunkNo, chunk);
+  }
+
+  /**
+   * Returns the size of the chunk content with this digest, if this peer stores it.
+   *
+   * @param digest The content's SHA-256 digest, in hex
+   * @return The content's size in bytes, or -1 if it is not stored or the chunk store
+   * does not deduplicate.
+   */
+  public long digestSpace(String digest) {
+    return dedup == null ? -1 : dedup.digestSpace(digest);
+  }
+
+  /**
+   * Stores a new chunk as a reference to an identical content already stored, without
+   * writing it again. If another chunk with the same name exists, it is replaced.
+   *
+   * @param fileId  The file id
+   * @param chunkNo The chunk number
+   * @param digest  The content's SHA-256 digest, in hex
+   * @return true if the chunk was stored, false if the content is not stored or the
+   * chunk store does not deduplicate.
+   */
+  public boolean putReference(String fileId, int chunkNo, String digest) {
+    return dedup != null && dedup.putReference(fileId, chunkNo, digest);
   }
 
   /**
@@ -239,16 +243,7 @@ public final class FilesManager {
    * @return false if the file existed and could not be deleted, and true otherwise.
    */
   public boolean deleteChunk(String fileId, int chunkNo) {
-    try {
-      Path filepath = backupDir.resolve(makeBackupEntry(fileId));
-      Path chunkpath = filepath.resolve(makeChunkEntry(chunkNo));
-      if (Files.notExists(chunkpath)) return true;
-      Files.deleteIfExists(chunkpath);
-      return true;
-    } catch (IOException e) {
-      Peer.log("Failed to delete " + chk(fileId, chunkNo), e, Level.WARNING);
-      return false;
-    }
+    return store.deleteChunk(fileId, chunkNo);
   }
 
   /**
@@ -299,64 +294,67 @@ public final class FilesManager {
     }
   }
 
-  private File[] backupFilterFilesList(File[] files) {
-    return Arrays.stream(files)
-        .filter(file -> validBackupEntry(file.getName()))
-        .toArray(File[]::new);
-  }
-
-  private File[] backupFilterChunksList(File[] chunks) {
-    return Arrays.stream(chunks)
-        .filter(chunk -> validChunkEntry(chunk.getName()))
-        .toArray(File[]::new);
-  }
-
-  private File[] backupFilesList() {
-    File[] files = backupDir.toFile().listFiles();
-    if (files == null) {
-      return new File[0];
-    } else {
-      return backupFilterFilesList(files);
+  /**
+   * Opens a partial restored file to be written chunk by chunk, at each chunk's
+   * offset. The file is preallocated up to the start of its last chunk, and only
+   * becomes visible under its own name once commitRestore() is called.
+   *
+   * @param filename The file being restored
+   * @param size     The expected size of the file, excluding the last chunk
+   * @return The channel to write the chunks to, owned by the caller.
+   * @throws IOException If the partial file could not be created.
+   */
+  public FileChannel openRestore(String filename, long size) throws IOException {
+    Path filepath = restoredDir.resolve(filename + Configuration.partialSuffix);
+    RandomAccessFile file = new RandomAccessFile(filepath.toFile(), "rw");
+    try {
+      file.setLength(size);
+      return file.getChannel();
+    } catch (IOException e) {
+      file.close();
+      Peer.log("Failed to open restore file " + filename, e, Level.WARNING);
+      throw e;
     }
   }
 
-  private File[] backupChunksList(File file) {
-    if (!file.exists() || !file.isDirectory()) return new File[0];
-    File[] chunks = file.listFiles();
-    if (chunks == null) {
-      return new File[0];
-    } else {
-      return backupFilterChunksList(chunks);
+  /**
+   * Renames a complete partial restored file to its own name, overwriting any other
+   * file with the same name.
+   *
+   * @param filename The file being restored
+   * @return true if the file was successfully renamed, false otherwise
+   */
+  public boolean commitRestore(String filename) {
+    try {
+      Path filepath = restoredDir.resolve(filename);
+      Path partpath = restoredDir.resolve(filename + Configuration.partialSuffix);
+      Files.move(partpath, filepath, StandardCopyOption.REPLACE_EXISTING);
+      return true;
+    } catch (IOException e) {
+      Peer.log("Failed to restore file " + filename, e, Level.WARNING);
+      return false;
     }
   }
 
-  private File[] backupChunksList(String fileId) {
-    Path filepath = backupDir.resolve(makeBackupEntry(fileId));
-    if (Files.notExists(filepath)) return new File[0];
-
-    return backupChunksList(filepath.toFile());
+  /**
+   * Deletes the partial restored file of a failed restore.
+   *
+   * @param filename The file being restored
+   */
+  public void abortRestore(String filename) {
+    try {
+      Files.deleteIfExists(restoredDir.resolve(filename + Configuration.partialSuffix));
+    } catch (IOException e) {
+      Peer.log("Failed to delete partial restore file " + filename, e, Level.WARNING);
+    }
   }
 
   public HashSet<String> backupFilesSet() {
-    File[] files = backupFilesList();
-    HashSet<String> set = new HashSet<>();
-
-    for (File file : files) {
-      set.add(extractFromBackupEntry(file.getName()));
-    }
-
-    return set;
+    return store.files();
   }
 
   public TreeSet<Integer> backupChunksSet(String fileId) {
-    File[] files = backupChunksList(fileId);
-    TreeSet<Integer> set = new TreeSet<>();
-
-    for (File file : files) {
-      set.add(extractFromChunkEntry(file.getName()));
-    }
-
-    return set;
+    return store.chunks(fileId);
   }
 
   public HashMap<String,TreeSet<Integer>> backupAllChunksMap() {
@@ -370,26 +368,8 @@ public final class FilesManager {
     return map;
   }
 
-  /**
-   * Get total amount of disk space occupied by this backup file. Internal auxiliary.
-   *
-   * @param file A file object, presumably valid and inside the backup/ subdirectory
-   * @return The total amount of disk space, 0 if it does not exist or is not a folder.
-   */
-  private long backupFileTotalSpace(File file) {
-    File[] chunks = backupChunksList(file);
-
-    long total = 0;
-    for (File chunk : chunks) total += chunk.length();
-    return total;
-  }
-
   public long backupChunkTotalSpace(String fileId, int chunkNo) {
-    Path filepath = backupDir.resolve(makeBackupEntry(fileId));
-    Path chunkpath = filepath.resolve(makeChunkEntry(chunkNo));
-    File file = chunkpath.toFile();
-    if (!file.exists() || !file.isFile()) return -1;
-    return file.length();
+    return store.chunkSpace(fileId, chunkNo);
   }
 
   /**
@@ -400,7 +380,7 @@ public final class FilesManager {
    * folder.
    */
   public long backupFileTotalSpace(String fileId) {
-    return backupFileTotalSpace(backupDir.resolve(makeBackupEntry(fileId)).toFile());
+    return store.fileSpace(fileId);
   }
 
   /**
@@ -409,11 +389,7 @@ public final class FilesManager {
    * @return The total amount of disk space used.
    */
   public long backupTotalSpace() {
-    File[] files = backupFilesList();
-
-    long total = 0;
-    for (File file : files) total += backupFileTotalSpace(file);
-    return total;
+    return store.totalSpace();
   }
 
   public void writeObject(Object object, File objectFile) throws IOException {
@@ -442,39 +418,84 @@ public final class FilesManager {
     }
   }
 
+  /**
+   * Reads the own files' metadata, in the binary format of MetadataFormat or, if it was
+   * written by an older peer, with Java serialization. Either way it is written back in
+   * the binary format by the next snapshot.
+   */
   @SuppressWarnings("unchecked")
   ConcurrentHashMap<String,OwnFileInfo> readOwnFilesInfo() throws IOException {
     Path path = filesinfoDir.resolve(Configuration.ownFilesinfo);
-    File file = path.toFile();
-    if (!file.exists() || !file.isFile()) return null;
+    if (!Files.isRegularFile(path)) return null;
+    if (!MetadataFormat.isBinary(path))
+      return (ConcurrentHashMap<String,OwnFileInfo>) this.readObject(path.toFile());
 
-    return (ConcurrentHashMap<String,OwnFileInfo>) this.readObject(file);
+    try (InputStream in = Files.newInputStream(path)) {
+      return MetadataFormat.readOwn(in);
+    } catch (IOException e) {
+      Peer.log("Failed to read own files info map from " + path, e, Level.SEVERE);
+      throw e;
+    }
   }
 
+  /**
+   * Reads the others' files metadata, like readOwnFilesInfo().
+   */
   @SuppressWarnings("unchecked")
   ConcurrentHashMap<String,FileInfo> readOtherFilesInfo() throws IOException {
     Path path = filesinfoDir.resolve(Configuration.otherFilesinfo);
-    File file = path.toFile();
-    if (!file.exists() || !file.isFile()) return null;
+    if (!Files.isRegularFile(path)) return null;
+    if (!MetadataFormat.isBinary(path))
+      return (ConcurrentHashMap<String,FileInfo>) this.readObject(path.toFile());
 
-    return (ConcurrentHashMap<String,FileInfo>) this.readObject(file);
-  }
-
-  void writeOwnFilesInfo(ConcurrentHashMap<String,OwnFileInfo> map) {
-    File file = filesinfoDir.resolve(Configuration.ownFilesinfo).toFile();
-    try {
-      writeObject(map, file);
+    try (InputStream in = Files.newInputStream(path)) {
+      return MetadataFormat.readOther(in);
     } catch (IOException e) {
-      Peer.log("Failed to store own files info map at " + file, Level.SEVERE);
+      Peer.log("Failed to read others files info map from " + path, e, Level.SEVERE);
+      throw e;
     }
   }
 
-  void writeOtherFilesInfo(ConcurrentHashMap<String,FileInfo> map) {
-    File file = filesinfoDir.resolve(Configuration.otherFilesinfo).toFile();
+  /**
+   * Opens the journal of the metadata, in the filesinfo subdirectory.
+   *
+   * @param snapshot Writes both metadata files, returning false if either failed
+   */
+  MetadataJournal openJournal(BooleanSupplier snapshot) {
+    return new MetadataJournal(filesinfoDir, snapshot);
+  }
+
+  private interface MetadataWriter {
+    void write(OutputStream out) throws IOException;
+  }
+
+  /**
+   * Write a metadata file to a temporary file first, force it to the disk and then move
+   * it over the old file, so a crash at any point leaves one of them whole.
+   */
+  private boolean replaceFile(Path path, MetadataWriter writer) {
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
     try {
-      writeObject(map, file);
+      try (FileOutputStream out = new FileOutputStream(temporary.toFile())) {
+        writer.write(out);
+        out.getFD().sync();
+      }
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      return true;
     } catch (IOException e) {
-      Peer.log("Failed to store others files info map at " + file, Level.SEVERE);
+      Peer.log("Failed to write metadata file " + path, e, Level.SEVERE);
+      return false;
     }
   }
+
+  boolean writeOwnFilesInfo(ConcurrentHashMap<String,OwnFileInfo> map) {
+    Path path = filesinfoDir.resolve(Configuration.ownFilesinfo);
+    return replaceFile(path, out -> MetadataFormat.writeOwn(map, out));
+  }
+
+  boolean writeOtherFilesInfo(ConcurrentHashMap<String,FileInfo> map) {
+    Path path = filesinfoDir.resolve(Configuration.otherFilesinfo);
+    return replaceFile(path, out -> MetadataFormat.writeOther(map, out));
+  }
 }
@@ -0,0 +1,248 @@
+package dbs.files;
+
+import dbs.ErasureLayout;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compact binary format of the metadata files, read and written as a stream:
+ *
+ *   "DBSM" VERSION KIND COUNT FILE*
+ *
+ * where KIND is 0 for the own files and 1 for the others' files, and each FILE is
+ *
+ *   ID DESIRED [PATHNAME CHUNKS K M LENGTH+1] NCHUNKS (CHUNKNO-DELTA NPEERS PEERID*)*
+ *
+ * with the bracketed part for own files only, K = M = 0 and LENGTH = -1 for files backed
+ * up without erasure coding, and the chunks by increasing number, each chunk number but
+ * the first relative to the previous one. An ID is a byte 0 and the 32 bytes of a
+ * lowercase hex file id, or a byte 1 and a string for any other id. Strings are a length
+ * and UTF-8 bytes, numbers are unsigned LEB128 varints and peer ids are zigzag varints.
+ */
+final class MetadataFormat {
+
+  private static final byte[] magic = {'D', 'B', 'S', 'M'};
+  private static final int version = 1;
+  private static final int ownKind = 0;
+  private static final int otherKind = 1;
+  private static final int bufferSize = 1 << 16;
+
+  private MetadataFormat() {}
+
+  /**
+   * @return true if the file starts with this format's magic, false if not, e.g. for a
+   * metadata file written with Java serialization by an older peer.
+   */
+  static boolean isBinary(Path path) throws IOException {
+    byte[] start = new byte[magic.length];
+    try (InputStream in = Files.newInputStream(path)) {
+      int read = 0, n;
+      while (read < start.length && (n = in.read(start, read, start.length - read)) > 0) {
+        read += n;
+      }
+      return read == start.length && Arrays.equals(start, magic);
+    }
+  }
+
+  // ***** Writing
+
+  static void writeOwn(Map<String,OwnFileInfo> map, OutputStream stream)
+      throws IOException {
+    ArrayList<OwnFileInfo> files = new ArrayList<>(map.values());
+    DataOutputStream out = header(stream, ownKind, files.size());
+    for (OwnFileInfo info : files) {
+      writeId(out, info.getFileId());
+      writeVarint(out, info.getDesiredReplicationDegree());
+      writeString(out, info.getPathname());
+      writeVarint(out, info.getNumberOfChunks());
+      ErasureLayout layout = info.getLayout();
+      writeVarint(out, layout == null ? 0 : layout.getDataShards());
+      writeVarint(out, layout == null ? 0 : layout.getParityShards());
+      writeVarint(out, info.getLength() + 1);
+      writeChunks(out, info);
+    }
+    out.flush();
+  }
+
+  static void writeOther(Map<String,FileInfo> map, OutputStream stream)
+      throws IOException {
+    ArrayList<FileInfo> files = new ArrayList<>(map.values());
+    DataOutputStream out = header(stream, otherKind, files.size());
+    for (FileInfo info : files) {
+      writeId(out, info.getFileId());
+      writeVarint(out, info.getDesiredReplicationDegree());
+      writeChunks(out, info);
+    }
+    out.flush();
+  }
+
+  private static DataOutputStream header(OutputStream stream, int kind, int count)
+      throws IOException {
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(stream, bufferSize));
+    out.write(magic);
+    out.writeByte(version);
+    out.writeByte(kind);
+    writeVarint(out, count);
+    return out;
+  }
+
+  private static void writeChunks(DataOutputStream out, FileInfo info)
+      throws IOException {
+    int[] numbers = info.chunkNumbers();
+    writeVarint(out, numbers.length);
+
+    int previous = 0;
+    for (int chunkNumber : numbers) {
+      writeVarint(out, chunkNumber - previous);
+      previous = chunkNumber;
+
+      ChunkInfo chunk = info.getChunkInfo(chunkNumber);
+      long[] peers = chunk == null ? new long[0] : chunk.getBackupPeers();
+      writeVarint(out, peers.length);
+      for (long peer : peers) writeVarint(out, (peer << 1) ^ (peer >> 63));
+    }
+  }
+
+  private static void writeId(DataOutputStream out, String fileId) throws IOException {
+    if (fileId.length() != 64 || !fileId.matches("[0-9a-f]*")) {
+      out.writeByte(1);
+      writeString(out, fileId);
+      return;
+    }
+    out.writeByte(0);
+    for (int i = 0; i < 64; i += 2) {
+      out.writeByte(Character.digit(fileId.charAt(i), 16) << 4
+          | Character.digit(fileId.charAt(i + 1), 16));
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String string)
+      throws IOException {
+    byte[] bytes = string.getBytes(UTF_8);
+    writeVarint(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static void writeVarint(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      out.writeByte((int) (value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  // ***** Reading
+
+  static ConcurrentHashMap<String,OwnFileInfo> readOwn(InputStream stream)
+      throws IOException {
+    DataInputStream in = header(stream, ownKind);
+    int count = (int) readVarint(in);
+    ConcurrentHashMap<String,OwnFileInfo> map =
+        new ConcurrentHashMap<>(count * 4 / 3 + 1);
+    for (int f = 0; f < count; ++f) {
+      String fileId = readId(in);
+      int desired = (int) readVarint(in);
+      String pathname = readString(in);
+      int chunks = (int) readVarint(in);
+      int k = (int) readVarint(in), m = (int) readVarint(in);
+      long length = readVarint(in) - 1;
+      ErasureLayout layout = k == 0 ? null : new ErasureLayout(k, m, chunks);
+
+      OwnFileInfo info = new OwnFileInfo(pathname, fileId, chunks, desired, layout,
+          length == -1 ? null : length);
+      readChunks(in, info);
+      map.put(fileId, info);
+    }
+    return map;
+  }
+
+  static ConcurrentHashMap<String,FileInfo> readOther(InputStream stream)
+      throws IOException {
+    DataInputStream in = header(stream, otherKind);
+    int count = (int) readVarint(in);
+    ConcurrentHashMap<String,FileInfo> map =
+        new ConcurrentHashMap<>(count * 4 / 3 + 1);
+    for (int f = 0; f < count; ++f) {
+      String fileId = readId(in);
+      FileInfo info = new FileInfo(fileId, (int) readVarint(in));
+      readChunks(in, info);
+      map.put(fileId, info);
+    }
+    return map;
+  }
+
+  private static DataInputStream header(InputStream stream, int kind)
+      throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(stream, bufferSize));
+    byte[] start = new byte[magic.length];
+    in.readFully(start);
+    if (!Arrays.equals(start, magic))
+      throw new IOException("Not a metadata file");
+    int fileVersion = in.readUnsignedByte();
+    if (fileVersion != version)
+      throw new IOException("Unknown metadata file version " + fileVersion);
+    int fileKind = in.readUnsignedByte();
+    if (fileKind != kind)
+      throw new IOException("Expected metadata file kind " + kind + ", got " + fileKind);
+    return in;
+  }
+
+  private static void readChunks(DataInputStream in, FileInfo info) throws IOException {
+    int count = (int) readVarint(in);
+    int chunkNumber = 0;
+    for (int c = 0; c < count; ++c) {
+      chunkNumber += (int) readVarint(in);
+      ChunkInfo chunk = info.addChunkInfo(chunkNumber);
+      int peers = (int) readVarint(in);
+      for (int p = 0; p < peers; ++p) {
+        long zigzag = readVarint(in);
+        chunk.addBackupPeer((zigzag >>> 1) ^ -(zigzag & 1));
+      }
+    }
+  }
+
+  private static String readId(DataInputStream in) throws IOException {
+    int type = in.readUnsignedByte();
+    if (type == 1) return readString(in);
+    if (type != 0) throw new IOException("Bad file id type " + type);
+
+    char[] hex = new char[64];
+    for (int i = 0; i < 64; i += 2) {
+      int b = in.readUnsignedByte();
+      hex[i] = Character.forDigit(b >> 4, 16);
+      hex[i + 1] = Character.forDigit(b & 0xf, 16);
+    }
+    return new String(hex);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[(int) readVarint(in)];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private static long readVarint(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IOException("Malformed varint");
+  }
+}
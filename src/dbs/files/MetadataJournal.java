@@ -0,0 +1,188 @@
+package dbs.files;
+
+import dbs.Configuration;
+import dbs.Peer;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Append-only journal of the changes to the files' metadata, one record per line, in
+ * filesinfo/journal-[N]. Callers apply each change and append its record while holding
+ * the journal's lock, so the records are in the order the changes were applied.
+ *
+ * Every Configuration.journalCheckpointRecords records, a checkpoint starts a new
+ * journal file and writes a snapshot of the metadata. The snapshot is taken while
+ * changes go on, so it may already hold some of the new file's changes. Each record
+ * sets the state of one element, so replaying them again gives the same result.
+ * Once the snapshot is written the older journal files are deleted. When the peer
+ * starts, the snapshot is read and the journal files left are replayed in order.
+ */
+final class MetadataJournal {
+
+  private final Path dir;
+  private final Pattern journalPattern;
+  private final BooleanSupplier snapshot;
+  private final AtomicBoolean checkpointing = new AtomicBoolean(false);
+  private int sequence = -1;
+  private int records = 0;
+  private FileOutputStream stream;
+  private BufferedWriter writer;
+
+  /**
+   * @param dir      The peer's filesinfo directory, already created
+   * @param snapshot Writes a snapshot of the metadata, returning false if it failed
+   */
+  MetadataJournal(Path dir, BooleanSupplier snapshot) {
+    this.dir = dir;
+    this.snapshot = snapshot;
+
+    // prefix[N]
+    String journalStr = Pattern.quote(Configuration.journalPrefix) + "([0-9]+)";
+    this.journalPattern = Pattern.compile(journalStr);
+  }
+
+  /**
+   * @return The journal files in the directory, by sequence number.
+   */
+  private TreeMap<Integer,Path> journals() throws IOException {
+    TreeMap<Integer,Path> journals = new TreeMap<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path path : stream) {
+        Matcher matcher = journalPattern.matcher(path.getFileName().toString());
+        if (matcher.matches()) journals.put(Integer.parseInt(matcher.group(1)), path);
+      }
+    }
+    return journals;
+  }
+
+  /**
+   * @return The records of the journal files left by the peer's last run, in order.
+   * @throws IOException If a journal file cannot be read.
+   */
+  List<String> read() throws IOException {
+    ArrayList<String> lines = new ArrayList<>();
+    TreeMap<Integer,Path> journals = journals();
+    for (Path path : journals.values()) lines.addAll(Files.readAllLines(path, UTF_8));
+    if (!journals.isEmpty()) sequence = journals.lastKey();
+    return lines;
+  }
+
+  /**
+   * Start appending to a new journal file, and fold the old ones into a snapshot.
+   * Called once, after read() and the replay of its records.
+   *
+   * @throws IOException If the new journal file cannot be created.
+   */
+  void start() throws IOException {
+    checkpointing.set(true);
+    int current;
+    synchronized (this) {
+      rotate();
+      current = sequence;
+    }
+    checkpoint(journals().headMap(current));
+  }
+
+  /**
+   * Close the current journal file, if any, and open the next one. Must be called with
+   * the lock held.
+   */
+  private void rotate() throws IOException {
+    if (writer != null) writer.close();
+    ++sequence;
+    stream = new FileOutputStream(dir.resolve(Configuration.journalPrefix + sequence)
+        .toFile(), true);
+    writer = new BufferedWriter(new OutputStreamWriter(stream, UTF_8));
+    records = 0;
+  }
+
+  /**
+   * Write the snapshot and delete the given journal files, whose records it holds. If
+   * the snapshot fails they are kept, and replayed when the peer starts.
+   */
+  private void checkpoint(Map<Integer,Path> old) {
+    try {
+      if (!snapshot.getAsBoolean()) return;
+      for (Path path : old.values()) Files.deleteIfExists(path);
+    } catch (IOException e) {
+      Peer.log("Failed to delete an old metadata journal", e, Level.WARNING);
+    } finally {
+      checkpointing.set(false);
+    }
+  }
+
+  /**
+   * Rotate the journal and write a snapshot, off the caller's thread.
+   */
+  private void checkpoint() {
+    Map<Integer,Path> old;
+    try {
+      int current;
+      synchronized (this) {
+        rotate();
+        current = sequence;
+      }
+      old = journals().headMap(current);
+    } catch (IOException e) {
+      Peer.log("Failed to start a new metadata journal", e, Level.SEVERE);
+      checkpointing.set(false);
+      return;
+    }
+    checkpoint(old);
+  }
+
+  /**
+   * Append the record of a change to the metadata. Nothing is written before start().
+   *
+   * @param record The change's record, one or more lines without the last line break
+   */
+  synchronized void append(String record) {
+    if (writer == null) return;
+
+    try {
+      writer.write(record);
+      writer.write('\n');
+      writer.flush();
+      if (Configuration.journalSync) stream.getFD().sync();
+    } catch (IOException e) {
+      Peer.log("Failed to journal metadata change " + record, e, Level.SEVERE);
+    }
+
+    if (++records >= Configuration.journalCheckpointRecords
+        && checkpointing.compareAndSet(false, true)) {
+      Thread thread = new Thread(this::checkpoint, "metadata-checkpoint");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Flush and close the journal. Called once, when the peer shuts down.
+   */
+  synchronized void close() {
+    if (writer == null) return;
+    try {
+      writer.close();
+    } catch (IOException e) {
+      Peer.log("Failed to close the metadata journal", e, Level.SEVERE);
+    }
+    writer = null;
+  }
+}
@@ -1,13 +1,24 @@
 package dbs.files;
 
+import dbs.ErasureLayout;
+
 import java.io.File;
 import java.io.Serializable;
 
 public class OwnFileInfo extends FileInfo implements Serializable {
 
+  private static final long serialVersionUID = 7972566375777503827L;
+
   private final String pathname;
   private final Integer numberOfChunks;
 
+  /**
+   * Absent from the metadata files written before erasure coding, and so null for their
+   * files, which are backed up in full copies.
+   */
+  private final ErasureLayout layout;
+  private final Long length;
+
   /**
    * Constructs a new object of the OwnFileInfo class.
    */
@@ -15,6 +26,8 @@ public class OwnFileInfo extends FileInfo implements Serializable {
     super(fileId);
     this.pathname = pathname;
     this.numberOfChunks = numberOfChunks;
+    this.layout = null;
+    this.length = null;
   }
 
   /**
@@ -25,9 +38,23 @@ public class OwnFileInfo extends FileInfo implements Serializable {
    */
   OwnFileInfo(String pathname, String fileId, int numberOfChunks,
               Integer desiredReplicationDegree) {
+    this(pathname, fileId, numberOfChunks, desiredReplicationDegree, null, null);
+  }
+
+  /**
+   * Constructs a new object of the OwnFileInfo class, for a file backed up with erasure
+   * coding.
+   *
+   * @param layout The file's erasure layout, or null if it is backed up in full copies.
+   * @param length The file's length, or null if it is backed up in full copies.
+   */
+  OwnFileInfo(String pathname, String fileId, int numberOfChunks,
+              Integer desiredReplicationDegree, ErasureLayout layout, Long length) {
     super(fileId, desiredReplicationDegree);
     this.pathname = pathname;
     this.numberOfChunks = numberOfChunks;
+    this.layout = layout;
+    this.length = length;
   }
 
   /**
@@ -44,6 +71,27 @@ public class OwnFileInfo extends FileInfo implements Serializable {
     return this.numberOfChunks;
   }
 
+  /**
+   * @return This file's erasure layout, or null if it is backed up in full copies.
+   */
+  public ErasureLayout getLayout() {
+    return this.layout;
+  }
+
+  /**
+   * @return This file's original length, or -1 if it is backed up in full copies.
+   */
+  public long getLength() {
+    return this.length == null ? -1 : this.length;
+  }
+
+  /**
+   * @return This file's chunk count, parity chunks included.
+   */
+  public int getNumberOfShards() {
+    return layout == null ? numberOfChunks : layout.totalChunks();
+  }
+
   /**
    * @return The pathname as a file.
    */
@@ -53,7 +101,8 @@ public class OwnFileInfo extends FileInfo implements Serializable {
 
   @Override
   public String toString() {
-    return ' ' + pathname + "\n Number of chunks: " + numberOfChunks
+    String erasure = layout == null ? "" : "\n Erasure coding: " + layout;
+    return ' ' + pathname + "\n Number of chunks: " + numberOfChunks + erasure
         + '\n' + super.toString();
   }
 }
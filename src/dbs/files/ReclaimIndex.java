@@ -0,0 +1,112 @@
+package dbs.files;
+
+import dbs.ChunkKey;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The chunks this peer backs up, in the order they are given up in a reclaim: first
+ * those most replicated beyond their file's desired replication degree, then those most
+ * replicated, then by key. Each chunk is repositioned when its perceived or desired
+ * replication degree changes, so a reclaim only walks the first entries it needs,
+ * without locking or sorting every chunk.
+ */
+final class ReclaimIndex {
+
+  private static final class Entry implements Comparable<Entry> {
+    private final ChunkKey key;
+    private final int surplus;
+    private final int perceived;
+
+    private Entry(ChunkKey key, int perceived, int desired) {
+      this.key = key;
+      this.surplus = perceived - desired;
+      this.perceived = perceived;
+    }
+
+    @Override
+    public int compareTo(Entry other) {
+      if (surplus != other.surplus) return Integer.compare(other.surplus, surplus);
+      if (perceived != other.perceived) return Integer.compare(other.perceived, perceived);
+      return key.compareTo(other.key);
+    }
+  }
+
+  private final ConcurrentSkipListSet<Entry> order = new ConcurrentSkipListSet<>();
+  private final ConcurrentHashMap<ChunkKey,Entry> entries = new ConcurrentHashMap<>();
+
+  /**
+   * Insert or reposition a chunk. Calls for the same chunk must not run concurrently.
+   *
+   * @param key       The chunk's key
+   * @param perceived The chunk's perceived replication degree
+   * @param desired   The desired replication degree of the chunk's file
+   */
+  void update(ChunkKey key, int perceived, int desired) {
+    Entry entry = new Entry(key, perceived, desired);
+    Entry old = entries.put(key, entry);
+    if (old != null) {
+      if (old.compareTo(entry) == 0) return;
+      order.remove(old);
+    }
+    order.add(entry);
+  }
+
+  /**
+   * Remove a chunk, if present. Calls for the same chunk must not run concurrently.
+   *
+   * @param key The chunk's key
+   */
+  void remove(ChunkKey key) {
+    Entry old = entries.remove(key);
+    if (old != null) order.remove(old);
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return The chunks in reclaim order, weakly consistent with concurrent changes.
+   */
+  Iterable<ChunkKey> victims() {
+    return () -> iterator(false);
+  }
+
+  /**
+   * @return The chunks replicated beyond their file's desired replication degree, in
+   * reclaim order, weakly consistent with concurrent changes.
+   */
+  Iterable<ChunkKey> surplusVictims() {
+    return () -> iterator(true);
+  }
+
+  private Iterator<ChunkKey> iterator(boolean surplusOnly) {
+    Iterator<Entry> iterator = order.iterator();
+    return new Iterator<ChunkKey>() {
+      private Entry next = advance();
+
+      private Entry advance() {
+        if (!iterator.hasNext()) return null;
+        Entry entry = iterator.next();
+        return surplusOnly && entry.surplus <= 0 ? null : entry;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public ChunkKey next() {
+        if (next == null) throw new NoSuchElementException();
+        ChunkKey key = next.key;
+        next = advance();
+        return key;
+      }
+    };
+  }
+}
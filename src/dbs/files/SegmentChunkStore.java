@@ -0,0 +1,434 @@
+package dbs.files;
+
+import dbs.ChunkKey;
+import dbs.Configuration;
+import dbs.Peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Chunk store that packs chunks into a few large memory-mapped segment files,
+ * backup/segment-[N], instead of one file per chunk. Every lookup is answered by an
+ * in-memory index keyed by ChunkKey, so after startup no chunk operation touches the
+ * filesystem's metadata.
+ *
+ * Each segment is a sequence of records:
+ *
+ *   MAGIC(4) STATE(1) FILEID(64) CHUNKNO(4) LENGTH(4) BODY(LENGTH)
+ *
+ * Chunks are only ever appended to the newest segment. Deleting or overwriting a chunk
+ * flips its record's state byte to DEAD in place. Once the dead records of an older
+ * segment take up more than Configuration.segmentCompactRatio of it, its live records
+ * are copied forward and the segment file is removed. The magic number is written
+ * last, so a record torn by a crash is ignored, and the index is rebuilt by scanning
+ * the segments when the peer starts.
+ */
+final class SegmentChunkStore implements ChunkStore {
+
+  private static final int MAGIC = 0x44425343;  // "DBSC"
+  private static final byte LIVE = 1;
+  private static final byte DEAD = 0;
+  private static final int FILEID_LENGTH = 64;
+
+  private static final int STATE_OFFSET = 4;
+  private static final int FILEID_OFFSET = 5;
+  private static final int CHUNKNO_OFFSET = FILEID_OFFSET + FILEID_LENGTH;
+  private static final int LENGTH_OFFSET = CHUNKNO_OFFSET + 4;
+  private static final int HEADER_SIZE = LENGTH_OFFSET + 4;
+
+  private static final class Segment {
+    private final int id;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private int end = 0;     // append position
+    private long dead = 0;   // bytes taken by dead records
+
+    private Segment(int id, Path path, int size) throws IOException {
+      this.id = id;
+      this.path = path;
+      this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+      this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private int free() {
+      return map.capacity() - end;
+    }
+  }
+
+  private static final class Location {
+    private final Segment segment;
+    private final int offset;
+    private final int length;
+
+    private Location(Segment segment, int offset, int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    private int size() {
+      return HEADER_SIZE + length;
+    }
+  }
+
+  private final Path backupDir;
+  private final Pattern segmentPattern;
+  private final ConcurrentHashMap<ChunkKey,Location> index = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String,Set<Integer>> fileChunks =
+      new ConcurrentHashMap<>();
+  private final TreeMap<Integer,Segment> segments = new TreeMap<>();
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private Segment active;
+  private volatile long totalSpace = 0;
+
+  private static String chk(String fileId, int chunkNo) {
+    return "chunk #" + chunkNo + " of file " + fileId.substring(0, 10) + "..";
+  }
+
+  /**
+   * Open every segment in the backup directory and rebuild the index from their
+   * records. If there are no segments, an empty one is created.
+   *
+   * @param backupDir The peer's backup directory, already created
+   * @throws IOException If a segment cannot be opened or mapped.
+   */
+  SegmentChunkStore(Path backupDir) throws IOException {
+    this.backupDir = backupDir;
+
+    // prefix[N]
+    String segmentStr = Pattern.quote(Configuration.segmentPrefix) + "([0-9]+)";
+    segmentPattern = Pattern.compile(segmentStr);
+
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(backupDir)) {
+      for (Path path : stream) {
+        Matcher matcher = segmentPattern.matcher(path.getFileName().toString());
+        if (!matcher.matches() || !Files.isRegularFile(path)) continue;
+
+        int id = Integer.parseInt(matcher.group(1));
+        int size = (int) Math.max(Files.size(path), Configuration.segmentSize);
+        segments.put(id, new Segment(id, path, size));
+      }
+    }
+
+    for (Segment segment : segments.values()) scan(segment);
+
+    if (segments.isEmpty()) {
+      active = openSegment(0);
+    } else {
+      active = segments.lastEntry().getValue();
+    }
+  }
+
+  private Segment openSegment(int id) throws IOException {
+    Path path = backupDir.resolve(Configuration.segmentPrefix + id);
+    Segment segment = new Segment(id, path, Configuration.segmentSize);
+    segments.put(id, segment);
+    return segment;
+  }
+
+  /**
+   * Rebuild the index entries of one segment, in segment order. A live record of a key
+   * seen in an older segment supersedes it; this only happens if the peer died between
+   * appending the new record and killing the old one.
+   */
+  private void scan(Segment segment) {
+    MappedByteBuffer map = segment.map;
+    int offset = 0;
+
+    while (offset + HEADER_SIZE <= map.capacity() && map.getInt(offset) == MAGIC) {
+      int length = map.getInt(offset + LENGTH_OFFSET);
+      if (length < 0 || offset + HEADER_SIZE + length > map.capacity()) break;
+
+      if (map.get(offset + STATE_OFFSET) == LIVE) {
+        String fileId = readFileId(map, offset);
+        int chunkNo = map.getInt(offset + CHUNKNO_OFFSET);
+        index(new ChunkKey(fileId, chunkNo), new Location(segment, offset, length));
+      } else {
+        segment.dead += HEADER_SIZE + length;
+      }
+
+      offset += HEADER_SIZE + length;
+    }
+
+    segment.end = offset;
+  }
+
+  private static String readFileId(MappedByteBuffer map, int offset) {
+    byte[] bytes = new byte[FILEID_LENGTH];
+    ByteBuffer view = map.duplicate();
+    view.position(offset + FILEID_OFFSET);
+    view.get(bytes);
+    return new String(bytes, US_ASCII);
+  }
+
+  /**
+   * Point the key at a new record, killing the record it pointed to before, if any.
+   * Must be called with the write lock held (or from the constructor).
+   */
+  private void index(ChunkKey key, Location location) {
+    Location previous = index.put(key, location);
+    if (previous != null) {
+      kill(previous);
+    } else {
+      fileChunks.computeIfAbsent(key.getFileId(), k -> ConcurrentHashMap.newKeySet())
+          .add(key.getChunkNo());
+    }
+    totalSpace += location.length;
+  }
+
+  private void kill(Location location) {
+    location.segment.map.put(location.offset + STATE_OFFSET, DEAD);
+    location.segment.dead += location.size();
+    totalSpace -= location.length;
+  }
+
+  /**
+   * Remove a key from the index and kill its record. Must be called with the write
+   * lock held.
+   *
+   * @return The segment that held the record, or null if the key was not indexed.
+   */
+  private Segment unindex(ChunkKey key) {
+    Location location = index.remove(key);
+    if (location == null) return null;
+
+    Set<Integer> chunks = fileChunks.get(key.getFileId());
+    if (chunks != null) {
+      chunks.remove(key.getChunkNo());
+      if (chunks.isEmpty()) fileChunks.remove(key.getFileId());
+    }
+
+    kill(location);
+    return location.segment;
+  }
+
+  /**
+   * Append a record to the active segment, rolling to a new segment if it does not
+   * fit. Must be called with the write lock held.
+   */
+  private Location append(String fileId, int chunkNo, ByteBuffer chunk)
+      throws IOException {
+    int length = chunk.remaining();
+    if (HEADER_SIZE + length > Configuration.segmentSize) {
+      throw new IOException("Chunk of " + length + " bytes does not fit in a segment");
+    }
+    if (active.free() < HEADER_SIZE + length) {
+      active = openSegment(active.id + 1);
+    }
+
+    int offset = active.end;
+    ByteBuffer view = active.map.duplicate();
+    view.position(offset + FILEID_OFFSET);
+    view.put(fileId.getBytes(US_ASCII), 0, FILEID_LENGTH);
+    view.putInt(chunkNo);
+    view.putInt(length);
+    view.put(chunk.duplicate());
+    view.put(offset + STATE_OFFSET, LIVE);
+    view.putInt(offset, MAGIC);  // last, so the record only exists once complete
+
+    active.end += HEADER_SIZE + length;
+    return new Location(active, offset, length);
+  }
+
+  /**
+   * Copy the live records of a sealed segment forward, if enough of it is dead, and
+   * remove its file. Must be called with the write lock held.
+   */
+  private void compact(Segment segment) throws IOException {
+    if (segment == null || segment == active) return;
+    if (segment.dead < segment.end * Configuration.segmentCompactRatio) return;
+
+    ArrayList<ChunkKey> live = new ArrayList<>();
+    for (Map.Entry<ChunkKey,Location> entry : index.entrySet()) {
+      if (entry.getValue().segment == segment) live.add(entry.getKey());
+    }
+
+    for (ChunkKey key : live) {
+      Location location = index.get(key);
+      ByteBuffer body = segment.map.duplicate();
+      body.limit(location.offset + location.size());
+      body.position(location.offset + HEADER_SIZE);
+      index(key, append(key.getFileId(), key.getChunkNo(), body));
+    }
+
+    // There is no portable way to unmap the buffer; it goes away when collected.
+    segments.remove(segment.id);
+    segment.channel.close();
+    Files.deleteIfExists(segment.path);
+
+    Peer.log("Compacted chunk segment " + segment.id + ", moved " + live.size() +
+        " chunks", Level.INFO);
+  }
+
+  @Override
+  public boolean hasFile(String fileId) {
+    return fileChunks.containsKey(fileId);
+  }
+
+  @Override
+  public boolean deleteFile(String fileId) {
+    Set<Integer> chunks = fileChunks.get(fileId);
+    if (chunks == null) return true;
+
+    boolean ok = true;
+    for (Integer chunkNo : new ArrayList<>(chunks)) {
+      ok &= deleteChunk(fileId, chunkNo);
+    }
+    return ok;
+  }
+
+  @Override
+  public boolean hasChunk(String fileId, int chunkNo) {
+    return index.containsKey(new ChunkKey(fileId, chunkNo));
+  }
+
+  @Override
+  public byte[] getChunk(String fileId, int chunkNo) {
+    lock.readLock().lock();
+    try {
+      Location location = index.get(new ChunkKey(fileId, chunkNo));
+      if (location == null) return null;
+
+      byte[] chunk = new byte[location.length];
+      ByteBuffer view = location.segment.map.duplicate();
+      view.position(location.offset + HEADER_SIZE);
+      view.get(chunk);
+      return chunk;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * The chunk is copied out of the mapped segment with the read lock held, so the
+   * segment is not compacted away under the copy, and written to the channel after the
+   * lock is released, so a slow channel does not hold up the store's writers.
+   */
+  @Override
+  public long transferChunk(String fileId, int chunkNo, WritableByteChannel target)
+      throws IOException {
+    ByteBuffer chunk;
+    lock.readLock().lock();
+    try {
+      Location location = index.get(new ChunkKey(fileId, chunkNo));
+      if (location == null) return -1;
+
+      ByteBuffer view = location.segment.map.duplicate();
+      view.position(location.offset + HEADER_SIZE);
+      view.limit(location.offset + HEADER_SIZE + location.length);
+      chunk = ByteBuffer.allocate(location.length);
+      chunk.put(view).flip();
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    int length = chunk.remaining();
+    while (chunk.hasRemaining()) target.write(chunk);
+    return length;
+  }
+
+  @Override
+  public boolean putChunk(String fileId, int chunkNo, ByteBuffer chunk) {
+    if (fileId.length() != FILEID_LENGTH) return false;
+
+    lock.writeLock().lock();
+    try {
+      ChunkKey key = new ChunkKey(fileId, chunkNo);
+      Location previous = index.get(key);
+      index(key, append(fileId, chunkNo, chunk));
+      if (previous != null) compact(previous.segment);
+      return true;
+    } catch (IOException e) {
+      Peer.log("Failed to put " + chk(fileId, chunkNo), e, Level.WARNING);
+      return false;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean deleteChunk(String fileId, int chunkNo) {
+    lock.writeLock().lock();
+    try {
+      compact(unindex(new ChunkKey(fileId, chunkNo)));
+      return true;
+    } catch (IOException e) {
+      Peer.log("Failed to compact after deleting " + chk(fileId, chunkNo), e,
+          Level.WARNING);
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public long chunkSpace(String fileId, int chunkNo) {
+    Location location = index.get(new ChunkKey(fileId, chunkNo));
+    return location == null ? -1 : location.length;
+  }
+
+  @Override
+  public long fileSpace(String fileId) {
+    Set<Integer> chunks = fileChunks.get(fileId);
+    if (chunks == null) return 0;
+
+    long total = 0;
+    for (Integer chunkNo : chunks) {
+      long space = chunkSpace(fileId, chunkNo);
+      if (space > 0) total += space;
+    }
+    return total;
+  }
+
+  @Override
+  public long totalSpace() {
+    return totalSpace;
+  }
+
+  @Override
+  public HashSet<String> files() {
+    return new HashSet<>(fileChunks.keySet());
+  }
+
+  @Override
+  public TreeSet<Integer> chunks(String fileId) {
+    Set<Integer> chunks = fileChunks.get(fileId);
+    return chunks == null ? new TreeSet<>() : new TreeSet<>(chunks);
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      for (Segment segment : segments.values()) {
+        segment.map.force();
+        segment.channel.close();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+}
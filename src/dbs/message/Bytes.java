@@ -0,0 +1,172 @@
+package dbs.message;
+
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Byte level helpers for the message parser. All positions are absolute indices into
+ * the buffer, and no method changes the buffer's position or limit, so the same buffer
+ * can be scanned from several places without copying it.
+ */
+final class Bytes {
+
+  static final byte CR = '\r';
+  static final byte LF = '\n';
+  static final byte SP = ' ';
+
+  // Scratch space to build strings out of direct buffers without a temporary array.
+  private static final ThreadLocal<byte[]> scratch =
+      ThreadLocal.withInitial(() -> new byte[128]);
+
+  private Bytes() {}
+
+  static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  static boolean isHex(byte b) {
+    return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F');
+  }
+
+  /**
+   * @return The index of the first CRLF CRLF sequence in [from, to), or -1 if none.
+   */
+  static int indexOfHeaderEnd(ByteBuffer buffer, int from, int to) {
+    for (int i = from; i + 3 < to; ++i) {
+      if (buffer.get(i) != CR) continue;
+      if (buffer.get(i + 1) == LF && buffer.get(i + 2) == CR && buffer.get(i + 3) == LF) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return The index of the first CRLF sequence in [from, to), or to if none.
+   */
+  static int indexOfLineEnd(ByteBuffer buffer, int from, int to) {
+    for (int i = from; i + 1 < to; ++i) {
+      if (buffer.get(i) == CR && buffer.get(i + 1) == LF) return i;
+    }
+    return to;
+  }
+
+  /**
+   * @return The index of the first non-space byte in [from, to), or to if none.
+   */
+  static int skipSpaces(ByteBuffer buffer, int from, int to) {
+    while (from < to && buffer.get(from) == SP) ++from;
+    return from;
+  }
+
+  /**
+   * @return The index of the first space byte in [from, to), or to if none.
+   */
+  static int tokenEnd(ByteBuffer buffer, int from, int to) {
+    while (from < to && buffer.get(from) != SP) ++from;
+    return from;
+  }
+
+  /**
+   * @return true if [from, to) is a non-empty sequence of ASCII digits.
+   */
+  static boolean digits(ByteBuffer buffer, int from, int to) {
+    if (from >= to) return false;
+    for (int i = from; i < to; ++i) {
+      if (!isDigit(buffer.get(i))) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return true if [from, to) is a non-empty sequence of ASCII hexadecimal digits.
+   */
+  static boolean hex(ByteBuffer buffer, int from, int to) {
+    if (from >= to) return false;
+    for (int i = from; i < to; ++i) {
+      if (!isHex(buffer.get(i))) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Parse a decimal number, presumed valid and short enough not to overflow.
+   */
+  static int parseDigits(ByteBuffer buffer, int from, int to) {
+    int number = 0;
+    for (int i = from; i < to; ++i) number = number * 10 + (buffer.get(i) - '0');
+    return number;
+  }
+
+  /**
+   * @return true if [from, to) holds exactly the given ASCII word.
+   */
+  static boolean equalsAscii(ByteBuffer buffer, int from, int to, byte[] word) {
+    if (to - from != word.length) return false;
+    for (int i = 0; i < word.length; ++i) {
+      if (buffer.get(from + i) != word[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return The ASCII string in [from, to).
+   */
+  static String ascii(ByteBuffer buffer, int from, int to) {
+    int length = to - from;
+    if (buffer.hasArray()) {
+      return new String(buffer.array(), buffer.arrayOffset() + from, length, US_ASCII);
+    }
+
+    byte[] bytes = scratch.get();
+    if (bytes.length < length) bytes = new byte[length];
+    for (int i = 0; i < length; ++i) bytes[i] = buffer.get(from + i);
+    return new String(bytes, 0, length, US_ASCII);
+  }
+
+  /**
+   * @return A view of [from, to), with its own position and limit.
+   */
+  static ByteBuffer slice(ByteBuffer buffer, int from, int to) {
+    ByteBuffer view = buffer.duplicate();
+    view.limit(to).position(from);
+    return view.slice();
+  }
+
+  /**
+   * @return The number of decimal digits of a non-negative number.
+   */
+  static int digitCount(int number) {
+    int count = 1;
+    while (number >= 10) {
+      number /= 10;
+      ++count;
+    }
+    return count;
+  }
+
+  /**
+   * Write a non-negative number in decimal at the given index.
+   *
+   * @return The index after the last digit written.
+   */
+  static int putDigits(byte[] bytes, int at, int number) {
+    int end = at + digitCount(number);
+    for (int i = end - 1; i >= at; --i) {
+      bytes[i] = (byte) ('0' + number % 10);
+      number /= 10;
+    }
+    return end;
+  }
+
+  /**
+   * Write an ASCII string at the given index.
+   *
+   * @return The index after the last byte written.
+   */
+  static int putAscii(byte[] bytes, int at, String string) {
+    for (int i = 0; i < string.length(); ++i) bytes[at++] = (byte) string.charAt(i);
+    return at;
+  }
+}
@@ -1,14 +1,20 @@
 package dbs.message;
 
+import dbs.ChunkKey;
 import dbs.Configuration;
+import dbs.ErasureLayout;
 import dbs.Utils;
 
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Objects;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.charset.StandardCharsets.US_ASCII;
 
 public class Message {
   private MessageType messageType;
@@ -18,8 +24,40 @@ public class Message {
   private int chunkNo;
   private int replication;
 
+  // Cached version strings "0.0" to "9.9", so parsing a version allocates nothing.
+  private static final String[] VERSIONS = new String[100];
+  private static final String[] NO_HEADERS = new String[0];
+  private static final int MAX_SENDER_DIGITS = 19;
+  private static final int MAX_CHUNKNO_DIGITS = 9;
+
+  // Extra header lines of the enhanced restore over TCP
+  private static final String ENDPOINT_HEADER = "ENDPOINT ";
+  private static final String UNICAST_HEADER = "UNICAST";
+
+  // Extra header lines of the large chunk mode
+  private static final String FRAGMENT_HEADER = "FRAGMENT ";
+  private static final String FOR_HEADER = "FOR ";
+  private static final byte[] FRAGMENT_WORD = FRAGMENT_HEADER.getBytes(US_ASCII);
+
+  // Extra header lines of the forward error correction
+  private static final String MEMBER_HEADER = "MEMBER ";
+
+  // Extra header line of the erasure coded backup
+  private static final String STRIPE_HEADER = "STRIPE ";
+
+  // Extra header line of the deduplication
+  private static final String DIGEST_HEADER = "DIGEST ";
+
+  static {
+    for (int i = 0; i < 100; ++i) VERSIONS[i] = (i / 10) + "." + (i % 10);
+  }
+
   private String[] more;
   private byte[] body;
+  private ByteBuffer bodyView;  // body of a received message, not yet copied
+
+  private byte[] header;   // cached header encoding
+  private byte[] encoded;  // cached encoding of the whole message
 
   private InetAddress address;
   private int port;
@@ -46,22 +84,99 @@ public class Message {
     return main;
   }
 
+  /**
+   * Encode the header, up to and including the empty line, straight into a byte array
+   * of the exact size. Every field is ASCII, so no charset encoder is involved.
+   */
+  private byte[] encodeHeader() {
+    int fields = messageType.fields();
+    int length = messageType.word.length + 1 + version.length() + 1 + senderId.length()
+        + 1 + fileId.length() + 4;
+    if (fields >= 5) length += 1 + Bytes.digitCount(chunkNo);
+    if (fields >= 6) length += 1 + Bytes.digitCount(replication);
+    for (String line : more) length += 2 + line.length();
+
+    byte[] bytes = new byte[length];
+    System.arraycopy(messageType.word, 0, bytes, 0, messageType.word.length);
+    int at = messageType.word.length;
+    bytes[at++] = Bytes.SP;
+    at = Bytes.putAscii(bytes, at, version);
+    bytes[at++] = Bytes.SP;
+    at = Bytes.putAscii(bytes, at, senderId);
+    bytes[at++] = Bytes.SP;
+    at = Bytes.putAscii(bytes, at, fileId);
+    if (fields >= 5) {
+      bytes[at++] = Bytes.SP;
+      at = Bytes.putDigits(bytes, at, chunkNo);
+    }
+    if (fields >= 6) {
+      bytes[at++] = Bytes.SP;
+      at = Bytes.putDigits(bytes, at, replication);
+    }
+    for (String line : more) {
+      bytes[at++] = Bytes.CR;
+      bytes[at++] = Bytes.LF;
+      at = Bytes.putAscii(bytes, at, line);
+    }
+    bytes[at++] = Bytes.CR;
+    bytes[at++] = Bytes.LF;
+    bytes[at++] = Bytes.CR;
+    bytes[at] = Bytes.LF;
+    return bytes;
+  }
+
+  /**
+   * @return The encoded header, cached until the sender id changes.
+   */
   private byte[] getHeaderBytes() {
-    return (headerString() + "\r\n\r\n").getBytes();
+    byte[] bytes = header;
+    if (bytes == null) header = bytes = encodeHeader();
+    return bytes;
   }
 
+  /**
+   * Encode the whole message in one array. The encoding is cached, so retransmissions
+   * of the same message reuse it instead of copying the body again; the message's body
+   * then becomes a view of the encoded array, so it is not held twice.
+   *
+   * @return The encoded message. Callers must not modify it.
+   */
   public byte[] makeBytes() {
+    byte[] bytes = encoded;
+    if (bytes != null) return bytes;
+
     byte[] header = getHeaderBytes();
+    ByteBuffer body = bodyView();
 
-    if (body == null) return header;
+    if (body == null) return encoded = header;
 
-    int length = header.length + body.length;
-    byte[] bytes = new byte[length];
+    int length = body.remaining();
+    bytes = new byte[header.length + length];
 
     System.arraycopy(header, 0, bytes, 0, header.length);
-    System.arraycopy(body, 0, bytes, header.length, body.length);
+    body.get(bytes, header.length, length);
 
-    return bytes;
+    this.bodyView = ByteBuffer.wrap(bytes, header.length, length).slice();
+    this.body = null;
+    return encoded = bytes;
+  }
+
+  /**
+   * Write the encoded message into a buffer, e.g. a reusable direct send buffer, without
+   * building the whole encoding in an intermediate array.
+   *
+   * @param buffer The destination, with enough room for the message
+   */
+  public void writeTo(ByteBuffer buffer) {
+    byte[] bytes = encoded;
+    if (bytes != null) {
+      buffer.put(bytes);
+      return;
+    }
+
+    buffer.put(getHeaderBytes());
+    ByteBuffer body = bodyView();
+    if (body != null) buffer.put(body);
   }
 
   public DatagramPacket getPacket(int port, InetAddress address) {
@@ -75,19 +190,6 @@ public class Message {
     return getPacket(port, address);
   }
 
-  private static void validateMainHeader(String [] parts) throws MessageException {
-    if (parts.length == 0) {
-      throw new MessageException("Main message header is empty");
-    }
-
-    MessageType type = MessageType.from(parts[0]);  // can throw too
-
-    if (parts.length != type.fields()) {
-      throw new MessageException("Incomplete message header for " + parts[0]
-          + " message: expected " + type.fields() + " fields, got " + parts.length + ".");
-    }
-  }
-
   public static void validateVersion(String version) throws MessageException {
     if (!Utils.validVersion(version)) {
       throw new MessageException("Invalid protocol version: " + version);
@@ -106,25 +208,12 @@ public class Message {
     }
   }
 
-  private static void validateChunkNo(String chunkNo) throws MessageException {
-    if (!Utils.validChunkNo(chunkNo)) {
-      throw new MessageException("Invalid chunkNo: " + chunkNo);
-    }
-  }
-
   private static void validateChunkNo(int chunkNo) throws MessageException {
     if (!Utils.validChunkNo(chunkNo)) {
       throw new MessageException("Invalid chunkNo: " + chunkNo);
     }
   }
 
-  private static void validateReplicationDegree(String replication)
-      throws MessageException {
-    if (!Utils.validReplicationDegree(replication)) {
-      throw new MessageException("Invalid replication degree: " + replication);
-    }
-  }
-
   private static void validateReplicationDegree(int replication) throws MessageException {
     if (!Utils.validReplicationDegree(replication)) {
       throw new MessageException("Replication degree should be 1..9: " + replication);
@@ -132,109 +221,235 @@ public class Message {
   }
 
   /**
-   * Parse a String corresponding to the first header line, and assign it to this message.
-   * Weak exception guarantee (can be made strong)
+   * Parse one field of the first header line, in [from, to) of the buffer, and assign
+   * it to this message. The field is validated with byte checks, without building an
+   * intermediate string for it.
    *
-   * @param header header string
+   * @param index The field's index in the header line (0 is the message type)
    */
-  private void parseMainHeader(String header) throws MessageException {
-    String[] parts = header.split(" ");
-
-    validateMainHeader(parts);
-    messageType = MessageType.from(parts[0]);
+  private void parseField(int index, ByteBuffer buffer, int from, int to)
+      throws MessageException {
+    int length = to - from;
+    switch (index) {
+      case 1:
+        if (length != 3 || !Bytes.isDigit(buffer.get(from)) || buffer.get(from + 1) != '.'
+            || !Bytes.isDigit(buffer.get(from + 2))) {
+          throw new MessageException("Invalid protocol version: "
+              + Bytes.ascii(buffer, from, Math.min(to, from + 16)));
+        }
+        version = VERSIONS[10 * (buffer.get(from) - '0') + (buffer.get(from + 2) - '0')];
+        break;
+      case 2:
+        if (length > MAX_SENDER_DIGITS || !Bytes.digits(buffer, from, to)) {
+          throw new MessageException("Invalid sender id: "
+              + Bytes.ascii(buffer, from, Math.min(to, from + 32)));
+        }
+        senderId = Bytes.ascii(buffer, from, to);
+        break;
+      case 3:
+        if (length != 64 || !Bytes.hex(buffer, from, to)) {
+          throw new MessageException("Invalid file hash: "
+              + Bytes.ascii(buffer, from, Math.min(to, from + 80)));
+        }
+        fileId = Bytes.ascii(buffer, from, to);
+        break;
+      case 4:
+        if (length > MAX_CHUNKNO_DIGITS || !Bytes.digits(buffer, from, to)) {
+          throw new MessageException("Invalid chunkNo: "
+              + Bytes.ascii(buffer, from, Math.min(to, from + 16)));
+        }
+        chunkNo = Bytes.parseDigits(buffer, from, to);
+        break;
+      case 5:
+        if (length != 1 || !Bytes.isDigit(buffer.get(from))) {
+          throw new MessageException("Invalid replication degree: "
+              + Bytes.ascii(buffer, from, Math.min(to, from + 16)));
+        }
+        replication = buffer.get(from) - '0';
+        break;
+      default:
+        break;
+    }
+  }
 
-    if (parts.length >= 2) {
-      validateVersion(parts[1]);
-      version = parts[1];
+  /**
+   * Parse the first header line, in [from, to) of the buffer, and assign it to this
+   * message. Fields may be separated by more than one space, and trailing spaces are
+   * allowed.
+   * Weak exception guarantee (can be made strong)
+   */
+  private void parseMainHeader(ByteBuffer buffer, int from, int to)
+      throws MessageException {
+    int start = Bytes.skipSpaces(buffer, from, to);
+    if (start == to) {
+      throw new MessageException("Main message header is empty");
     }
 
-    if (parts.length >= 3) {
-      validateSenderId(parts[2]);
-      senderId = parts[2];
+    int end = Bytes.tokenEnd(buffer, start, to);
+    messageType = MessageType.from(buffer, start, end);  // can throw too
+
+    int fields = 1;
+    while ((start = Bytes.skipSpaces(buffer, end, to)) < to) {
+      end = Bytes.tokenEnd(buffer, start, to);
+      if (fields == messageType.fields()) {
+        throw new MessageException("Too many fields for " + messageType
+            + " message: expected " + messageType.fields() + ".");
+      }
+      parseField(fields++, buffer, start, end);
     }
 
-    if (parts.length >= 4) {
-      validateFileId(parts[3]);
-      fileId = parts[3];
+    if (fields != messageType.fields()) {
+      throw new MessageException("Incomplete message header for " + messageType
+          + " message: expected " + messageType.fields() + " fields, got " + fields + ".");
     }
+  }
 
-    if (parts.length >= 5) {
-      validateChunkNo(parts[4]);
-      chunkNo = Integer.parseInt(parts[4]);
+  /**
+   * Parse the extra header lines, in [from, to) of the buffer. Only called if there is
+   * at least one such line.
+   */
+  private static String[] parseExtraHeaders(ByteBuffer buffer, int from, int to) {
+    int lines = 1;
+    for (int i = Bytes.indexOfLineEnd(buffer, from, to); i < to;
+         i = Bytes.indexOfLineEnd(buffer, i + 2, to)) {
+      ++lines;
     }
 
-    if (parts.length >= 6) {
-      validateReplicationDegree(parts[5]);
-      replication = Integer.parseInt(parts[5]);
+    String[] headers = new String[lines];
+    for (int line = 0; line < lines; ++line) {
+      int end = Bytes.indexOfLineEnd(buffer, from, to);
+      headers[line] = Bytes.ascii(buffer, from, end);
+      from = end + 2;
     }
+    return headers;
   }
 
   /**
-   * Parse a collection of headers and assign it to this message.
-   * Weak exception guarantee (can be made strong).
+   * Parse the message bytes, scanning the buffer's remaining bytes once. The buffer's
+   * position is left untouched, and the body (if any) becomes a view of the buffer
+   * rather than a copy.
    *
-   * @param headers The list of headers (v1.0 has just one)
+   * @param buffer The received message's bytes, properly trimmed.
+   * @throws MessageException If there is any problem with the message format whatsoever.
    */
-  private void parseHeaders(String [] headers) throws MessageException {
-    if (headers.length == 0) {
-      throw new MessageException("Message has no headers");
+  private void parse(ByteBuffer buffer) throws MessageException {
+    int start = buffer.position();
+    int end = buffer.limit();
+
+    int headerEnd = Bytes.indexOfHeaderEnd(buffer, start, end);
+    if (headerEnd < 0) {
+      throw new MessageException("Invalid Message byte array: no header separator");
     }
 
-    parseMainHeader(headers[0]);
-    more = Arrays.copyOfRange(headers, 1, headers.length);
+    // The first line is the main header, the others up to headerEnd are extra headers.
+    int lineEnd = Bytes.indexOfLineEnd(buffer, start, headerEnd);
+    parseMainHeader(buffer, start, lineEnd);
+    more = lineEnd == headerEnd ? NO_HEADERS
+                                : parseExtraHeaders(buffer, lineEnd + 2, headerEnd);
+
+    int bodyStart = headerEnd + 4;
+    if (messageType.hasBody()) {
+      bodyView = Bytes.slice(buffer, bodyStart, end);
+    } else if (bodyStart != end) {
+      throw new MessageException("Non-empty body in " + messageType + " " + end);
+    }
   }
 
   /**
-   * Parse the message byte array.
+   * Peek at the chunk key of a received message without parsing (or validating) the
+   * whole message, e.g. to route it or to recognize a duplicate before it is queued for
+   * processing. The buffer's position is left untouched.
    *
-   * @param bytes The received message's byte array, properly trimmed.
-   * @throws MessageException If there is any problem with the message format whatsoever.
+   * @param buffer The received datagram, flipped for reading
+   * @return The chunk key, or null if the datagram does not start like a message with a
+   * chunk number (DELETE and DELETED have none).
    */
-  private void parse(byte [] bytes, int length) throws MessageException {
-    try {
-      // Find index of first occurrence of \r\n\r\n
-      // TODO: use a BufferedStream
-      int index = new String(bytes, 0, length, UTF_8).indexOf("\r\n\r\n");
-      if (index < 0) {
-        throw new MessageException("Invalid Message byte array: no header separator");
-      }
+  public static ChunkKey peekChunkKey(ByteBuffer buffer) {
+    return peek(buffer, null);
+  }
 
-      // Headers up to index, body after index
-      byte[] headersBytes = Arrays.copyOfRange(bytes, 0, index);
-      String[] headers = new String(headersBytes).split("\r\n");
+  /**
+   * Same as peekChunkKey, for whole PUTCHUNK messages only.
+   *
+   * @return The chunk key, or null if the datagram does not start like a PUTCHUNK, or
+   * is only a fragment of one.
+   */
+  public static ChunkKey peekPutchunk(ByteBuffer buffer) {
+    int lineEnd = Bytes.indexOfLineEnd(buffer, buffer.position(), buffer.limit());
+    int from = lineEnd + 2;
+    int to = from + FRAGMENT_WORD.length;
+    if (to <= buffer.limit() && Bytes.equalsAscii(buffer, from, to, FRAGMENT_WORD)) {
+      return null;
+    }
+    return peek(buffer, MessageType.PUTCHUNK);
+  }
 
-      parseHeaders(headers);
+  private static ChunkKey peek(ByteBuffer buffer, MessageType only) {
+    int to = Bytes.indexOfLineEnd(buffer, buffer.position(), buffer.limit());
+    int start = Bytes.skipSpaces(buffer, buffer.position(), to);
+    int end = Bytes.tokenEnd(buffer, start, to);
 
-      if (messageType.hasBody()) {
-        body = Arrays.copyOfRange(bytes, index + 4, length);
-      } else if (index + 4 != length) {
-        throw new MessageException("Non-empty body in " + messageType + length);
-      }
+    MessageType type;
+    try {
+      type = MessageType.from(buffer, start, end);
+    } catch (MessageException e) {
+      return null;
+    }
+    if ((only != null && type != only) || type.fields() < 5) return null;
 
-    } catch (IllegalArgumentException e) {
-      throw new MessageException(e.getMessage());
+    // Skip the version and the sender id, up to the file id.
+    for (int field = 1; field <= 3; ++field) {
+      start = Bytes.skipSpaces(buffer, end, to);
+      end = Bytes.tokenEnd(buffer, start, to);
     }
+    if (end - start != 64 || !Bytes.hex(buffer, start, end)) return null;
+    String fileId = Bytes.ascii(buffer, start, end);
+
+    start = Bytes.skipSpaces(buffer, end, to);
+    end = Bytes.tokenEnd(buffer, start, to);
+    if (end - start > MAX_CHUNKNO_DIGITS || !Bytes.digits(buffer, start, end)) {
+      return null;
+    }
+
+    return new ChunkKey(fileId, Bytes.parseDigits(buffer, start, end));
   }
 
   /**
-   * [RECEIVE] Constructs a message directly from a block of bytes, properly trimmed
+   * [RECEIVE] Constructs a message directly from a block of bytes, properly trimmed.
+   * The body is a view of the given array.
    */
   public Message(byte [] bytes) throws MessageException {
-    parse(bytes, bytes.length);
+    parse(ByteBuffer.wrap(bytes));
   }
 
   /**
    * [RECEIVE] Construct a message directly from a received Datagram packet.
+   * The body is a view of the packet's data array.
    *
    * @param packet The received UDP packet
    */
   public Message(DatagramPacket packet) throws MessageException {
-    parse(packet.getData(), packet.getLength());
+    parse(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()));
 
     this.port = packet.getPort();
     this.address = packet.getAddress();
   }
 
+  /**
+   * [RECEIVE] Construct a message from a datagram read into a (pooled) byte buffer.
+   * The message's body is a view of the buffer, so it is only valid until the buffer is
+   * recycled; anyone who keeps the body for longer must copy it with getBody().
+   *
+   * @param buffer The received datagram, flipped for reading
+   * @param source The datagram's source address
+   */
+  public Message(ByteBuffer buffer, InetSocketAddress source) throws MessageException {
+    parse(buffer);
+
+    this.port = source.getPort();
+    this.address = source.getAddress();
+  }
+
   /**
    * [SEND] Construct a message given all fields.
    */
@@ -286,6 +501,50 @@ public class Message {
     return PUTCHUNK(fileId, Configuration.version, chunkNo, replication, body);
   }
 
+  /**
+   * Construct a PUTCHUNK message for a shard of a file backed up with erasure coding.
+   * An extra STRIPE header line carries the file's layout, so a receiver can tell which
+   * chunks share the shard's stripe (enhanced peers only).
+   *
+   * @param fileId      This chunk's file id
+   * @param version     The protocol's version
+   * @param chunkNo     This chunk's number
+   * @param replication This chunk's desired replication degree
+   * @param body        The chunk content
+   * @param layout      The erasure layout of the file
+   * @return The constructed Message
+   * @throws MessageError   If any of the fields has a protocol-prohibited value
+   * @throws AssertionError If any of the fields has an invalid value
+   */
+  public static Message PUTCHUNK(String fileId, String version, int chunkNo,
+                                 int replication, byte [] body, ErasureLayout layout) {
+    String stripe = STRIPE_HEADER + layout.getDataShards() + " " + layout.getParityShards()
+        + " " + layout.getDataChunks();
+    return new Message(MessageType.PUTCHUNK, version, fileId, chunkNo, replication,
+        new String[]{stripe}, body);
+  }
+
+  /**
+   * Construct a PUTDIGEST message, announcing a chunk by the SHA-256 digest of its
+   * content, in an extra DIGEST header line, instead of sending the content. Peers that
+   * already store identical content store the chunk by reference and reply STORED
+   * (enhanced peers only).
+   *
+   * @param putchunk The PUTCHUNK message of the chunk, whose fields and extra header
+   *                 lines are kept
+   * @param digest   The chunk content's SHA-256 digest, in hex
+   * @return The constructed Message
+   * @throws MessageError   If any of the fields has a protocol-prohibited value
+   * @throws AssertionError If any of the fields has an invalid value
+   */
+  public static Message PUTDIGEST(Message putchunk, String digest) {
+    assert putchunk.messageType == MessageType.PUTCHUNK && Utils.validFileId(digest);
+    String[] lines = Arrays.copyOf(putchunk.more, putchunk.more.length + 1);
+    lines[putchunk.more.length] = DIGEST_HEADER + digest;
+    return new Message(MessageType.PUTDIGEST, putchunk.version, putchunk.fileId,
+        putchunk.chunkNo, putchunk.replication, lines, null);
+  }
+
   /**
    * Construct a STORED message. Required camps: fileId and chunkNo.
    *
@@ -326,6 +585,23 @@ public class Message {
     return GETCHUNK(fileId, Configuration.version, chunkNo);
   }
 
+  /**
+   * Construct a GETCHUNK message asking for the chunk to be sent over TCP, to the given
+   * port of the sender's address (enhanced peers only).
+   *
+   * @param fileId  The desired chunk's file id
+   * @param version The protocol's version
+   * @param chunkNo The desired chunk's number
+   * @param port    The port where the sender accepts the chunk
+   * @return The constructed Message
+   * @throws MessageError   If any of the fields has a protocol-prohibited value
+   * @throws AssertionError If any of the fields has an invalid value
+   */
+  public static Message GETCHUNK(String fileId, String version, int chunkNo, int port) {
+    return new Message(MessageType.GETCHUNK, version, fileId, chunkNo, 0, endpoint(port),
+        null);
+  }
+
   /**
    * Construct a CHUNK message. Required camps: fileId, chunkNo and body.
    *
@@ -348,6 +624,112 @@ public class Message {
     return CHUNK(fileId, Configuration.version, chunkNo, body);
   }
 
+  /**
+   * Construct a header-only CHUNK message, announcing on MDR that the chunk is being
+   * sent to its initiator over TCP, so that the other peers holding it do not send it
+   * too (enhanced peers only).
+   *
+   * @param fileId  This chunk's file id
+   * @param version The protocol's version
+   * @param chunkNo This chunk's number
+   * @return The constructed Message
+   * @throws MessageError   If any of the fields has a protocol-prohibited value
+   * @throws AssertionError If any of the fields has an invalid value
+   */
+  public static Message CHUNK(String fileId, String version, int chunkNo) {
+    return new Message(MessageType.CHUNK, version, fileId, chunkNo, 0,
+        new String[]{UNICAST_HEADER}, null);
+  }
+
+  /**
+   * One of the messages protected by a PARITY message: the chunk it carried, its
+   * replication degree (PUTCHUNK only) and its body length.
+   */
+  public static final class ParityMember {
+    private final String fileId;
+    private final int chunkNo;
+    private final int replication;
+    private final int length;
+
+    private ParityMember(String fileId, int chunkNo, int replication, int length) {
+      this.fileId = fileId;
+      this.chunkNo = chunkNo;
+      this.replication = replication;
+      this.length = length;
+    }
+
+    public String getFileId() {
+      return fileId;
+    }
+
+    public int getChunkNo() {
+      return chunkNo;
+    }
+
+    public int getReplication() {
+      return replication;
+    }
+
+    public int getLength() {
+      return length;
+    }
+  }
+
+  /**
+   * Construct a PARITY message, which protects a group of PUTCHUNK or CHUNK messages
+   * sent in a row by the same peer on the same channel (forward error correction). The
+   * body is the XOR of the members' bodies, each padded with zeros to the longest one,
+   * and each member is described by an extra MEMBER header line, so a receiver that
+   * lost exactly one of them can rebuild it.
+   *
+   * @param version The protocol's version
+   * @param members The protected messages, at least one, all of the same type
+   * @param parity  The XOR of the members' bodies
+   * @return The constructed Message
+   * @throws MessageError   If any of the fields has a protocol-prohibited value
+   * @throws AssertionError If any of the fields has an invalid value
+   */
+  public static Message PARITY(String version, Message[] members, byte[] parity) {
+    assert members.length > 0;
+    Message first = members[0];
+    String[] lines = new String[members.length + 1];
+    lines[0] = FOR_HEADER + first.messageType;
+    for (int i = 0; i < members.length; ++i) {
+      Message member = members[i];
+      lines[i + 1] = MEMBER_HEADER + member.fileId + " " + member.chunkNo + " "
+          + member.replication + " " + member.getBodyLength();
+    }
+    return new Message(MessageType.PARITY, version, first.fileId, first.chunkNo, 0, lines,
+        parity);
+  }
+
+  /**
+   * Construct a GETFRAGMENTS message, asking the sender of a PUTCHUNK or CHUNK sent in
+   * fragments to resend the fragments that did not arrive (large chunk mode only). The
+   * body is a bitmap of the missing fragments: bit i of byte j (least significant
+   * first) stands for fragment 8 * j + i.
+   *
+   * @param fileId  The chunk's file id
+   * @param version The protocol's version
+   * @param chunkNo The chunk's number
+   * @param of      The type of the message sent in fragments, PUTCHUNK or CHUNK
+   * @param missing The indices of the missing fragments, at least one
+   * @return The constructed Message
+   * @throws MessageError   If any of the fields has a protocol-prohibited value
+   * @throws AssertionError If any of the fields has an invalid value
+   */
+  public static Message GETFRAGMENTS(String fileId, String version, int chunkNo,
+                                     MessageType of, BitSet missing) {
+    assert of.hasBody() && !missing.isEmpty();
+    return new Message(MessageType.GETFRAGMENTS, version, fileId, chunkNo, 0,
+        new String[]{FOR_HEADER + of}, missing.toByteArray());
+  }
+
+  public static Message GETFRAGMENTS(String fileId, int chunkNo, MessageType of,
+                                     BitSet missing) {
+    return GETFRAGMENTS(fileId, Configuration.version, chunkNo, of, missing);
+  }
+
   /**
    * Construct a DELETE message. Required camps: fileId.
    *
@@ -402,6 +784,70 @@ public class Message {
     return REMOVED(fileId, Configuration.version, chunkNo);
   }
 
+  /**
+   * Encode a set of chunk numbers as the chunk number field, the first chunk of the
+   * set, and a bitmap body of the chunks from there on: bit i of byte j (least
+   * significant first) stands for chunk chunkNo + 8 * j + i.
+   */
+  private static Message chunkSet(MessageType type, String fileId, String version,
+                                  BitSet chunks, String[] more) {
+    assert !chunks.isEmpty();
+    int first = chunks.nextSetBit(0);
+    byte[] bitmap = chunks.get(first, chunks.length()).toByteArray();
+    return new Message(type, version, fileId, first, 0, more, bitmap);
+  }
+
+  private static String[] endpoint(int port) {
+    return new String[]{ENDPOINT_HEADER + port};
+  }
+
+  /**
+   * Construct a STOREDSET message, the enhanced counterpart of STORED that acknowledges
+   * many chunks of one file at once.
+   *
+   * @param fileId  The stored chunks' file id
+   * @param version The protocol's version
+   * @param chunks  The stored chunks' numbers, at least one
+   * @return The constructed Message
+   * @throws MessageError   If any of the fields has a protocol-prohibited value
+   * @throws AssertionError If any of the fields has an invalid value
+   */
+  public static Message STOREDSET(String fileId, String version, BitSet chunks) {
+    return chunkSet(MessageType.STOREDSET, fileId, version, chunks, null);
+  }
+
+  public static Message STOREDSET(String fileId, BitSet chunks) {
+    return STOREDSET(fileId, Configuration.version, chunks);
+  }
+
+  /**
+   * Construct a GETCHUNKSET message, the enhanced counterpart of GETCHUNK that requests
+   * many chunks of one file at once.
+   *
+   * @param fileId  The desired chunks' file id
+   * @param version The protocol's version
+   * @param chunks  The desired chunks' numbers, at least one
+   * @return The constructed Message
+   * @throws MessageError   If any of the fields has a protocol-prohibited value
+   * @throws AssertionError If any of the fields has an invalid value
+   */
+  public static Message GETCHUNKSET(String fileId, String version, BitSet chunks) {
+    return chunkSet(MessageType.GETCHUNKSET, fileId, version, chunks, null);
+  }
+
+  /**
+   * Construct a GETCHUNKSET message asking for the chunks to be sent over TCP, to the
+   * given port of the sender's address.
+   */
+  public static Message GETCHUNKSET(String fileId, String version, BitSet chunks,
+                                    int port) {
+    return chunkSet(MessageType.GETCHUNKSET, fileId, version, chunks, endpoint(port));
+  }
+
+  public static Message GETCHUNKSET(String fileId, BitSet chunks) {
+    return GETCHUNKSET(fileId, Configuration.version, chunks);
+  }
+
   public MessageType getType() {
     return messageType;
   }
@@ -426,16 +872,289 @@ public class Message {
     return replication;
   }
 
+  /**
+   * Decode the bitmap of a STOREDSET or GETCHUNKSET message, without copying its body.
+   *
+   * @return The numbers of the chunks in the set, in increasing order.
+   */
+  public int[] getChunkSet() {
+    if (messageType != MessageType.STOREDSET && messageType != MessageType.GETCHUNKSET)
+      throw new IllegalStateException("This message type has no set of chunks");
+    ByteBuffer bitmap = bodyView();
+    if (bitmap == null) return new int[0];
+
+    int count = 0;
+    for (int i = bitmap.position(); i < bitmap.limit(); ++i) {
+      count += Integer.bitCount(bitmap.get(i) & 0xff);
+    }
+
+    int[] chunks = new int[count];
+    int next = 0;
+    for (int j = 0; j < bitmap.remaining(); ++j) {
+      int bits = bitmap.get(bitmap.position() + j) & 0xff;
+      for (int i = 0; bits != 0; ++i, bits >>>= 1) {
+        if ((bits & 1) != 0) chunks[next++] = chunkNo + 8 * j + i;
+      }
+    }
+    return chunks;
+  }
+
   public String[] getExtraHeaders() {
     return more;
   }
 
+  /**
+   * @return The endpoint where the sender of a GETCHUNK or GETCHUNKSET wants the chunks
+   * sent over TCP: the port in its ENDPOINT header line, at the address the message came
+   * from. Null if the message has no such line, or was not received from the network.
+   */
+  public InetSocketAddress getEndpoint() {
+    if (address == null) return null;
+    for (String line : more) {
+      if (!line.startsWith(ENDPOINT_HEADER)) continue;
+      try {
+        int port = Integer.parseInt(line.substring(ENDPOINT_HEADER.length()).trim());
+        return port > 0 && port <= 0xffff ? new InetSocketAddress(address, port) : null;
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Split this message into fragments whose bodies have at most fragmentSize bytes,
+   * for a chunk too large for one datagram. Each fragment is a copy of this message
+   * with a slice of the body and an extra FRAGMENT header line with its index and the
+   * number of fragments.
+   *
+   * @return The fragments, in order.
+   */
+  public Message[] fragments(int fragmentSize) {
+    byte[] whole = bodyBytes();
+    int count = Math.max((whole.length + fragmentSize - 1) / fragmentSize, 1);
+    Message[] fragments = new Message[count];
+
+    for (int index = 0; index < count; ++index) {
+      int from = index * fragmentSize;
+      int to = Math.min(from + fragmentSize, whole.length);
+      String[] lines = Arrays.copyOf(more, more.length + 1);
+      lines[more.length] = FRAGMENT_HEADER + index + " " + count;
+
+      Message fragment = new Message(messageType, version, fileId, chunkNo, replication,
+          lines, Arrays.copyOfRange(whole, from, to));
+      fragment.senderId = senderId;
+      fragments[index] = fragment;
+    }
+    return fragments;
+  }
+
+  /**
+   * @return The index and the number of fragments in this fragment's FRAGMENT header
+   * line, or null if this message is not a fragment or the line is malformed.
+   */
+  public int[] getFragment() {
+    for (String line : more) {
+      if (!line.startsWith(FRAGMENT_HEADER)) continue;
+      String[] fields = line.substring(FRAGMENT_HEADER.length()).trim().split(" +");
+      if (fields.length != 2) return null;
+      try {
+        int index = Integer.parseInt(fields[0]);
+        int count = Integer.parseInt(fields[1]);
+        return index >= 0 && index < count ? new int[]{index, count} : null;
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return true if this message has a FRAGMENT header line, even a malformed one.
+   */
+  public boolean isFragment() {
+    for (String line : more) {
+      if (line.startsWith(FRAGMENT_HEADER)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Rebuild the whole message from one of its fragments and the reassembled body. The
+   * result keeps every field of this fragment, including its source, but the FRAGMENT
+   * header line.
+   *
+   * @param whole The body reassembled from all the fragments
+   * @return The whole message.
+   */
+  public Message reassembled(byte[] whole) {
+    String[] lines = Arrays.stream(more).filter(line -> !line.startsWith(FRAGMENT_HEADER))
+        .toArray(String[]::new);
+    Message message = new Message(messageType, version, fileId, chunkNo, replication,
+        lines, whole);
+    message.senderId = senderId;
+    message.address = address;
+    message.port = port;
+    return message;
+  }
+
+  /**
+   * @return The type named by the FOR header line, or null if the line is missing or
+   * names no known type.
+   */
+  private MessageType forType() {
+    for (String line : more) {
+      if (!line.startsWith(FOR_HEADER)) continue;
+      try {
+        return MessageType.from(line.substring(FOR_HEADER.length()).trim());
+      } catch (MessageException e) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return The type of the message whose fragments this GETFRAGMENTS asks for, or null
+   * if its FOR header line is missing or names no known type.
+   */
+  public MessageType getFragmentsOf() {
+    if (messageType != MessageType.GETFRAGMENTS)
+      throw new IllegalStateException("This message type does not ask for fragments");
+    return forType();
+  }
+
+  /**
+   * @return The type of the messages this PARITY protects, or null if its FOR header
+   * line is missing or names no known type.
+   */
+  public MessageType getParityOf() {
+    if (messageType != MessageType.PARITY)
+      throw new IllegalStateException("This message type is not a parity");
+    return forType();
+  }
+
+  /**
+   * @return The messages this PARITY protects, in order, from its MEMBER header lines.
+   * @throws MessageException If some MEMBER line is malformed.
+   */
+  public ParityMember[] getParityMembers() throws MessageException {
+    if (messageType != MessageType.PARITY)
+      throw new IllegalStateException("This message type is not a parity");
+
+    ArrayList<ParityMember> members = new ArrayList<>();
+    for (String line : more) {
+      if (!line.startsWith(MEMBER_HEADER)) continue;
+      String[] fields = line.substring(MEMBER_HEADER.length()).trim().split(" +");
+      if (fields.length != 4 || !Utils.validFileId(fields[0])
+          || !Utils.validChunkNo(fields[1]) || !Utils.validReplicationDegree(fields[2])
+          || !Utils.validChunkNo(fields[3]) || fields[1].length() > MAX_CHUNKNO_DIGITS
+          || fields[3].length() > MAX_CHUNKNO_DIGITS) {
+        throw new MessageException("Invalid parity member: " + line);
+      }
+      members.add(new ParityMember(fields[0], Integer.parseInt(fields[1]),
+          Integer.parseInt(fields[2]), Integer.parseInt(fields[3])));
+    }
+    return members.toArray(new ParityMember[0]);
+  }
+
+  /**
+   * @return The indices of the fragments this GETFRAGMENTS asks for.
+   */
+  public BitSet getMissingFragments() {
+    if (messageType != MessageType.GETFRAGMENTS)
+      throw new IllegalStateException("This message type does not ask for fragments");
+    ByteBuffer bitmap = bodyView();
+    return bitmap == null ? new BitSet() : BitSet.valueOf(bitmap);
+  }
+
+  /**
+   * @return The erasure layout in this PUTCHUNK's STRIPE header line, or null if the
+   * message has no such line or the line is malformed.
+   */
+  public ErasureLayout getLayout() {
+    for (String line : more) {
+      if (!line.startsWith(STRIPE_HEADER)) continue;
+      String[] fields = line.substring(STRIPE_HEADER.length()).trim().split(" +");
+      if (fields.length != 3) return null;
+      try {
+        return new ErasureLayout(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+            Integer.parseInt(fields[2]));
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return The content digest in this PUTDIGEST's DIGEST header line, in hex, or null
+   * if the message has no such line or the line is malformed.
+   */
+  public String getDigest() {
+    for (String line : more) {
+      if (!line.startsWith(DIGEST_HEADER)) continue;
+      String digest = line.substring(DIGEST_HEADER.length()).trim();
+      return Utils.validFileId(digest) ? digest.toLowerCase() : null;
+    }
+    return null;
+  }
+
+  /**
+   * @return true if this is a header-only CHUNK announcing a chunk sent over TCP.
+   */
+  public boolean isUnicast() {
+    return messageType == MessageType.CHUNK
+        && Arrays.asList(more).contains(UNICAST_HEADER);
+  }
+
   public byte[] getBody() {
     if (!messageType.hasBody())
       throw new IllegalStateException("This message type does not have a body");
+    return bodyBytes();
+  }
+
+  /**
+   * A read-only view of the body that does not copy it. For a message received into a
+   * pooled buffer the view is only valid while the message is being processed.
+   *
+   * @return The body's view, positioned at its first byte.
+   */
+  public ByteBuffer getBodyBuffer() {
+    if (!messageType.hasBody())
+      throw new IllegalStateException("This message type does not have a body");
+    ByteBuffer view = bodyView();
+    return view == null ? null : view.asReadOnlyBuffer();
+  }
+
+  /**
+   * @return The body's length in bytes, without copying it.
+   */
+  public int getBodyLength() {
+    if (!messageType.hasBody())
+      throw new IllegalStateException("This message type does not have a body");
+    if (bodyView != null) return bodyView.remaining();
+    return body == null ? 0 : body.length;
+  }
+
+  /**
+   * Copy the received body out of its view the first time it is requested.
+   */
+  private byte[] bodyBytes() {
+    if (body == null && bodyView != null) {
+      byte[] bytes = new byte[bodyView.remaining()];
+      bodyView.duplicate().get(bytes);
+      body = bytes;
+      bodyView = null;
+    }
     return body;
   }
 
+  private ByteBuffer bodyView() {
+    if (bodyView != null) return bodyView.duplicate();
+    return body == null ? null : ByteBuffer.wrap(body);
+  }
+
   public String getSenderId() {
     return senderId;
   }
@@ -449,12 +1168,15 @@ public class Message {
   }
 
   public void setSenderId(String senderId) {
+    if (senderId.equals(this.senderId)) return;
     try {
       validateSenderId(senderId);
     } catch (MessageException e) {
       throw new MessageError(e);
     }
     this.senderId = senderId;
+    this.header = null;
+    this.encoded = null;
   }
 
   public void setAddress(InetAddress address) {
@@ -489,6 +1211,21 @@ public class Message {
       case DELETED:
         base = "DELETED(" + fileId.substring(0, 10) + ')';
         break;
+      case STOREDSET:
+        base = "STOREDSET(" + fileId.substring(0, 10) + ',' + chunkNo + "..)";
+        break;
+      case GETCHUNKSET:
+        base = "GETCHUNKSET(" + fileId.substring(0, 10) + ',' + chunkNo + "..)";
+        break;
+      case GETFRAGMENTS:
+        base = "GETFRAGMENTS(" + fileId.substring(0, 10) + ',' + chunkNo + ')';
+        break;
+      case PARITY:
+        base = "PARITY(" + fileId.substring(0, 10) + ',' + chunkNo + "..)";
+        break;
+      case PUTDIGEST:
+        base = "PUTDIGEST(" + fileId.substring(0, 10) + ',' + chunkNo + ')';
+        break;
     }
     return base;
   }
@@ -506,7 +1243,8 @@ public class Message {
     text.append("\n      file id: ").append(fileId);
     text.append("\n        chunk: ").append(chunkNo);
     text.append("\n  replication: ").append(replication);
-    text.append("\n         body: ").append(body != null ? body.length : "null");
+    ByteBuffer view = bodyView();
+    text.append("\n         body: ").append(view != null ? view.remaining() : "null");
     if (address != null && port != 0) {
       text.append("\n to/from: ").append(address.toString()).append(":").append(port);
     }
@@ -522,7 +1260,8 @@ public class Message {
     return chunkNo == message.chunkNo && replication == message.replication
         && messageType == message.messageType && version.equals(message.version)
         && Objects.equals(senderId, message.senderId) && fileId.equals(message.fileId)
-        && Arrays.equals(more, message.more) && Arrays.equals(body, message.body);
+        && Arrays.equals(more, message.more)
+        && Objects.equals(bodyView(), message.bodyView());
   }
 
   @Override
@@ -530,7 +1269,7 @@ public class Message {
     int result = Objects.hash(messageType, version, senderId, fileId, chunkNo,
         replication);
     result = 31 * result + Arrays.hashCode(more);
-    result = 31 * result + Arrays.hashCode(body);
+    result = 31 * result + Objects.hashCode(bodyView());
     return result;
   }
 }
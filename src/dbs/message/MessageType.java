@@ -1,5 +1,9 @@
 package dbs.message;
 
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
 public enum MessageType {
   PUTCHUNK("PUTCHUNK"),
   STORED("STORED"),
@@ -7,12 +11,35 @@ public enum MessageType {
   CHUNK("CHUNK"),
   DELETE("DELETE"),
   REMOVED("REMOVED"),
-  DELETED ("DELETED");
+  DELETED ("DELETED"),
+  STOREDSET("STOREDSET"),
+  GETCHUNKSET("GETCHUNKSET"),
+  GETFRAGMENTS("GETFRAGMENTS"),
+  PARITY("PARITY"),
+  PUTDIGEST("PUTDIGEST");
+
+  private static final MessageType[] types = values();
 
   String str;
+  final byte[] word;
 
   MessageType(String s) {
     this.str = s;
+    this.word = s.getBytes(US_ASCII);
+  }
+
+  /**
+   * Byte level counterpart of from(String), used by the message parser.
+   *
+   * @return The message type spelled in [from, to) of the buffer.
+   * @throws MessageException If the bytes do not spell any message type.
+   */
+  static MessageType from(ByteBuffer buffer, int from, int to) throws MessageException {
+    for (MessageType type : types) {
+      if (Bytes.equalsAscii(buffer, from, to, type.word)) return type;
+    }
+    throw new MessageException("Unrecognized message type: "
+        + Bytes.ascii(buffer, from, Math.min(to, from + 16)));
   }
 
   public static MessageType from(String s) throws MessageException {
@@ -31,6 +58,16 @@ public enum MessageType {
         return REMOVED;
       case "DELETED":
         return DELETED;
+      case "STOREDSET":
+        return STOREDSET;
+      case "GETCHUNKSET":
+        return GETCHUNKSET;
+      case "GETFRAGMENTS":
+        return GETFRAGMENTS;
+      case "PARITY":
+        return PARITY;
+      case "PUTDIGEST":
+        return PUTDIGEST;
       default:
         throw new MessageException("Unrecognized message type: " + s);
     }
@@ -39,11 +76,16 @@ public enum MessageType {
   public int fields() {
     switch (this) {
       case PUTCHUNK:
+      case PUTDIGEST:
         return 6;
       case STORED:
       case GETCHUNK:
       case CHUNK:
       case REMOVED:
+      case STOREDSET:
+      case GETCHUNKSET:
+      case GETFRAGMENTS:
+      case PARITY:
         return 5;
       case DELETE:
       case DELETED:
@@ -57,6 +99,10 @@ public enum MessageType {
     switch (this) {
       case PUTCHUNK:
       case CHUNK:
+      case STOREDSET:
+      case GETCHUNKSET:
+      case GETFRAGMENTS:
+      case PARITY:
         return true;
       default:
         return false;
@@ -76,3 +122,8 @@ public enum MessageType {
 // DELETE   <Version> <SenderId> <FileId> .
 // REMOVED  <Version> <SenderId> <FileId> <ChunkNo> .
 // DELETED  <Version> <SenderId> <FileId> .
+// STOREDSET   <Version> <SenderId> <FileId> <ChunkNo> . <Bitmap>
+// GETCHUNKSET <Version> <SenderId> <FileId> <ChunkNo> . <Bitmap>
+// GETFRAGMENTS <Version> <SenderId> <FileId> <ChunkNo> . <Bitmap>
+// PARITY   <Version> <SenderId> <FileId> <ChunkNo> . <XOR of the members' bodies>
+// PUTDIGEST <Version> <SenderId> <FileId> <ChunkNo> <ReplicationDeg> .
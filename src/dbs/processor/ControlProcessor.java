@@ -1,5 +1,6 @@
 package dbs.processor;
 
+import dbs.BufferPool;
 import dbs.Configuration;
 import dbs.Multicaster;
 import dbs.Peer;
@@ -12,29 +13,52 @@ import dbs.transmitter.ReclaimHandler;
 import dbs.transmitter.RestoreHandler;
 
 import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 
 public class ControlProcessor implements Multicaster.Processor {
 
   private class ControlRunnable implements Runnable {
     private final DatagramPacket packet;
+    private final ByteBuffer buffer;
+    private final InetSocketAddress source;
+    private final BufferPool pool;
 
     ControlRunnable(DatagramPacket packet) {
       this.packet = packet;
+      this.buffer = null;
+      this.source = null;
+      this.pool = null;
+    }
+
+    ControlRunnable(ByteBuffer buffer, InetSocketAddress source, BufferPool pool) {
+      this.packet = null;
+      this.buffer = buffer;
+      this.source = source;
+      this.pool = pool;
+    }
+
+    private Message message() throws MessageException {
+      return packet != null ? new Message(packet) : new Message(buffer, source);
     }
 
     @Override
     public void run() {
       try {
-        Message m = new Message(packet);
+        Message m = message();
         String senderId = Long.toString(Peer.getInstance().getId());
         if (senderId.equals(m.getSenderId())) return;
         Peer.log("Received " + m.shortFrom() + " on MC", Level.INFO);
         this.processMessage(m);
       } catch (MessageException e) {
         Peer.log("Dropped message from channel MC", e, Level.INFO);
-        System.out.println(new String(packet.getData(), packet.getOffset(),
-            packet.getLength()));
+        if (packet != null) {
+          System.out.println(new String(packet.getData(), packet.getOffset(),
+              packet.getLength()));
+        }
+      } finally {
+        if (pool != null) pool.release(buffer);
       }
     }
 
@@ -44,9 +68,18 @@ public class ControlProcessor implements Multicaster.Processor {
         case STORED:
           this.processStoredMessage(m);
           break;
+        case STOREDSET:
+          this.processStoredsetMessage(m);
+          break;
         case GETCHUNK:
           this.processGetchunkMessage(m);
           break;
+        case GETCHUNKSET:
+          this.processGetchunksetMessage(m);
+          break;
+        case GETFRAGMENTS:
+          this.processGetfragmentsMessage(m);
+          break;
         case REMOVED:
           this.processRemovedMessage(m);
           break;
@@ -65,10 +98,22 @@ public class ControlProcessor implements Multicaster.Processor {
       BackupHandler.getInstance().receiveSTORED(m);
     }
 
+    private void processStoredsetMessage(Message m) {
+      BackupHandler.getInstance().receiveSTOREDSET(m);
+    }
+
     private void processGetchunkMessage(Message m) {
       RestoreHandler.getInstance().receiveGETCHUNK(m);
     }
 
+    private void processGetchunksetMessage(Message m) {
+      RestoreHandler.getInstance().receiveGETCHUNKSET(m);
+    }
+
+    private void processGetfragmentsMessage(Message m) {
+      Peer.getInstance().resendFragments(m);
+    }
+
     private void processRemovedMessage(Message m) {
       ReclaimHandler.getInstance().receiveREMOVED(m);
     }
@@ -98,4 +143,10 @@ public class ControlProcessor implements Multicaster.Processor {
   public final Runnable runnable(DatagramPacket packet) {
     return new ControlRunnable(packet);
   }
+
+  @Override
+  public final Runnable runnable(ByteBuffer buffer, InetSocketAddress source,
+                                 BufferPool pool) {
+    return new ControlRunnable(buffer, source, pool);
+  }
 }
@@ -1,5 +1,7 @@
 package dbs.processor;
 
+import dbs.BufferPool;
+import dbs.Configuration;
 import dbs.Multicaster;
 import dbs.Peer;
 import dbs.message.Message;
@@ -8,27 +10,51 @@ import dbs.message.MessageType;
 import dbs.transmitter.BackupHandler;
 
 import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 
 public class DataBackupProcessor implements Multicaster.Processor {
 
+  private final Reassembler reassembler = new Reassembler();
+  private final FecDecoder fec = new FecDecoder(MessageType.PUTCHUNK);
+
   private class DataBackupRunnable implements Runnable {
     private final DatagramPacket packet;
+    private final ByteBuffer buffer;
+    private final InetSocketAddress source;
+    private final BufferPool pool;
 
     DataBackupRunnable(DatagramPacket packet) {
       this.packet = packet;
+      this.buffer = null;
+      this.source = null;
+      this.pool = null;
+    }
+
+    DataBackupRunnable(ByteBuffer buffer, InetSocketAddress source, BufferPool pool) {
+      this.packet = null;
+      this.buffer = buffer;
+      this.source = source;
+      this.pool = pool;
+    }
+
+    private Message message() throws MessageException {
+      return packet != null ? new Message(packet) : new Message(buffer, source);
     }
 
     @Override
     public final void run() {
       try {
-        Message m = new Message(packet);
+        Message m = message();
         String senderId = Long.toString(Peer.getInstance().getId());
         if (senderId.equals(m.getSenderId())) return;
         Peer.log("Received " + m.shortFrom() + " on MDB", Level.INFO);
         this.processMessage(m);
       } catch (MessageException e) {
         Peer.log("Dropped message from channel MDB", e, Level.INFO);
+      } finally {
+        if (pool != null) pool.release(buffer);
       }
     }
 
@@ -38,19 +64,44 @@ public class DataBackupProcessor implements Multicaster.Processor {
         case PUTCHUNK:
           this.processPutchunkMessage(m);
           break;
+        case PARITY:
+          this.processParityMessage(m);
+          break;
+        case PUTDIGEST:
+          if (Configuration.enhancedPeer) BackupHandler.getInstance().receivePUTDIGEST(m);
+          break;
           // ...
         default:
           Peer.log("Dropped message from channel MDB", Level.INFO);
       }
     }
 
+    private void processParityMessage(Message m) {
+      if (!fecEnabled()) return;
+      Message rebuilt = fec.recover(m);
+      if (rebuilt != null) BackupHandler.getInstance().receivePUTCHUNK(rebuilt);
+    }
+
     private void processPutchunkMessage(Message m) {
+      if (fecEnabled()) fec.received(m);
+      if (m.isFragment()) m = reassembler.offer(m);
+      if (m == null) return;
       BackupHandler.getInstance().receivePUTCHUNK(m);
     }
   }
 
+  private static boolean fecEnabled() {
+    return Configuration.enhancedPeer && Configuration.forwardErrorCorrection;
+  }
+
   @Override
   public final Runnable runnable(DatagramPacket packet) {
     return new DataBackupRunnable(packet);
   }
+
+  @Override
+  public final Runnable runnable(ByteBuffer buffer, InetSocketAddress source,
+                                 BufferPool pool) {
+    return new DataBackupRunnable(buffer, source, pool);
+  }
 }
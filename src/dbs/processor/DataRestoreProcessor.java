@@ -1,5 +1,8 @@
 package dbs.processor;
 
+import dbs.BufferPool;
+import dbs.ChunkKey;
+import dbs.Configuration;
 import dbs.Multicaster;
 import dbs.Peer;
 import dbs.message.Message;
@@ -8,27 +11,51 @@ import dbs.message.MessageType;
 import dbs.transmitter.RestoreHandler;
 
 import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 
 public class DataRestoreProcessor implements Multicaster.Processor {
 
+  private final Reassembler reassembler = new Reassembler();
+  private final FecDecoder fec = new FecDecoder(MessageType.CHUNK);
+
   private class DataRestoreRunnable implements Runnable {
     private final DatagramPacket packet;
+    private final ByteBuffer buffer;
+    private final InetSocketAddress source;
+    private final BufferPool pool;
 
     DataRestoreRunnable(DatagramPacket packet) {
       this.packet = packet;
+      this.buffer = null;
+      this.source = null;
+      this.pool = null;
+    }
+
+    DataRestoreRunnable(ByteBuffer buffer, InetSocketAddress source, BufferPool pool) {
+      this.packet = null;
+      this.buffer = buffer;
+      this.source = source;
+      this.pool = pool;
+    }
+
+    private Message message() throws MessageException {
+      return packet != null ? new Message(packet) : new Message(buffer, source);
     }
 
     @Override
     public void run() {
       try {
-        Message m = new Message(packet);
+        Message m = message();
         String senderId = Long.toString(Peer.getInstance().getId());
         if (senderId.equals(m.getSenderId())) return;
         Peer.log("Received " + m.shortFrom() + " on MDR", Level.INFO);
         this.processMessage(m);
       } catch (MessageException e) {
         Peer.log("Dropped message from channel MDR", e, Level.INFO);
+      } finally {
+        if (pool != null) pool.release(buffer);
       }
     }
 
@@ -38,18 +65,49 @@ public class DataRestoreProcessor implements Multicaster.Processor {
         case CHUNK:
           this.processChunkMessage(m);
           break;
+        case PARITY:
+          this.processParityMessage(m);
+          break;
         default:
           Peer.log("Dropped message from channel MDR", Level.INFO);
       }
     }
 
+    private void processParityMessage(Message m) {
+      if (!fecEnabled()) return;
+      Message rebuilt = fec.recover(m);
+      if (rebuilt != null) RestoreHandler.getInstance().receiveCHUNK(rebuilt);
+    }
+
     private void processChunkMessage(Message m) {
+      // Only the peer restoring the chunk keeps it for the parity.
+      if (fecEnabled() && RestoreHandler.getInstance().isRestoring(
+          new ChunkKey(m.getFileId(), m.getChunkNo()))) {
+        fec.received(m);
+      }
+      if (m.isFragment()) {
+        // Only the peer restoring the chunk reassembles it; for the others the first
+        // fragment is enough to know the chunk was sent.
+        if (!RestoreHandler.getInstance().receiveCHUNKFragment(m)) return;
+        m = reassembler.offer(m);
+        if (m == null) return;
+      }
       RestoreHandler.getInstance().receiveCHUNK(m);
     }
   }
 
+  private static boolean fecEnabled() {
+    return Configuration.enhancedPeer && Configuration.forwardErrorCorrection;
+  }
+
   @Override
   public final Runnable runnable(DatagramPacket packet) {
     return new DataRestoreRunnable(packet);
   }
+
+  @Override
+  public final Runnable runnable(ByteBuffer buffer, InetSocketAddress source,
+                                 BufferPool pool) {
+    return new DataRestoreRunnable(buffer, source, pool);
+  }
 }
\ No newline at end of file
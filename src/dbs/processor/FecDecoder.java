@@ -0,0 +1,123 @@
+package dbs.processor;
+
+import dbs.ChunkKey;
+import dbs.Configuration;
+import dbs.Peer;
+import dbs.Protocol;
+import dbs.message.Message;
+import dbs.message.MessageException;
+import dbs.message.MessageType;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Receiver side of the forward error correction, for the PUTCHUNK or CHUNK messages of
+ * one channel. The bodies of the messages received are kept for
+ * Configuration.fecRetention; when a PARITY arrives and exactly one of the messages it
+ * protects is missing, that message is rebuilt from the parity and the others, and
+ * processed as if it had been received.
+ */
+class FecDecoder {
+
+  private static final class Key {
+    private final String senderId;
+    private final ChunkKey chunk;
+
+    private Key(String senderId, ChunkKey chunk) {
+      this.senderId = senderId;
+      this.chunk = chunk;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key key = (Key) o;
+      return senderId.equals(key.senderId) && chunk.equals(key.chunk);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(senderId, chunk);
+    }
+  }
+
+  private final MessageType type;
+  private final ConcurrentHashMap<Key,byte[]> received = new ConcurrentHashMap<>();
+
+  /**
+   * @param type The type of the messages protected on this channel
+   */
+  FecDecoder(MessageType type) {
+    this.type = type;
+  }
+
+  /**
+   * Keep the body of a message received, in case a later PARITY needs it.
+   */
+  void received(Message message) {
+    if (message.isFragment() || message.getBodyLength() > Protocol.fragmentSize) return;
+
+    Key key = new Key(message.getSenderId(),
+        new ChunkKey(message.getFileId(), message.getChunkNo()));
+    byte[] body = message.getBody();
+    received.put(key, body);
+    Peer.getInstance().getPool().schedule(() -> received.remove(key, body),
+        Configuration.fecRetention, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Rebuild the message a PARITY protects and that was not received, if it is the only
+   * one missing.
+   *
+   * @param parity The PARITY message received
+   * @return The rebuilt message, or null if nothing is missing or too much is.
+   */
+  Message recover(Message parity) {
+    if (parity.getParityOf() != type) return null;
+
+    Message.ParityMember[] members;
+    try {
+      members = parity.getParityMembers();
+    } catch (MessageException e) {
+      Peer.log("Dropped parity from " + parity.getSenderId(), e, Level.INFO);
+      return null;
+    }
+
+    Message.ParityMember missing = null;
+    byte[][] bodies = new byte[members.length][];
+    for (int i = 0; i < members.length; ++i) {
+      Message.ParityMember member = members[i];
+      bodies[i] = received.get(new Key(parity.getSenderId(),
+          new ChunkKey(member.getFileId(), member.getChunkNo())));
+      if (bodies[i] != null) continue;
+      if (missing != null) return null;
+      missing = member;
+    }
+    if (missing == null || missing.getLength() > parity.getBodyLength()) return null;
+
+    byte[] body = new byte[missing.getLength()];
+    ByteBuffer xor = parity.getBodyBuffer();
+    xor.get(body);
+    for (byte[] other : bodies) {
+      if (other == null) continue;
+      for (int i = 0; i < Math.min(body.length, other.length); ++i) body[i] ^= other[i];
+    }
+
+    Message rebuilt = type == MessageType.PUTCHUNK
+        ? Message.PUTCHUNK(missing.getFileId(), parity.getVersion(), missing.getChunkNo(),
+            missing.getReplication(), body)
+        : Message.CHUNK(missing.getFileId(), parity.getVersion(), missing.getChunkNo(),
+            body);
+    rebuilt.setSenderId(parity.getSenderId());
+    rebuilt.setAddress(parity.getAddress());
+    rebuilt.setPort(parity.getPort());
+    Peer.log("Rebuilt " + rebuilt.shortFrom() + " from parity", Level.INFO);
+    received(rebuilt);
+    return rebuilt;
+  }
+}
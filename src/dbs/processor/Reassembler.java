@@ -0,0 +1,168 @@
+package dbs.processor;
+
+import dbs.ChunkKey;
+import dbs.Configuration;
+import dbs.Peer;
+import dbs.Protocol;
+import dbs.message.Message;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Receiver side of the large chunk mode: reassembles the PUTCHUNK or CHUNK messages of
+ * one channel that were sent in fragments. Each message being reassembled has a buffer
+ * for the whole chunk, filled as its fragments arrive in any order. If no fragment
+ * arrives for Configuration.fragmentTimeout, a GETFRAGMENTS asks the sender for the
+ * missing ones only; after Configuration.maxFragmentRequests such requests the partial
+ * message is dropped, and left to the protocol's own retransmissions.
+ */
+class Reassembler {
+
+  private static final class Key {
+    private final String senderId;
+    private final ChunkKey chunk;
+
+    private Key(String senderId, ChunkKey chunk) {
+      this.senderId = senderId;
+      this.chunk = chunk;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key key = (Key) o;
+      return senderId.equals(key.senderId) && chunk.equals(key.chunk);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(senderId, chunk);
+    }
+  }
+
+  private final class Partial implements Runnable {
+    private final Key key;
+    private final Message first;
+    private final int count;
+    private final byte[] body;
+    private final BitSet received;
+    private int length;
+    private int requests = 0;
+    private boolean progress = false;
+    private boolean done = false;
+
+    private Partial(Key key, Message first, int count) {
+      this.key = key;
+      this.first = first;
+      this.count = count;
+      this.body = new byte[count * Protocol.fragmentSize];
+      this.received = new BitSet(count);
+      this.length = body.length;
+      schedule();
+    }
+
+    private void schedule() {
+      Peer.getInstance().getPool().schedule(this, Configuration.fragmentTimeout,
+          TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Copy a fragment into the buffer.
+     *
+     * @return The whole message if this was its last missing fragment, null otherwise.
+     */
+    private synchronized Message add(Message fragment, int index) {
+      if (done || received.get(index)) return null;
+
+      int size = fragment.getBodyLength();
+      if (size > Protocol.fragmentSize || (index < count - 1
+          && size != Protocol.fragmentSize)) {
+        Peer.log("Dropped malformed fragment of " + fragment.shortFrom(), Level.INFO);
+        return null;
+      }
+
+      fragment.getBodyBuffer().get(body, index * Protocol.fragmentSize, size);
+      if (index == count - 1) length = index * Protocol.fragmentSize + size;
+      received.set(index);
+      progress = true;
+
+      if (received.cardinality() < count) return null;
+      done = true;
+      partials.remove(key, this);
+      byte[] whole = length == body.length ? body : Arrays.copyOf(body, length);
+      return first.reassembled(whole);
+    }
+
+    /**
+     * Drop a message whose fragments stopped arriving, or that was superseded.
+     */
+    private synchronized void drop() {
+      done = true;
+      partials.remove(key, this);
+    }
+
+    /**
+     * Scheduled function: ask for the missing fragments if none arrived lately.
+     */
+    @Override
+    public synchronized void run() {
+      if (done) return;
+      if (progress) {
+        progress = false;
+        schedule();
+        return;
+      }
+      if (requests++ >= Configuration.maxFragmentRequests) {
+        drop();
+        Peer.log("Dropped incomplete " + first.shortFrom(), Level.INFO);
+        return;
+      }
+
+      BitSet missing = new BitSet(count);
+      missing.set(0, count);
+      missing.andNot(received);
+      Peer.getInstance().send(Message.GETFRAGMENTS(first.getFileId(),
+          first.getChunkNo(), first.getType(), missing));
+      schedule();
+    }
+  }
+
+  private final ConcurrentHashMap<Key,Partial> partials = new ConcurrentHashMap<>();
+
+  /**
+   * Add a received fragment to its message.
+   *
+   * @param fragment A received PUTCHUNK or CHUNK fragment
+   * @return The whole message if this was its last missing fragment, null otherwise.
+   */
+  Message offer(Message fragment) {
+    int[] position = fragment.getFragment();
+    int maxCount = (Protocol.chunkSize + Protocol.fragmentSize - 1)
+        / Protocol.fragmentSize;
+    if (position == null || position[1] > maxCount) {
+      Peer.log("Dropped malformed fragment of " + fragment.shortFrom(), Level.INFO);
+      return null;
+    }
+
+    int index = position[0];
+    int count = position[1];
+    Key key = new Key(fragment.getSenderId(),
+        new ChunkKey(fragment.getFileId(), fragment.getChunkNo()));
+
+    while (true) {
+      Partial partial = partials.computeIfAbsent(key,
+          k -> new Partial(k, fragment, count));
+      if (partial.count != count) {
+        partial.drop();
+        continue;
+      }
+      return partial.add(fragment, index);
+    }
+  }
+}
@@ -6,10 +6,9 @@ import dbs.files.OwnFileInfo;
 import dbs.message.Message;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.logging.Level;
 
 public class BackupHandler {
@@ -29,15 +28,21 @@ public class BackupHandler {
 
   final ConcurrentHashMap<ChunkKey,StoredTransmitter> storers;
 
-  final ScheduledThreadPoolExecutor putchunkPool;
+  final StoredBatcher batcher;
 
-  final ScheduledThreadPoolExecutor storedPool;
+  final Scheduler putchunkPool;
+
+  final Scheduler storedPool;
+
+  final CongestionController congestion;
 
   private BackupHandler() {
     this.putchunkers = new ConcurrentHashMap<>();
     this.storers = new ConcurrentHashMap<>();
-    this.putchunkPool = new ScheduledThreadPoolExecutor(Configuration.putchunkPoolSize);
-    this.storedPool = new ScheduledThreadPoolExecutor(Configuration.storedPoolSize);
+    this.batcher = new StoredBatcher();
+    this.putchunkPool = new Scheduler(Configuration.putchunkPoolSize);
+    this.storedPool = new Scheduler(Configuration.storedPoolSize);
+    this.congestion = new CongestionController();
   }
 
   // Moved from ControlProcessor
@@ -52,10 +57,12 @@ public class BackupHandler {
 
     int chunkNumber = message.getChunkNo();
     int desiredReplicationDegree = message.getReplication();
-    byte[] chunk = message.getBody();
-    ChunkKey key = new ChunkKey(fileId, chunkNumber);
+    ByteBuffer chunk = message.getBodyBuffer();
 
     if (!FileInfoManager.getInstance().hasChunk(fileId, chunkNumber)) {
+      // Leave the shard to another peer if we already back up one of its stripe.
+      if (holdsStripe(message)) return;
+
       // this adds us as backup peer:
       boolean stored = FileInfoManager.getInstance().storeChunk(fileId, chunkNumber, chunk);
       if (!stored) return;
@@ -64,7 +71,80 @@ public class BackupHandler {
           desiredReplicationDegree);
     }
 
-    storers.computeIfAbsent(key, StoredTransmitter::new);
+    acknowledge(message);
+  }
+
+  /**
+   * Called whenever a PUTDIGEST message is received (enhanced peers only). If this peer
+   * stores content identical to the chunk announced, it stores the chunk by reference
+   * and acknowledges it as for a PUTCHUNK; otherwise it waits for the PUTCHUNK.
+   */
+  public void receivePUTDIGEST(Message message) {
+    ReclaimHandler.getInstance().alertPUTCHUNK(message);
+
+    String fileId = message.getFileId();
+    if (FileInfoManager.getInstance().hasOwnFileInfo(fileId)) return;
+
+    int chunkNumber = message.getChunkNo();
+    String digest = message.getDigest();
+    if (digest == null) return;
+
+    if (!FileInfoManager.getInstance().hasChunk(fileId, chunkNumber)) {
+      if (holdsStripe(message)) return;
+
+      boolean stored = FileInfoManager.getInstance().storeReference(fileId, chunkNumber,
+          digest);
+      if (!stored) return;
+
+      FileInfoManager.getInstance().setDesiredReplicationDegree(fileId,
+          message.getReplication());
+    }
+
+    acknowledge(message);
+  }
+
+  /**
+   * Reply STORED, or add the chunk to the next STOREDSET, for a chunk this peer stores.
+   */
+  private void acknowledge(Message putchunk) {
+    String fileId = putchunk.getFileId();
+    int chunkNumber = putchunk.getChunkNo();
+    if (batchStored(putchunk)) {
+      batcher.add(fileId, chunkNumber);
+    } else {
+      storers.computeIfAbsent(new ChunkKey(fileId, chunkNumber), StoredTransmitter::new);
+    }
+  }
+
+  /**
+   * @return true if the PUTCHUNK (or PUTDIGEST) carries a shard of a file backed up with
+   * erasure coding and this peer already backs up another shard of the same stripe,
+   * which would make a single peer hold two of the shards the stripe is meant to survive
+   * the loss of.
+   */
+  private static boolean holdsStripe(Message putchunk) {
+    if (!Configuration.enhancedPeer) return false;
+    ErasureLayout layout = putchunk.getLayout();
+    if (layout == null) return false;
+
+    String fileId = putchunk.getFileId();
+    int stripe = layout.stripeOf(putchunk.getChunkNo());
+    int shards = layout.getDataShards() + layout.getParityShards();
+    for (int shard = 0; shard < shards; ++shard) {
+      int chunkNo = layout.chunkOf(stripe, shard);
+      if (chunkNo >= 0 && FileInfoManager.getInstance().hasChunk(fileId, chunkNo))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * STOREDSET messages are only understood by enhanced peers, so a chunk is acknowledged
+   * in one only if its PUTCHUNK came from an enhanced initiator.
+   */
+  private static boolean batchStored(Message putchunk) {
+    return Configuration.enhancedPeer && Configuration.storedBatches
+        && putchunk.getVersion().compareTo(Protocol.newMessagesVersion) >= 0;
   }
 
   public void receiveSTORED(Message message) {
@@ -73,6 +153,34 @@ public class BackupHandler {
     Long senderId = Long.parseLong(message.getSenderId());
 
     FileInfoManager.getInstance().addBackupPeer(fileId, chunkNo, senderId);
+
+    PutchunkTransmitter putchunker = putchunkers.get(new ChunkKey(fileId, chunkNo));
+    if (putchunker != null) stored(putchunker);
+  }
+
+  /**
+   * Notify a transmitter of a STORED for its chunk. Only the first one is a sample for
+   * the congestion controller: the other replicas answer after their own random delays.
+   */
+  private void stored(PutchunkTransmitter putchunker) {
+    if (putchunker.firstStored()) congestion.stored(putchunker.roundTrip());
+    putchunker.stored();
+  }
+
+  /**
+   * Enhanced counterpart of receiveSTORED, for all the chunks of a STOREDSET at once.
+   */
+  public void receiveSTOREDSET(Message message) {
+    String fileId = message.getFileId();
+    int[] chunks = message.getChunkSet();
+    Long senderId = Long.parseLong(message.getSenderId());
+
+    FileInfoManager.getInstance().addBackupPeer(fileId, chunks, senderId);
+
+    for (int chunkNo : chunks) {
+      PutchunkTransmitter putchunker = putchunkers.get(new ChunkKey(fileId, chunkNo));
+      if (putchunker != null) stored(putchunker);
+    }
   }
 
   public void initBackup(String pathname, int replicationDegree) {
@@ -86,8 +194,15 @@ public class BackupHandler {
       String fileId = Utils.hash(file, Peer.getInstance().getId());
       long length = file.length();
       int numberOfChunks = Utils.numberOfChunks(length);
-      FileInfoManager.getInstance().addOwnFileInfo(pathname, fileId,
-          numberOfChunks, replicationDegree);
+      if (Configuration.enhancedPeer && Configuration.erasureCoding) {
+        ErasureLayout layout = new ErasureLayout(Configuration.dataShards,
+            Configuration.parityShards, numberOfChunks);
+        FileInfoManager.getInstance().addOwnFileInfo(pathname, fileId,
+            numberOfChunks, replicationDegree, layout, length);
+      } else {
+        FileInfoManager.getInstance().addOwnFileInfo(pathname, fileId,
+            numberOfChunks, replicationDegree);
+      }
     } catch (Exception e) {
       Peer.log("Failed to hash file " + pathname, e, Level.SEVERE);
       return;
@@ -103,44 +218,10 @@ public class BackupHandler {
   }
 
   private void transmitFile(OwnFileInfo info, int replicationDegree, File fileToBackup) {
-
-    int numberBytesRead;
-    int chunkNumber = 0;
-    int numberOfChunks = info.getNumberOfChunks();
-
     System.out.println("Transmitting file...");
 
-    // try-with-resources auto-closes fis.
-    try (FileInputStream fis = new FileInputStream(fileToBackup)) {
-      do {
-        byte[] chunk = new byte[Protocol.chunkSize]; // annoying final warning
-
-        ChunkKey key = new ChunkKey(info.getFileId(), chunkNumber);
-        int currentReplicationDegree = info.getChunkReplicationDegree(chunkNumber);
-
-        numberBytesRead = fis.read(chunk, 0, Protocol.chunkSize);
-
-        System.out.println("Read: " + numberBytesRead);
-
-        // Launch the PutchunkTransmitter only if the perceived replication degree is lower than
-        // the desired replication degree, and don't create a second one for the same
-        // chunk if one is already running.
-        if (currentReplicationDegree < replicationDegree) {
-          int len = numberBytesRead < 0 ? 0 : numberBytesRead;
-          byte[] trimmed = new byte[len];
-          System.arraycopy(chunk, 0, trimmed, 0, len);
-          putchunkers.computeIfAbsent(key,
-              k -> new PutchunkTransmitter(key, replicationDegree, trimmed));
-        }
-
-        chunkNumber++;
-      }
-      while (numberBytesRead == Protocol.chunkSize && chunkNumber < numberOfChunks);
-
-      if (chunkNumber != numberOfChunks) {
-        Peer.log("Number of chunks read/computed differ for " + fileToBackup,
-            Level.SEVERE);
-      }
+    try {
+      new BackupPipeline(info, replicationDegree, fileToBackup).start();
     } catch (IOException e) {
       Peer.log("Could not read from the file '" + fileToBackup, e, Level.SEVERE);
     }
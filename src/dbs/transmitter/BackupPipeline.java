@@ -0,0 +1,168 @@
+package dbs.transmitter;
+
+import dbs.ChunkKey;
+import dbs.ErasureCode;
+import dbs.ErasureLayout;
+import dbs.Peer;
+import dbs.Protocol;
+import dbs.files.OwnFileInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+
+/**
+ * Handles the transmission of one file being backed up by this peer. Instead of reading
+ * the whole file and launching every PutchunkTransmitter at once, the pipeline keeps at
+ * most a window of them in flight, set by the CongestionController and never above
+ * Configuration.backupWindow, and reads the next chunk from the file (with a positional
+ * read) only when one of them finishes. The memory used by a backup is therefore
+ * bounded by the window, whatever the size of the file.
+ * For a file backed up with erasure coding the parity chunks follow the data chunks;
+ * the parity chunks of a stripe are computed together, rereading its data chunks, and
+ * kept only until the next stripe's.
+ */
+public class BackupPipeline {
+
+  private final OwnFileInfo info;
+  private final int replicationDegree;
+  private final File file;
+  private final FileChannel channel;
+  private final long length;
+  private final int numberOfChunks;
+  private final ErasureLayout layout;
+  private final ErasureCode code;
+  private int parityStripe = -1;
+  private byte[][] parity;
+  private int next = 0;
+  private int inFlight = 0;
+  private boolean closed = false;
+
+  /**
+   * Open the file to be backed up. The pipeline only starts with start().
+   *
+   * @throws IOException If the file cannot be opened for reading.
+   */
+  BackupPipeline(OwnFileInfo info, int replicationDegree, File file) throws IOException {
+    this.info = info;
+    this.replicationDegree = replicationDegree;
+    this.file = file;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    this.length = channel.size();
+    this.numberOfChunks = info.getNumberOfShards();
+    this.layout = info.getLayout();
+    this.code = layout == null ? null
+                               : new ErasureCode(layout.getDataShards(),
+                                   layout.getParityShards());
+  }
+
+  /**
+   * Fill the window with the first chunks of the file.
+   */
+  void start() {
+    fill();
+  }
+
+  /**
+   * Read one chunk from the file. Every chunk is full except the last one, which may be
+   * empty.
+   */
+  private byte[] read(int chunkNo) throws IOException {
+    if (layout != null && layout.isParity(chunkNo)) return readParity(chunkNo);
+
+    long position = (long) chunkNo * Protocol.chunkSize;
+    int size = (int) Math.max(0, Math.min(Protocol.chunkSize, length - position));
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) break;
+    }
+
+    if (buffer.hasRemaining()) {
+      byte[] trimmed = new byte[buffer.position()];
+      System.arraycopy(buffer.array(), 0, trimmed, 0, trimmed.length);
+      return trimmed;
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Compute the parity chunk from the data chunks of its stripe, unless the parity of
+   * the stripe was computed already.
+   */
+  private byte[] readParity(int chunkNo) throws IOException {
+    int stripe = layout.stripeOf(chunkNo);
+    if (stripe != parityStripe) {
+      byte[][] data = new byte[layout.getDataShards()][];
+      for (int shard = 0; shard < data.length; ++shard) {
+        int dataChunkNo = layout.chunkOf(stripe, shard);
+        data[shard] = dataChunkNo < 0 ? new byte[0] : read(dataChunkNo);
+      }
+      parity = code.encode(data);
+      parityStripe = stripe;
+    }
+    return parity[layout.shardOf(chunkNo) - layout.getDataShards()];
+  }
+
+  /**
+   * Launch PutchunkTransmitters for the next chunks until the window is full or the file
+   * is exhausted. Chunks already replicated enough are skipped, as are chunks with a
+   * PutchunkTransmitter already running (e.g. one launched by a RemovedWaiter), which do
+   * not take a slot.
+   */
+  private synchronized void fill() {
+    int window = BackupHandler.getInstance().congestion.window();
+
+    while (!closed && inFlight < window && next < numberOfChunks) {
+      int chunkNumber = next++;
+      ChunkKey key = new ChunkKey(info.getFileId(), chunkNumber);
+
+      if (info.getChunkReplicationDegree(chunkNumber) >= replicationDegree) continue;
+
+      byte[] chunk;
+      try {
+        chunk = read(chunkNumber);
+      } catch (IOException e) {
+        Peer.log("Could not read from the file '" + file, e, Level.SEVERE);
+        next = numberOfChunks;
+        break;
+      }
+
+      ++inFlight;
+      boolean[] launched = {false};
+      BackupHandler.getInstance().putchunkers.computeIfAbsent(key, k -> {
+        launched[0] = true;
+        return new PutchunkTransmitter(key, replicationDegree, chunk, layout,
+            this::completed);
+      });
+      if (!launched[0]) --inFlight;
+    }
+
+    if (next == numberOfChunks && inFlight == 0) close();
+  }
+
+  /**
+   * Called by a PutchunkTransmitter of this pipeline when it finishes, successfully or
+   * not, freeing its slot in the window.
+   */
+  private synchronized void completed() {
+    --inFlight;
+    fill();
+  }
+
+  private void close() {
+    if (closed) return;
+    closed = true;
+    parity = null;
+
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Peer.log("Could not close the file '" + file, e, Level.WARNING);
+    }
+    Peer.log("Finished transmitting file " + info.getPathname(), Level.INFO);
+  }
+}
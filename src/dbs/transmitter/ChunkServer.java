@@ -0,0 +1,117 @@
+package dbs.transmitter;
+
+import dbs.Configuration;
+import dbs.Peer;
+import dbs.Protocol;
+import dbs.message.Message;
+import dbs.message.MessageException;
+import dbs.message.MessageType;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Receives the chunks of this peer's restores over TCP, in the enhanced restore mode.
+ * The ChunkServer listens on an ephemeral port, which the GETCHUNK messages carry in
+ * their ENDPOINT header line. A peer holding a requested chunk connects to it, sends a
+ * CHUNK message (header and body, as on MDR) and closes the connection, so the end of
+ * the stream marks the end of the body. Every chunk received is handed over to the
+ * RestoreHandler as if it came from MDR.
+ */
+final class ChunkServer implements Runnable {
+
+  private final ServerSocketChannel server;
+  private final int port;
+
+  /**
+   * Bind the server to an ephemeral port. It only accepts connections once run.
+   *
+   * @throws IOException If the server socket could not be opened.
+   */
+  ChunkServer() throws IOException {
+    this.server = ServerSocketChannel.open();
+    this.server.bind(new InetSocketAddress(0));
+    this.port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+  }
+
+  /**
+   * @return The port where the server accepts chunks.
+   */
+  int getPort() {
+    return port;
+  }
+
+  /**
+   * Read one CHUNK message from an accepted connection, up to the end of the stream.
+   * The connection is closed by a timer if the sender stalls.
+   */
+  private void receive(SocketChannel channel) {
+    Future<?> timeout = RestoreHandler.getInstance().getchunkPool.schedule(() -> {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // closing anyway
+      }
+    }, Configuration.tcpChunkTimeout, TimeUnit.MILLISECONDS);
+
+    try (SocketChannel connection = channel) {
+      InetSocketAddress source = (InetSocketAddress) connection.getRemoteAddress();
+      ByteBuffer buffer = ByteBuffer.allocate(Protocol.maxMessageSize());
+      while (connection.read(buffer) >= 0) {
+        if (!buffer.hasRemaining()) {
+          Peer.log("Dropped oversized chunk from " + source, Level.WARNING);
+          return;
+        }
+      }
+      buffer.flip();
+
+      Message message = new Message(buffer, source);
+      if (message.getType() != MessageType.CHUNK) {
+        Peer.log("Dropped " + message.getType() + " message received over TCP",
+            Level.WARNING);
+        return;
+      }
+      Peer.log("Received " + message.shortFrom() + " over TCP", Level.INFO);
+      RestoreHandler.getInstance().receiveCHUNK(message);
+    } catch (IOException e) {
+      Peer.log("Failed to receive a chunk over TCP", e, Level.WARNING);
+    } catch (MessageException e) {
+      Peer.log("Dropped message received over TCP", e, Level.INFO);
+    } finally {
+      timeout.cancel(false);
+    }
+  }
+
+  /**
+   * Accept connections until the server is closed.
+   */
+  @Override
+  public void run() {
+    while (server.isOpen()) {
+      try {
+        SocketChannel channel = server.accept();
+        RestoreHandler.getInstance().getchunkPool.submit(() -> receive(channel));
+      } catch (IOException e) {
+        if (server.isOpen()) Peer.log("Failed to accept a chunk connection", e,
+            Level.WARNING);
+      }
+    }
+  }
+
+  /**
+   * Stop accepting connections.
+   */
+  void close() {
+    try {
+      server.close();
+    } catch (IOException e) {
+      Peer.log("Failed to close the chunk server", e, Level.WARNING);
+    }
+  }
+}
@@ -4,9 +4,14 @@ import dbs.*;
 import dbs.files.FilesManager;
 import dbs.message.Message;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 
 /**
  * Handles the response to a GETCHUNK message, as it must consider the possibility of
@@ -14,12 +19,15 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * registers himself in the chunkers map, to be alerted by the chunk receiver if
  * another CHUNK message of the same type is detected on the multicast network,
  * and promptly cancelled.
+ * If the GETCHUNK carried an endpoint, the chunk is sent straight to it over TCP, read
+ * zero-copy from the chunk store, and only a header-only CHUNK is multicast on MDR.
  * We provide Future-like functionality with isDone(), but this should not be used.
  * TODO: A Chunker instance is public only for testing purposes.
  */
 public class ChunkTransmitter implements Runnable {
 
   private final ChunkKey key;
+  private final InetSocketAddress endpoint;
   private Future task;
   private final AtomicBoolean done = new AtomicBoolean(false);
 
@@ -29,7 +37,19 @@ public class ChunkTransmitter implements Runnable {
    * @param key The requested chunk identifier (and also the key in the chunkers map)
    */
   ChunkTransmitter(ChunkKey key) {
+    this(key, null);
+  }
+
+  /**
+   * Construct a Chunker for a GETCHUNK message with this key.
+   *
+   * @param key      The requested chunk identifier (and also the key in the chunkers map)
+   * @param endpoint Where the initiator wants the chunk sent over TCP, or null to
+   *                 multicast it on MDR
+   */
+  ChunkTransmitter(ChunkKey key, InetSocketAddress endpoint) {
     this.key = key;
+    this.endpoint = endpoint;
 
     int wait = Utils.getRandom(Protocol.minDelay, Protocol.maxDelay);
     task = RestoreHandler.getInstance().chunkPool.schedule(this, wait,
@@ -72,9 +92,58 @@ public class ChunkTransmitter implements Runnable {
     return done.get();
   }
 
+  /**
+   * Send the chunk to the endpoint over TCP: a CHUNK message header followed by the
+   * chunk, up to the end of the stream. As soon as the connection is established, a
+   * header-only CHUNK is multicast on MDR, so that the other peers holding the chunk
+   * do not send it too. The connection is closed by a timer if the initiator stalls.
+   *
+   * @return false if the chunk does not exist or could not be sent.
+   */
+  private boolean transfer(String fileId, int chunkNo) {
+    Message header = Message.CHUNK(fileId, Configuration.version, chunkNo, new byte[0]);
+    header.setSenderId(Long.toString(Peer.getInstance().getId()));
+
+    SocketChannel channel;
+    try {
+      channel = SocketChannel.open();
+    } catch (IOException e) {
+      Peer.log("Failed to open a TCP connection for " + key, e, Level.WARNING);
+      return false;
+    }
+
+    Future<?> timeout = RestoreHandler.getInstance().chunkPool.schedule(() -> {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // closing anyway
+      }
+    }, Configuration.tcpChunkTimeout, TimeUnit.MILLISECONDS);
+
+    try {
+      channel.socket().connect(endpoint, Configuration.tcpChunkTimeout);
+      Peer.getInstance().send(Message.CHUNK(fileId, Configuration.version, chunkNo));
+
+      ByteBuffer bytes = ByteBuffer.wrap(header.makeBytes());
+      while (bytes.hasRemaining()) channel.write(bytes);
+      return FilesManager.getInstance().transferChunk(fileId, chunkNo, channel) >= 0;
+    } catch (IOException e) {
+      Peer.log("Failed to send " + key + " over TCP to " + endpoint, e, Level.WARNING);
+      return false;
+    } finally {
+      timeout.cancel(false);
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // closing anyway
+      }
+    }
+  }
+
   /**
    * Scheduled function, run when the Chunker is not aborted by the chunk receiver
-   * and it decides to send the message.
+   * and it decides to send the message. If the chunk cannot be sent over TCP it is
+   * multicast on MDR instead, even if its sending was already announced.
    */
   @Override
   public void run() {
@@ -83,6 +152,11 @@ public class ChunkTransmitter implements Runnable {
     String fileId = key.getFileId();
     int chunkNo = key.getChunkNo();
 
+    if (endpoint != null && transfer(fileId, chunkNo)) {
+      end();
+      return;
+    }
+
     // Get the chunk. Ensure we still have it and no unexpected IO error occurred.
     byte[] chunk = FilesManager.getInstance().getChunk(fileId, chunkNo);
     if (chunk == null) { end(); return; }
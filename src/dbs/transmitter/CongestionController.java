@@ -0,0 +1,90 @@
+package dbs.transmitter;
+
+import dbs.Configuration;
+import dbs.Protocol;
+
+/**
+ * Congestion control for the PUTCHUNK protocol, shared by every backup of this peer.
+ *
+ * The round-trip time of a PUTCHUNK is measured by the first STORED message that
+ * answers it, and smoothed as in TCP (RFC 6298): the retry timeout of the
+ * PutchunkTransmitters is SRTT + 4 * RTTVAR instead of the fixed
+ * Protocol.delayPutchunker. Samples are only taken for chunks sent once, since a STORED
+ * of a retransmitted chunk could answer any of its transmissions (Karn's algorithm).
+ *
+ * The number of chunks each backup keeps in flight follows an AIMD window: it grows by
+ * one chunk per window's worth of acknowledged chunks and halves whenever a transmitter
+ * times out, at most once per round-trip time.
+ */
+final class CongestionController {
+
+  private static final int CLOCK_GRANULARITY = 10;  // milliseconds
+
+  private double window;
+  private double srtt = -1;
+  private double rttvar = 0;
+  private long lastDecrease = 0;
+
+  CongestionController() {
+    this.window = Configuration.initialCongestionWindow;
+  }
+
+  /**
+   * @return The number of chunks each backup may have in flight.
+   */
+  synchronized int window() {
+    if (!Configuration.congestionControl) return Configuration.backupWindow;
+    return Math.min((int) window, Configuration.backupWindow);
+  }
+
+  /**
+   * @return The time a PutchunkTransmitter waits for STOREDs before its first retry,
+   * in milliseconds. Later retries back off exponentially from it.
+   */
+  synchronized long timeout() {
+    if (!Configuration.congestionControl || srtt < 0) return Protocol.delayPutchunker;
+
+    long timeout = (long) (srtt + Math.max(CLOCK_GRANULARITY, 4 * rttvar));
+    timeout = Math.max(timeout, Configuration.minRetryTimeout);
+    return Math.min(timeout, Configuration.maxRetryTimeout);
+  }
+
+  /**
+   * The first STORED arrived for a chunk in flight, rtt milliseconds after the chunk
+   * was sent. Called once per chunk, whatever its replication degree.
+   *
+   * @param rtt The round-trip time, or -1 if the chunk was retransmitted and the STORED
+   *            cannot be matched to one transmission.
+   */
+  synchronized void stored(long rtt) {
+    if (rtt >= 0) {
+      if (srtt < 0) {
+        srtt = rtt;
+        rttvar = rtt / 2.0;
+      } else {
+        rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+        srtt = 0.875 * srtt + 0.125 * rtt;
+      }
+    }
+
+    window = Math.min(window + 1 / window, Configuration.backupWindow);
+  }
+
+  /**
+   * A PutchunkTransmitter timed out without reaching its replication degree and is
+   * about to retransmit its chunk.
+   */
+  synchronized void timedOut() {
+    long now = System.currentTimeMillis();
+    if (now - lastDecrease < timeout()) return;
+
+    lastDecrease = now;
+    window = Math.max(window / 2, 1);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "window=" + (int) window + " srtt=" + (long) srtt + "ms rto=" + timeout() +
+        "ms";
+  }
+}
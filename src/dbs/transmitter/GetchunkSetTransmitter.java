@@ -0,0 +1,168 @@
+package dbs.transmitter;
+
+import dbs.ChunkKey;
+import dbs.Configuration;
+import dbs.Peer;
+import dbs.Protocol;
+import dbs.message.Message;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enhanced counterpart of the GetchunkTransmitters of one Restorer. Instead of one
+ * GETCHUNK per chunk, the GetchunkSetTransmitter requests the chunks of the file in sets
+ * of up to Configuration.getchunkSetSize with GETCHUNKSET messages, and keeps at most
+ * Configuration.restoreWindow chunks requested and not yet received. Each set has its
+ * own retry timer, which re-requests only the chunks of the set still missing, with an
+ * exponential backoff, up to a maximum number of times before its chunks are reported
+ * lost to the Restorer.
+ * No thread is held while waiting.
+ */
+public class GetchunkSetTransmitter {
+
+  /**
+   * One GETCHUNKSET request and its retry timer.
+   */
+  private final class Request implements Runnable {
+    private final BitSet chunks;
+    private int attempts = 0;
+    private Future task;
+
+    private Request(BitSet chunks) {
+      this.chunks = chunks;
+    }
+
+    private void send() {
+      int port = RestoreHandler.getInstance().chunkPort();
+      String version = Configuration.version;
+      Peer.getInstance().send(port == 0
+                              ? Message.GETCHUNKSET(fileId, version, chunks)
+                              : Message.GETCHUNKSET(fileId, version, chunks, port));
+      long delay = Protocol.delayGetchunker * (1 << attempts++);
+      task = RestoreHandler.getInstance().getchunkPool.schedule(this, delay,
+          TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Scheduled function: re-request the chunks of this set not received yet.
+     */
+    @Override
+    public void run() {
+      BitSet lost;
+      synchronized (GetchunkSetTransmitter.this) {
+        if (done) return;
+        chunks.and(outstanding);
+        if (chunks.isEmpty()) return;
+        if (attempts < Configuration.maxGetchunkAttempts) {
+          send();
+          return;
+        }
+        outstanding.andNot(chunks);
+        lost = (BitSet) chunks.clone();
+      }
+
+      // Outside the lock, the Restorer may cancel this transmitter. Unless the file is
+      // erasure coded, the first chunk lost fails the restore and the others are moot.
+      for (int i = lost.nextSetBit(0); i >= 0; i = lost.nextSetBit(i + 1)) {
+        restorer.failed(new ChunkKey(fileId, i));
+      }
+      synchronized (GetchunkSetTransmitter.this) {
+        fill();
+      }
+    }
+  }
+
+  private final String fileId;
+  private final Restorer restorer;
+  private final BitSet pending;      // chunks not requested yet
+  private final BitSet outstanding;  // chunks requested and not received yet
+  private final List<Request> requests = new ArrayList<>();
+  private boolean done = false;
+
+  GetchunkSetTransmitter(String fileId, int chunksNo, Restorer restorer) {
+    this.fileId = fileId;
+    this.restorer = restorer;
+    this.pending = new BitSet(chunksNo);
+    this.pending.set(0, chunksNo);
+    this.outstanding = new BitSet(chunksNo);
+  }
+
+  /**
+   * Fill the window with the first requests.
+   */
+  synchronized void start() {
+    fill();
+  }
+
+  /**
+   * Request the next chunks not requested yet, in sets, until the window is full. Each
+   * set is only sent once the window has room for all of it, so that the requests stay
+   * full sets rather than one chunk per CHUNK received.
+   */
+  private void fill() {
+    int window = Configuration.restoreWindow;
+    int inFlight = outstanding.cardinality();
+
+    while (!done && !pending.isEmpty()) {
+      int size = Math.min(Configuration.getchunkSetSize, pending.cardinality());
+      if (inFlight > 0 && window - inFlight < size) break;
+
+      BitSet chunks = new BitSet();
+      for (int i = pending.nextSetBit(0); i >= 0 && size > 0;
+           i = pending.nextSetBit(i + 1), --size) {
+        chunks.set(i);
+      }
+
+      pending.andNot(chunks);
+      outstanding.or(chunks);
+      inFlight += chunks.cardinality();
+
+      Request request = new Request(chunks);
+      requests.removeIf(r -> !r.chunks.intersects(outstanding));
+      requests.add(request);
+      request.send();
+    }
+  }
+
+  /**
+   * Called by the chunk receiver for every CHUNK of this file. A chunk still missing is
+   * handed to the Restorer, whether it was requested yet or not, and frees a slot in
+   * the window.
+   *
+   * @param message The CHUNK message received
+   */
+  void receive(Message message) {
+    int chunkNo = message.getChunkNo();
+    byte[] chunk;
+    synchronized (this) {
+      if (done || !(pending.get(chunkNo) || outstanding.get(chunkNo))) return;
+      pending.clear(chunkNo);
+      outstanding.clear(chunkNo);
+      chunk = message.getBody();
+    }
+
+    restorer.assigned(new ChunkKey(fileId, chunkNo), chunk);
+
+    synchronized (this) {
+      fill();
+    }
+  }
+
+  /**
+   * Stop requesting chunks, because the restore finished either way.
+   * Called by the Restorer.
+   */
+  synchronized void cancel() {
+    if (done) return;
+    done = true;
+    RestoreHandler.getInstance().getchunkSets.remove(fileId, this);
+    for (Request request : requests) {
+      if (request.task != null) request.task.cancel(false);
+    }
+    requests.clear();
+  }
+}
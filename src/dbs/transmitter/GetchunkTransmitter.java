@@ -8,13 +8,15 @@ import dbs.Protocol;
 import dbs.message.Message;
 
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Handles one instance of the GETCHUNK protocol initiated by this peer. The
  * GetchunkTransmitter starts by sending a GETCHUNK message to the multicast network, and
  * awaits its response in the form of an alert (assign) from the chunk receiver. If no
- * alert comes, it tries again, up to a maximum number of times before aborting.
+ * alert comes, a timer resends it, up to a maximum number of times before aborting.
+ * No thread is held while waiting.
  * TODO: A Getchunker instance is public only for testing purposes.
  */
 public class GetchunkTransmitter implements Runnable {
@@ -24,7 +26,7 @@ public class GetchunkTransmitter implements Runnable {
   private final Message message;
   private volatile byte[] chunk;
   private int attempts = 0;
-  private Future task;
+  private volatile Future task;
   private final AtomicBoolean done = new AtomicBoolean(false);
 
   /**
@@ -38,15 +40,20 @@ public class GetchunkTransmitter implements Runnable {
 
     this.key = key;
     this.restorer = restorer;
-    this.message = Message.GETCHUNK(fileId, Configuration.version, chunkNo);
+    String version = Configuration.version;
+    int port = RestoreHandler.getInstance().chunkPort();
+    this.message = port == 0 ? Message.GETCHUNK(fileId, version, chunkNo)
+                             : Message.GETCHUNK(fileId, version, chunkNo, port);
   }
 
   /**
    * Schedule the GETCHUNK message to be resent in the near future.
    */
-  private void sleep() throws InterruptedException {
-    if (done.get() || task == null) return;
-    Thread.sleep(Protocol.delayGetchunker * (1 << attempts++));
+  private void schedule() {
+    if (done.get()) return;
+    long delay = Protocol.delayGetchunker * (1 << attempts++);
+    task = RestoreHandler.getInstance().getchunkPool.schedule(this, delay,
+        TimeUnit.MILLISECONDS);
   }
 
   /**
@@ -77,7 +84,7 @@ public class GetchunkTransmitter implements Runnable {
   void cancel() {
     if (done.getAndSet(true)) return;
     RestoreHandler.getInstance().getchunkers.remove(key);
-    if (task != null) task.cancel(true);
+    if (task != null) task.cancel(false);
   }
 
   /**
@@ -90,7 +97,7 @@ public class GetchunkTransmitter implements Runnable {
   void assign(byte[] received) {
     if (done.getAndSet(true)) return;
     RestoreHandler.getInstance().getchunkers.remove(key);
-    if (task != null) task.cancel(true);
+    if (task != null) task.cancel(false);
     chunk = received;
     restorer.assigned(key);
   }
@@ -123,15 +130,13 @@ public class GetchunkTransmitter implements Runnable {
    */
   @Override
   public void run() {
-    while (!done.get() && attempts < Configuration.maxGetchunkAttempts) {
-      Peer.getInstance().send(message);
-      try {
-        sleep();
-      } catch (InterruptedException e) {
-        fail();
-        return;
-      }
+    if (done.get()) return;
+    if (attempts >= Configuration.maxGetchunkAttempts) {
+      fail();
+      return;
     }
-    fail();
+
+    Peer.getInstance().send(message);
+    schedule();
   }
 }
\ No newline at end of file
@@ -2,35 +2,78 @@ package dbs.transmitter;
 
 import dbs.ChunkKey;
 import dbs.Configuration;
+import dbs.ErasureLayout;
 import dbs.Peer;
-import dbs.Protocol;
+import dbs.Utils;
 import dbs.files.FileInfoManager;
 import dbs.message.Message;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
+/**
+ * Handles one instance of the PUTCHUNK protocol initiated by this peer. The
+ * PutchunkTransmitter sends the chunk and schedules its own retry with a timer instead
+ * of sleeping, so it holds no thread while waiting. Every STORED for the chunk notifies
+ * it, and it succeeds as soon as the desired replication degree is reached; otherwise
+ * each timer resends the chunk, with an exponential backoff, up to a maximum number of
+ * times before aborting.
+ * With digest probes, the first run only sends a body-less PUTDIGEST, so that peers
+ * already storing identical content can acknowledge the chunk without it being sent;
+ * its timeout does not count against the congestion window.
+ */
 public class PutchunkTransmitter implements Runnable {
 
   private final ChunkKey key;
   private final String fileId;
   private final int chunkNo;
   private final Message message;
+  private final Message probe;
   private final int desiredReplicationDegree;
   private final byte[] chunk;
-  private int attempts = 0;
-  private Future task;
+  private final Runnable onDone;
+  private volatile int attempts = 0;
+  private volatile long sentAt = 0;
+  private volatile Future task;
   private final AtomicBoolean done = new AtomicBoolean(false);
+  private final AtomicBoolean acknowledged = new AtomicBoolean(false);
 
   PutchunkTransmitter(ChunkKey key, int replication, byte[] chunk) {
+    this(key, replication, chunk, null);
+  }
+
+  /**
+   * @param onDone Called once the transmitter finishes, successfully or not, after it
+   *               is removed from the putchunkers map. May be null.
+   */
+  PutchunkTransmitter(ChunkKey key, int replication, byte[] chunk, Runnable onDone) {
+    this(key, replication, chunk, null, onDone);
+  }
+
+  /**
+   * @param layout The erasure layout of the chunk's file, sent along with the chunk, or
+   *               null if the file is backed up in full copies.
+   * @param onDone Called once the transmitter finishes, successfully or not, after it
+   *               is removed from the putchunkers map. May be null.
+   */
+  PutchunkTransmitter(ChunkKey key, int replication, byte[] chunk, ErasureLayout layout,
+                      Runnable onDone) {
     fileId = key.getFileId();
     chunkNo = key.getChunkNo();
 
     this.key = key;
     this.desiredReplicationDegree = replication;
     this.chunk = chunk;
-    this.message = Message.PUTCHUNK(fileId, chunkNo, replication, chunk);
+    this.onDone = onDone;
+    this.message = layout == null
+                   ? Message.PUTCHUNK(fileId, chunkNo, replication, chunk)
+                   : Message.PUTCHUNK(fileId, Configuration.version, chunkNo, replication,
+                       chunk, layout);
+    this.probe = Configuration.enhancedPeer && Configuration.digestProbe
+                 ? Message.PUTDIGEST(message, Utils.digest(ByteBuffer.wrap(chunk))) : null;
 
     task = BackupHandler.getInstance().putchunkPool.submit(this);
   }
@@ -39,9 +82,15 @@ public class PutchunkTransmitter implements Runnable {
     return FileInfoManager.getInstance().getChunkReplicationDegree(fileId, chunkNo);
   }
 
-  private void sleep() throws InterruptedException {
-    if (done.get() || task == null) return;
-    Thread.sleep(Protocol.delayPutchunker * (1 << attempts++));
+  /**
+   * Schedule the next run of this transmitter, after the current retry timeout.
+   */
+  private void schedule() {
+    if (done.get()) return;
+    long timeout = BackupHandler.getInstance().congestion.timeout();
+    long delay = timeout * (1 << Math.max(sends() - 1, 0));
+    task = BackupHandler.getInstance().putchunkPool.schedule(this, delay,
+        TimeUnit.MILLISECONDS);
   }
 
   // Return true if the perceived replication degree is satisfactory.
@@ -55,13 +104,16 @@ public class PutchunkTransmitter implements Runnable {
         + desiredReplicationDegree + ", perceived replication degree is currently "
         + getPerceived(), Level.WARNING);
     BackupHandler.getInstance().putchunkers.remove(key);
+    if (onDone != null) onDone.run();
   }
 
   private void succeed() {
     if (done.getAndSet(true)) return;
+    if (task != null) task.cancel(false);
     Peer.log("Successfully backed up " + key + " with desired replication degree",
         Level.INFO);
     BackupHandler.getInstance().putchunkers.remove(key);
+    if (onDone != null) onDone.run();
   }
 
   public ChunkKey getKey() {
@@ -76,20 +128,58 @@ public class PutchunkTransmitter implements Runnable {
     return done.get();
   }
 
+  /**
+   * @return The number of PUTCHUNKs sent so far, the PUTDIGEST probe not included.
+   */
+  private int sends() {
+    return probe == null ? attempts : attempts - 1;
+  }
+
+  /**
+   * @return The time since the chunk (or its probe) was sent, in milliseconds, or -1 if
+   * it was sent more than once and a STORED cannot be matched to one transmission.
+   */
+  long roundTrip() {
+    if (attempts == 0 || sends() > 1) return -1;
+    return System.currentTimeMillis() - sentAt;
+  }
+
+  /**
+   * @return true for the first STORED of this chunk only, so the congestion controller
+   * samples the round trip and grows its window once per chunk, not once per replica.
+   */
+  boolean firstStored() {
+    return !acknowledged.getAndSet(true);
+  }
+
+  /**
+   * Called by the BackupHandler when a STORED for this chunk arrives, after the
+   * perceived replication degree is updated.
+   */
+  void stored() {
+    if (!done.get() && verify()) succeed();
+  }
+
+  /**
+   * Scheduled function: resend the chunk, unless the desired replication degree was
+   * reached in the meantime or the retries ran out.
+   */
   @Override
   public void run() {
-    while (!done.get() && attempts < Configuration.maxPutchunkAttempts) {
-      Peer.getInstance().send(message);
-      try {
-        sleep();
-      } catch (InterruptedException ignored) {
-        Peer.log("PutchunkTransmitter interrupted while sleeping", Level.WARNING);
-      }
-      if (verify()) {
-        succeed();
-        return;
-      }
+    if (done.get()) return;
+    if (attempts > 0 && verify()) {
+      succeed();
+      return;
+    }
+    if (sends() >= Configuration.maxPutchunkAttempts) {
+      fail();
+      return;
     }
-    fail();
+
+    if (sends() > 0) BackupHandler.getInstance().congestion.timedOut();
+    sentAt = System.currentTimeMillis();
+    Peer.getInstance().send(attempts == 0 && probe != null ? probe : message);
+    ++attempts;
+    schedule();
   }
 }
@@ -3,12 +3,12 @@ package dbs.transmitter;
 import dbs.ChunkKey;
 import dbs.Configuration;
 import dbs.Peer;
+import dbs.Scheduler;
 import dbs.files.FileInfoManager;
 import dbs.message.Message;
 
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.logging.Level;
 
 // TODO: THIS IS NOT FINISHED. lul
@@ -22,7 +22,10 @@ public class ReclaimHandler {
   }
 
   public static ReclaimHandler createInstance() {
-    return handler == null ? (handler = new ReclaimHandler()) : handler;
+    if (handler != null) return handler;
+    handler = new ReclaimHandler();
+    if (Configuration.enhancedPeer && Configuration.autoReclaim) new SpaceReclaimer();
+    return handler;
   }
 
   /**
@@ -38,15 +41,22 @@ public class ReclaimHandler {
 
   final ConcurrentHashMap<ChunkKey,RemovedTransmitter> removers;
 
-  final ScheduledThreadPoolExecutor waiterPool;
+  /**
+   * A registry of the SurplusEvictors waiting to give up a chunk (background reclaim
+   * only), so the removed receive handler can abort them.
+   */
+  final ConcurrentHashMap<ChunkKey,SurplusEvictor> evictors;
+
+  final Scheduler waiterPool;
 
-  final ScheduledThreadPoolExecutor removerPool;
+  final Scheduler removerPool;
 
   private ReclaimHandler() {
     this.waiters = new ConcurrentHashMap<>();
-    this.waiterPool = new ScheduledThreadPoolExecutor(Configuration.waiterPoolSize);
+    this.waiterPool = new Scheduler(Configuration.waiterPoolSize);
     this.removers = new ConcurrentHashMap<>();
-    this.removerPool = new ScheduledThreadPoolExecutor(Configuration.removerPoolSize);
+    this.evictors = new ConcurrentHashMap<>();
+    this.removerPool = new Scheduler(Configuration.removerPoolSize);
   }
 
   /**
@@ -70,6 +80,8 @@ public class ReclaimHandler {
     if (!FileInfoManager.getInstance().hasChunk(fileId, chunkNo)) return null;
 
     FileInfoManager.getInstance().removeBackupPeer(fileId, chunkNo, senderId);
+    SurplusEvictor evictor = evictors.get(key);
+    if (evictor != null) evictor.detect();
     int perce = FileInfoManager.getInstance().getChunkReplicationDegree(fileId, chunkNo);
     int expec = FileInfoManager.getInstance().getDesiredReplicationDegree(fileId);
 
@@ -98,6 +110,32 @@ public class ReclaimHandler {
     TreeSet<ChunkKey> removeTree = FileInfoManager.getInstance().trimBackup();
     if (removeTree == null) return;
 
+    evict(removeTree);
+  }
+
+  /**
+   * Called periodically by the SpaceReclaimer (background reclaim only). If the used
+   * space is above the high watermark, have chunks replicated beyond their desired
+   * degree given up until it is below the low watermark, or no such chunks are left.
+   * Each chunk is given up by a SurplusEvictor, after a random delay.
+   */
+  void reclaimSurplus() {
+    long capacity = Configuration.storageCapacityKB * 1000;
+    long used = FileInfoManager.getInstance().getUsedSpace();
+    if (used <= capacity * Configuration.reclaimHighWatermark) return;
+
+    long target = (long) (capacity * Configuration.reclaimLowWatermark);
+    Peer.log("Peer is using " + used / 1000 + "KB of backup space, above the high " +
+        "watermark of its capacity " + Configuration.storageCapacityKB + "KB", Level.FINE);
+    for (ChunkKey key : FileInfoManager.getInstance().trimSurplus(used - target)) {
+      evictors.computeIfAbsent(key, SurplusEvictor::new);
+    }
+  }
+
+  /**
+   * Delete the chunks and announce each with a REMOVED message.
+   */
+  private void evict(TreeSet<ChunkKey> removeTree) {
     for (ChunkKey key : removeTree) {
       FileInfoManager.getInstance().deleteChunk(key.getFileId(), key.getChunkNo());
       removers.computeIfAbsent(key, RemovedTransmitter::new);
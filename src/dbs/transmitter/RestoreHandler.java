@@ -3,12 +3,14 @@ package dbs.transmitter;
 import dbs.ChunkKey;
 import dbs.Configuration;
 import dbs.Peer;
+import dbs.Scheduler;
 import dbs.files.FileInfoManager;
 import dbs.files.OwnFileInfo;
 import dbs.message.Message;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.logging.Level;
 
 public class RestoreHandler {
@@ -44,6 +46,13 @@ public class RestoreHandler {
    */
   final ConcurrentHashMap<ChunkKey,GetchunkTransmitter> getchunkers;
 
+  /**
+   * A registry of active GetchunkSetTransmitters, for batch restores. Each is keyed by
+   * the FILEID it is restoring, and removes itself from this map when it finishes.
+   * Entries in this map are never null.
+   */
+  final ConcurrentHashMap<String,GetchunkSetTransmitter> getchunkSets;
+
   /**
    * A registry of active Restorers. Whenever a Restorer is launched for a given FILEID,
    * it registers itself here.
@@ -51,19 +60,49 @@ public class RestoreHandler {
    */
   final ConcurrentHashMap<String,Restorer> restorers;
 
-  final ScheduledThreadPoolExecutor chunkPool;
+  final Scheduler chunkPool;
+
+  final Scheduler getchunkPool;
 
-  final ScheduledThreadPoolExecutor getchunkPool;
+  final Scheduler restorerPool;
 
-  final ScheduledThreadPoolExecutor restorerPool;
+  /**
+   * Receives the chunks sent over TCP, in the enhanced restore mode. Null if that mode
+   * is off or the server could not be opened, and chunks are then multicast on MDR.
+   */
+  private final ChunkServer chunkServer;
 
   private RestoreHandler() {
     this.chunkers = new ConcurrentHashMap<>();
     this.getchunkers = new ConcurrentHashMap<>();
+    this.getchunkSets = new ConcurrentHashMap<>();
     this.restorers = new ConcurrentHashMap<>();
-    this.chunkPool = new ScheduledThreadPoolExecutor(Configuration.chunkPoolSize);
-    this.getchunkPool = new ScheduledThreadPoolExecutor(Configuration.getchunkPoolSize);
-    this.restorerPool = new ScheduledThreadPoolExecutor(Configuration.restorerPoolSize);
+    this.chunkPool = new Scheduler(Configuration.chunkPoolSize);
+    this.getchunkPool = new Scheduler(Configuration.getchunkPoolSize);
+    this.restorerPool = new Scheduler(Configuration.restorerPoolSize);
+    this.chunkServer = Configuration.enhancedPeer && Configuration.tcpRestore
+                       ? openChunkServer() : null;
+  }
+
+  private static ChunkServer openChunkServer() {
+    try {
+      ChunkServer server = new ChunkServer();
+      Thread thread = new Thread(server, "chunk-server");
+      thread.setDaemon(true);
+      thread.start();
+      return server;
+    } catch (IOException e) {
+      Peer.log("Could not open the chunk server, restoring over MDR", e, Level.WARNING);
+      return null;
+    }
+  }
+
+  /**
+   * @return The port where this peer receives chunks over TCP, or 0 if it only
+   * receives them on MDR.
+   */
+  int chunkPort() {
+    return chunkServer == null ? 0 : chunkServer.getPort();
   }
 
   /**
@@ -83,11 +122,30 @@ public class RestoreHandler {
     // Exit immediately if we don't have the chunk.
     if (!FileInfoManager.getInstance().hasChunk(fileId, chunkNo)) return null;
 
-    return chunkers.computeIfAbsent(key, ChunkTransmitter::new);
+    InetSocketAddress endpoint = message.getEndpoint();
+    return chunkers.computeIfAbsent(key, k -> new ChunkTransmitter(k, endpoint));
+  }
+
+  /**
+   * Called whenever a GETCHUNKSET message proper is received.
+   * Here we create a new Chunker for each of the requested chunks we have, unless one is
+   * already running for it.
+   *
+   * @param message The GETCHUNKSET message received. Presumed valid GETCHUNKSET message.
+   */
+  public void receiveGETCHUNKSET(Message message) {
+    String fileId = message.getFileId();
+    InetSocketAddress endpoint = message.getEndpoint();
+
+    for (int chunkNo : message.getChunkSet()) {
+      if (!FileInfoManager.getInstance().hasChunk(fileId, chunkNo)) continue;
+      chunkers.computeIfAbsent(new ChunkKey(fileId, chunkNo),
+          k -> new ChunkTransmitter(k, endpoint));
+    }
   }
 
   /**
-   * Called whenever a CHUNK message proper is received.
+   * Called whenever a CHUNK message proper is received, on MDR or over TCP.
    * If we have a running Getchunker for this chunk we assign it the received chunk; if
    * we have a running Chunker we alert it that the chunk has been detect.
    *
@@ -96,15 +154,50 @@ public class RestoreHandler {
   public void receiveCHUNK(Message message) {
     ChunkKey key = new ChunkKey(message.getFileId(), message.getChunkNo());
 
+    // A header-only CHUNK only tells that the chunk was sent to someone over TCP.
+    if (message.isUnicast()) {
+      ChunkTransmitter chunker = chunkers.get(key);
+      if (chunker != null) chunker.detect();
+      return;
+    }
+
     // Update Getchunker
     GetchunkTransmitter getchunker = getchunkers.get(key);
     if (getchunker != null) getchunker.assign(message.getBody());
 
+    // Update GetchunkSetTransmitter
+    GetchunkSetTransmitter getchunkSet = getchunkSets.get(key.getFileId());
+    if (getchunkSet != null) getchunkSet.receive(message);
+
     // Update Chunker
     ChunkTransmitter chunker = chunkers.get(key);
     if (chunker != null) chunker.detect();
   }
 
+  /**
+   * Called whenever a fragment of a CHUNK message is received, before it is
+   * reassembled. A running Chunker for the chunk is alerted right away that the chunk
+   * is being sent.
+   *
+   * @param message The CHUNK fragment received
+   * @return true if this peer is restoring the chunk, so the fragment must be kept.
+   */
+  public boolean receiveCHUNKFragment(Message message) {
+    ChunkKey key = new ChunkKey(message.getFileId(), message.getChunkNo());
+
+    ChunkTransmitter chunker = chunkers.get(key);
+    if (chunker != null) chunker.detect();
+
+    return isRestoring(key);
+  }
+
+  /**
+   * @return true if this peer is restoring the given chunk.
+   */
+  public boolean isRestoring(ChunkKey key) {
+    return getchunkers.containsKey(key) || getchunkSets.containsKey(key.getFileId());
+  }
+
   /**
    * Called to create a RESTORE initiator that will retrieve all chunks for a given
    * file id. It will create all necessary Getchunkers and wait for all of them.
@@ -119,6 +212,7 @@ public class RestoreHandler {
     String fileId = info.getFileId();
     int numberOfChunks = info.getNumberOfChunks();
     return restorers.computeIfAbsent(fileId,
-        f -> new Restorer(pathname, fileId, numberOfChunks));
+        f -> new Restorer(pathname, fileId, numberOfChunks, info.getLayout(),
+            info.getLength()));
   }
 }
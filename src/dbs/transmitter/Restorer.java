@@ -1,9 +1,19 @@
 package dbs.transmitter;
 
 import dbs.ChunkKey;
+import dbs.Configuration;
+import dbs.ErasureCode;
+import dbs.ErasureLayout;
 import dbs.Peer;
+import dbs.Protocol;
 import dbs.files.FilesManager;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
@@ -12,28 +22,99 @@ import java.util.logging.Level;
  * Handles one instance of the RESTORE peer protocol initiated by the TestApp. The
  * Restorer starts one Getchunker for each file chunk, and waits for their conclusion.
  * The Getchunkers signal their parent Restorer whenever they finish, successfully or not.
+ * In streaming mode each chunk is written to its offset in the restored file as soon as
+ * it is assigned, so only the chunks in flight are ever kept in memory.
+ * In batch restore mode a single GetchunkSetTransmitter requests all the chunks instead.
+ * For a file backed up with erasure coding only the data chunks are requested at first;
+ * when one of them cannot be restored, the parity chunks of its stripe are requested
+ * too, and the missing data chunks are rebuilt as soon as enough shards of the stripe
+ * have arrived.
  */
 public class Restorer implements Runnable {
 
+  /**
+   * The shards of one stripe received so far, for a file backed up with erasure coding.
+   * They are kept until every data chunk of the stripe is written, in case one of them
+   * must be rebuilt from the others. Data shards past the end of the file are empty.
+   */
+  private static final class Stripe {
+    private final byte[][] shards;
+    private final int dataChunks;
+    private int present = 0;
+    private int written = 0;
+    private int failed = 0;
+    private boolean degraded = false;  // its parity chunks were requested
+
+    private Stripe(ErasureLayout layout, int index) {
+      int dataShards = layout.getDataShards();
+      this.shards = new byte[dataShards + layout.getParityShards()][];
+      int count = 0;
+      for (int shard = 0; shard < dataShards; ++shard) {
+        if (layout.chunkOf(index, shard) >= 0) {
+          ++count;
+        } else {
+          shards[shard] = new byte[0];
+          ++present;
+        }
+      }
+      this.dataChunks = count;
+    }
+  }
+
   private final String pathname;
   private final String fileId;
   private final byte[][] chunks;
   private final int chunksNo;
+  private FileChannel channel;
   private final ConcurrentHashMap<ChunkKey,GetchunkTransmitter> instances;
+  private volatile GetchunkSetTransmitter batch;
+  private int remaining;
   private final AtomicBoolean done = new AtomicBoolean(false);
+  private final ErasureLayout layout;
+  private final ErasureCode code;
+  private final long length;
+  private final HashMap<Integer,Stripe> stripes;  // stripes being restored
+  private final BitSet restored;                  // stripes whose data chunks are written
 
   Restorer(String pathname, String fileId, int chunksNo) {
+    this(pathname, fileId, chunksNo, null, -1);
+  }
+
+  /**
+   * @param layout The erasure layout of the file, or null if it is backed up in full
+   *               copies. chunksNo counts the data chunks only.
+   * @param length The file's length, used to trim its last chunk when it is rebuilt.
+   */
+  Restorer(String pathname, String fileId, int chunksNo, ErasureLayout layout,
+           long length) {
+    this.layout = layout;
+    this.code = layout == null ? null
+                               : new ErasureCode(layout.getDataShards(),
+                                   layout.getParityShards());
+    this.length = length;
+    this.stripes = new HashMap<>();
+    this.restored = new BitSet();
     this.pathname = pathname;
     this.fileId = fileId;
-    this.chunks = new byte[chunksNo][];
+    this.chunks = Configuration.streamingRestore ? null : new byte[chunksNo][];
     this.chunksNo = chunksNo;
     this.instances = new ConcurrentHashMap<>();
+    this.remaining = chunksNo;
 
     RestoreHandler.getInstance().restorerPool.submit(this);
   }
 
   @Override
   public void run() {
+    if (Configuration.streamingRestore && !open()) return;
+
+    if (Configuration.enhancedPeer && Configuration.batchRestore) {
+      batch = new GetchunkSetTransmitter(fileId, chunksNo, this);
+      RestoreHandler.getInstance().getchunkSets.put(fileId, batch);
+      batch.start();
+      return;
+    }
+
     // Create getchunkers
     for (int no = 0; no < chunksNo; ++no) {
       ChunkKey key = new ChunkKey(fileId, no);
@@ -48,29 +129,225 @@ public class Restorer implements Runnable {
     }
   }
 
+  /**
+   * Open the partial restored file, preallocated up to the last chunk.
+   *
+   * @return false if the file could not be opened, and the restore was abandoned.
+   */
+  private boolean open() {
+    long size = (long) Math.max(chunksNo - 1, 0) * Protocol.chunkSize;
+    try {
+      channel = FilesManager.getInstance().openRestore(pathname, size);
+      return true;
+    } catch (IOException e) {
+      done.set(true);
+      RestoreHandler.getInstance().restorers.remove(fileId);
+      Peer.log("Failed to restore file " + pathname, Level.WARNING);
+      return false;
+    }
+  }
+
+  /**
+   * Write a chunk at its offset in the partial restored file.
+   *
+   * @return false if the chunk could not be written.
+   */
+  private boolean write(ChunkKey key, byte[] chunk) {
+    ByteBuffer buffer = ByteBuffer.wrap(chunk);
+    long position = (long) key.getChunkNo() * Protocol.chunkSize;
+    try {
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+      return true;
+    } catch (IOException e) {
+      Peer.log("Failed to write " + key + " of restore file " + pathname, e,
+          Level.WARNING);
+      return false;
+    }
+  }
+
+  private void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Peer.log("Failed to close restore file " + pathname, e, Level.WARNING);
+    }
+  }
+
   void failed(ChunkKey key) {
+    if (layout != null) {
+      shardFailed(key);
+    } else {
+      abort(key);
+    }
+  }
+
+  /**
+   * Give up the restore, because a chunk could not be restored.
+   */
+  private void abort(ChunkKey key) {
     if (done.getAndSet(true)) return;
     instances.remove(key);
     for (GetchunkTransmitter getchunker : instances.values()) {
       getchunker.cancel();
     }
+    if (batch != null) batch.cancel();
+    if (channel != null) {
+      close();
+      FilesManager.getInstance().abortRestore(pathname);
+    }
     RestoreHandler.getInstance().restorers.remove(fileId);
     int no = key.getChunkNo();
     Peer.log("Failed to restore file " + pathname + " (#" + no + ")", Level.WARNING);
   }
 
-  synchronized void assigned(ChunkKey key) {
+  void assigned(ChunkKey key) {
+    GetchunkTransmitter getchunker = instances.remove(key);
+    if (getchunker != null) assigned(key, getchunker.getChunk());
+  }
+
+  synchronized void assigned(ChunkKey key, byte[] chunk) {
+    if (done.get()) return;
+    if (layout != null) {
+      shardAssigned(key, chunk);
+      return;
+    }
+    if (!store(key, chunk)) return;
+
+    if (--remaining == 0) succeed();
+  }
+
+  /**
+   * Write a data chunk to the restored file, or keep it for the end of the restore.
+   *
+   * @return false if the chunk could not be written, and the restore was abandoned.
+   */
+  private boolean store(ChunkKey key, byte[] chunk) {
+    if (channel != null) {
+      if (!write(key, chunk)) {
+        abort(key);
+        return false;
+      }
+    } else {
+      chunks[key.getChunkNo()] = chunk;
+    }
+    return true;
+  }
+
+  /**
+   * @return The stripe with the given index, or null if it was restored already.
+   */
+  private Stripe stripe(int index) {
+    if (restored.get(index)) return null;
+    return stripes.computeIfAbsent(index, i -> new Stripe(layout, i));
+  }
+
+  private void shardAssigned(ChunkKey key, byte[] chunk) {
+    int chunkNo = key.getChunkNo();
+    int index = layout.stripeOf(chunkNo);
+    Stripe stripe = stripe(index);
+    int shard = layout.shardOf(chunkNo);
+    if (stripe == null || stripe.shards[shard] != null) return;
+
+    stripe.shards[shard] = chunk;
+    ++stripe.present;
+    if (!layout.isParity(chunkNo)) {
+      if (!store(key, chunk)) return;
+      ++stripe.written;
+      --remaining;
+    }
+    settle(index, stripe);
+  }
+
+  private synchronized void shardFailed(ChunkKey key) {
     if (done.get()) return;
-    GetchunkTransmitter getchunker = instances.get(key);
-    chunks[key.getChunkNo()] = getchunker.getChunk();
     instances.remove(key);
+    int index = layout.stripeOf(key.getChunkNo());
+    Stripe stripe = stripe(index);
+    if (stripe == null) return;
 
-    if (instances.isEmpty()) succeed();
+    if (++stripe.failed > layout.getParityShards()) {
+      abort(key);
+      return;
+    }
+
+    if (!stripe.degraded) {
+      stripe.degraded = true;
+      Peer.log("Restoring stripe " + index + " of file " + pathname + " from its parity",
+          Level.INFO);
+      for (int j = 0; j < layout.getParityShards(); ++j) {
+        ChunkKey parityKey = new ChunkKey(fileId,
+            layout.chunkOf(index, layout.getDataShards() + j));
+        GetchunkTransmitter getchunker = new GetchunkTransmitter(parityKey, this);
+        instances.put(parityKey, getchunker);
+        RestoreHandler.getInstance().getchunkers.put(parityKey, getchunker);
+        getchunker.submit();
+      }
+    }
+    settle(index, stripe);
+  }
+
+  /**
+   * Rebuild the missing data chunks of a degraded stripe once enough of its shards are
+   * present, and let go of the stripe once all its data chunks are written.
+   */
+  private void settle(int index, Stripe stripe) {
+    if (stripe.written < stripe.dataChunks) {
+      if (!stripe.degraded || stripe.present < layout.getDataShards()) return;
+      if (!rebuild(index, stripe)) return;
+    }
+
+    restored.set(index);
+    stripes.remove(index);
+    int shards = layout.getDataShards() + layout.getParityShards();
+    for (int shard = 0; shard < shards; ++shard) {
+      int chunkNo = layout.chunkOf(index, shard);
+      if (chunkNo < 0) continue;
+      GetchunkTransmitter getchunker = instances.remove(new ChunkKey(fileId, chunkNo));
+      if (getchunker != null) getchunker.cancel();
+    }
+
+    if (remaining == 0) succeed();
+  }
+
+  /**
+   * @return false if a rebuilt chunk could not be written, and the restore was
+   * abandoned.
+   */
+  private boolean rebuild(int index, Stripe stripe) {
+    byte[][] data = code.decode(stripe.shards);
+    for (int shard = 0; shard < data.length; ++shard) {
+      int chunkNo = layout.chunkOf(index, shard);
+      if (chunkNo < 0 || stripe.shards[shard] != null) continue;
+
+      ChunkKey key = new ChunkKey(fileId, chunkNo);
+      byte[] chunk = Arrays.copyOf(data[shard], chunkSize(chunkNo));
+      Peer.log("Rebuilt " + key + " of restore file " + pathname, Level.INFO);
+      if (!store(key, chunk)) return false;
+      ++stripe.written;
+      --remaining;
+    }
+    return true;
+  }
+
+  /**
+   * @return The size of a data chunk of the file: every chunk is full but the last one.
+   */
+  private int chunkSize(int chunkNo) {
+    if (chunkNo < chunksNo - 1) return Protocol.chunkSize;
+    return (int) (length - (long) (chunksNo - 1) * Protocol.chunkSize);
   }
 
   private void succeed() {
     done.set(true);
-    FilesManager.getInstance().putRestore(pathname, chunks);
+    if (batch != null) batch.cancel();
+    if (channel != null) {
+      close();
+      FilesManager.getInstance().commitRestore(pathname);
+    } else {
+      FilesManager.getInstance().putRestore(pathname, chunks);
+    }
     RestoreHandler.getInstance().restorers.remove(fileId);
     Peer.log("Successfully restored file " + pathname, Level.INFO);
   }
@@ -0,0 +1,35 @@
+package dbs.transmitter;
+
+import dbs.Configuration;
+import dbs.Peer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Checks the used backup space every Configuration.reclaimInterval milliseconds, and has
+ * the ReclaimHandler give up over-replicated chunks when it is above the high watermark,
+ * so the peer keeps room for new chunks (background reclaim only).
+ */
+public class SpaceReclaimer implements Runnable {
+
+  SpaceReclaimer() {
+    schedule();
+  }
+
+  private void schedule() {
+    ReclaimHandler.getInstance().removerPool.schedule(this, Configuration.reclaimInterval,
+        TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void run() {
+    try {
+      ReclaimHandler.getInstance().reclaimSurplus();
+    } catch (RuntimeException e) {
+      Peer.log("Background reclaim failed", e, Level.WARNING);
+    } finally {
+      schedule();
+    }
+  }
+}
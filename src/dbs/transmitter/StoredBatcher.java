@@ -0,0 +1,63 @@
+package dbs.transmitter;
+
+import dbs.Peer;
+import dbs.Protocol;
+import dbs.Utils;
+import dbs.files.FileInfoManager;
+import dbs.message.Message;
+
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enhanced counterpart of the StoredTransmitter. The chunks of one file stored by this
+ * peer are collected in a batch, and when the batch's random delay expires (the same
+ * delay a StoredTransmitter waits) a single STOREDSET message acknowledges all of them.
+ * Backing up a large file then costs its backup peers a handful of control packets
+ * instead of one per chunk.
+ */
+public class StoredBatcher {
+
+  // Chunks spanned by the bitmap of one STOREDSET, so that its body fits in a datagram
+  private static final int maxSpan = Protocol.fragmentSize * 8;
+
+  private final ConcurrentHashMap<String,BitSet> batches = new ConcurrentHashMap<>();
+
+  /**
+   * Acknowledge a stored chunk in the next STOREDSET of its file, scheduling that
+   * message if there is none pending.
+   */
+  void add(String fileId, int chunkNo) {
+    batches.compute(fileId, (id, batch) -> {
+      if (batch == null) {
+        batch = new BitSet();
+        int wait = Utils.getRandom(Protocol.minDelay, Protocol.maxDelay);
+        BackupHandler.getInstance().storedPool.schedule(() -> flush(id), wait,
+            TimeUnit.MILLISECONDS);
+      }
+      batch.set(chunkNo);
+      return batch;
+    });
+  }
+
+  /**
+   * Send the pending batch of a file, leaving out the chunks deleted in the meantime.
+   */
+  private void flush(String fileId) {
+    BitSet batch = batches.remove(fileId);
+    if (batch == null) return;
+
+    FileInfoManager files = FileInfoManager.getInstance();
+    for (int i = batch.nextSetBit(0); i >= 0; i = batch.nextSetBit(i + 1)) {
+      if (!files.hasChunk(fileId, i)) batch.clear(i);
+    }
+
+    while (!batch.isEmpty()) {
+      int first = batch.nextSetBit(0);
+      BitSet part = batch.get(0, first + maxSpan);
+      batch.clear(0, first + maxSpan);
+      Peer.getInstance().send(Message.STOREDSET(fileId, part));
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package dbs.transmitter;
+
+import dbs.ChunkKey;
+import dbs.Configuration;
+import dbs.Peer;
+import dbs.Utils;
+import dbs.files.FileInfoManager;
+import dbs.message.Message;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Gives up one over-replicated chunk for the SpaceReclaimer, after a random delay of up
+ * to Configuration.reclaimJitter milliseconds (background reclaim only). Every peer
+ * holding the chunk sees the same surplus, so the delay spreads their attempts apart.
+ * A REMOVED for the chunk received meanwhile aborts the Evictor, and the chunk is only
+ * reconsidered by a later check, with the perceived replication degree that REMOVED
+ * left. So at most one copy is given up per REMOVED, unless two peers act within the
+ * time a REMOVED takes to reach the other.
+ */
+public class SurplusEvictor implements Runnable {
+
+  private final ChunkKey key;
+  private final Future<?> scheduled;
+  private final AtomicBoolean done = new AtomicBoolean(false);
+
+  /**
+   * Construct a SurplusEvictor for this chunk.
+   *
+   * @param key The chunk to give up (and also the key in the evictors map)
+   */
+  SurplusEvictor(ChunkKey key) {
+    this.key = key;
+    int delay = Utils.getRandom(0, Configuration.reclaimJitter);
+    this.scheduled = ReclaimHandler.getInstance().removerPool.schedule(this, delay,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Abort the Evictor, removing it from the map to release memory.
+   * Called by the removed receive handler if it receives a REMOVED for this chunk.
+   */
+  void detect() {
+    if (done.getAndSet(true)) return;
+    ReclaimHandler.getInstance().evictors.remove(key);
+    scheduled.cancel(false);
+  }
+
+  /**
+   * @return true if this Evictor has ended, and false otherwise.
+   */
+  public boolean isDone() {
+    return done.get();
+  }
+
+  /**
+   * Scheduled function, run when the Evictor is not aborted by a REMOVED. The perceived
+   * replication degree is checked again, as other peers may have given up the chunk
+   * since it was selected.
+   */
+  @Override
+  public void run() {
+    if (done.getAndSet(true)) return;
+    ReclaimHandler.getInstance().evictors.remove(key);
+
+    String fileId = key.getFileId();
+    int chunkNo = key.getChunkNo();
+    FileInfoManager files = FileInfoManager.getInstance();
+    if (!files.hasChunk(fileId, chunkNo)) return;
+
+    int perce = files.getChunkReplicationDegree(fileId, chunkNo);
+    int expec = files.getDesiredReplicationDegree(fileId);
+    if (perce <= expec) return;
+
+    files.deleteChunk(fileId, chunkNo);
+    Peer.getInstance().send(Message.REMOVED(fileId, chunkNo));
+    Peer.log("Gave up " + key + ", replicated " + perce + " times for a desired "
+        + expec, Level.INFO);
+  }
+}
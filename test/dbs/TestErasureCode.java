@@ -0,0 +1,67 @@
+package dbs;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestErasureCode {
+
+  @Test
+  void rebuildFromAnyShards() {
+    Random random = new Random(42);
+    ErasureCode code = new ErasureCode(4, 2);
+
+    byte[][] data = new byte[4][];
+    for (int i = 0; i < 4; ++i) {
+      data[i] = new byte[i == 3 ? 37 : 100];
+      random.nextBytes(data[i]);
+    }
+    byte[][] parity = code.encode(data);
+    assertEquals(2, parity.length);
+    assertEquals(100, parity[0].length);
+
+    for (int x = 0; x < 6; ++x) {
+      for (int y = x; y < 6; ++y) {
+        byte[][] shards = new byte[6][];
+        System.arraycopy(data, 0, shards, 0, 4);
+        System.arraycopy(parity, 0, shards, 4, 2);
+        shards[x] = null;
+        shards[y] = null;
+
+        byte[][] rebuilt = code.decode(shards);
+        for (int i = 0; i < 4; ++i) {
+          assertArrayEquals(data[i], Arrays.copyOf(rebuilt[i], data[i].length));
+        }
+      }
+    }
+  }
+
+  @Test
+  void tooManyLost() {
+    ErasureCode code = new ErasureCode(2, 1);
+    byte[][] parity = code.encode(new byte[][]{{1, 2}, {3, 4}});
+    assertThrows(IllegalArgumentException.class,
+        () -> code.decode(new byte[][]{null, null, parity[0]}));
+  }
+
+  @Test
+  void layout() {
+    ErasureLayout layout = new ErasureLayout(4, 2, 10);
+    assertEquals(3, layout.stripes());
+    assertEquals(16, layout.totalChunks());
+
+    assertFalse(layout.isParity(9));
+    assertTrue(layout.isParity(10));
+    assertEquals(2, layout.stripeOf(9));
+    assertEquals(1, layout.shardOf(9));
+    assertEquals(2, layout.stripeOf(15));
+    assertEquals(5, layout.shardOf(15));
+
+    assertEquals(9, layout.chunkOf(2, 1));
+    assertEquals(-1, layout.chunkOf(2, 2));
+    assertEquals(14, layout.chunkOf(2, 4));
+  }
+}
@@ -0,0 +1,115 @@
+package dbs.files;
+
+import dbs.Configuration;
+import dbs.Utils;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestDedupChunkStore {
+  String hash1 = "0100000000000000000000000000000000000000000000000000000000000000";
+  String hash2 = "0200000000000000000000000000000000000000000000000000000000000000";
+
+  byte[] b1 = "1111\n".getBytes();
+  byte[] b2 = "22222222\n".getBytes();
+
+  Path dir() throws IOException {
+    Configuration.segmentPrefix = "segment-";
+    Configuration.segmentSize = 1024;
+    Configuration.segmentCompactRatio = 0.5;
+    Configuration.referencesFile = "references";
+    Configuration.contentsDir = "contents";
+
+    Path dir = Paths.get("/tmp/dbs-dedup");
+    FilesManager.deleteRecursive(dir.toFile());
+    return Files.createDirectories(dir);
+  }
+
+  DedupChunkStore open(Path dir) throws IOException {
+    Path contents = Files.createDirectories(dir.resolve(Configuration.contentsDir));
+    return new DedupChunkStore(new SegmentChunkStore(dir),
+        new SegmentChunkStore(contents), dir);
+  }
+
+  @Test
+  void sharedContent() throws IOException {
+    Path dir = dir();
+    DedupChunkStore store = open(dir);
+
+    assertTrue(store.putChunk(hash1, 0, ByteBuffer.wrap(b1)));
+    assertTrue(store.putChunk(hash2, 3, ByteBuffer.wrap(b1)));
+    assertTrue(store.putChunk(hash1, 1, ByteBuffer.wrap(b2)));
+
+    assertArrayEquals(b1, store.getChunk(hash1, 0));
+    assertArrayEquals(b1, store.getChunk(hash2, 3));
+    assertEquals(b1.length + b2.length, store.totalSpace());
+    assertEquals(b1.length, store.fileSpace(hash2));
+    assertEquals(Set.of(hash1, hash2), store.files());
+    assertEquals(new TreeSet<>(Set.of(0, 1)), store.chunks(hash1));
+
+    String digest = Utils.digest(ByteBuffer.wrap(b2));
+    assertEquals(b2.length, store.digestSpace(digest));
+    assertTrue(store.putReference(hash2, 4, digest));
+    assertArrayEquals(b2, store.getChunk(hash2, 4));
+    assertFalse(store.putReference(hash2, 5, hash1));
+
+    assertTrue(store.deleteChunk(hash1, 0));
+    assertArrayEquals(b1, store.getChunk(hash2, 3));
+    assertTrue(store.deleteChunk(hash2, 3));
+    assertEquals(b2.length, store.totalSpace());
+    store.close();
+  }
+
+  @Test
+  void reopen() throws IOException {
+    Path dir = dir();
+    DedupChunkStore store = open(dir);
+    store.putChunk(hash1, 0, ByteBuffer.wrap(b1));
+    store.putChunk(hash2, 0, ByteBuffer.wrap(b1));
+    store.putChunk(hash2, 1, ByteBuffer.wrap(b2));
+    store.deleteChunk(hash2, 1);
+    store.close();
+
+    store = open(dir);
+    assertArrayEquals(b1, store.getChunk(hash1, 0));
+    assertArrayEquals(b1, store.getChunk(hash2, 0));
+    assertFalse(store.hasChunk(hash2, 1));
+    assertEquals(Set.of(hash1, hash2), store.files());
+    assertEquals(b1.length, store.totalSpace());
+    store.close();
+  }
+
+  @Test
+  void crashBeforeReference() throws IOException {
+    Path dir = dir();
+    DedupChunkStore store = open(dir);
+    store.putChunk(hash1, 0, ByteBuffer.wrap(b1));
+    store.close();
+
+    // A content written, but the peer crashed before journaling its reference.
+    String digest = Utils.digest(ByteBuffer.wrap(b2));
+    SegmentChunkStore contents = new SegmentChunkStore(dir.resolve("contents"));
+    assertTrue(contents.putChunk(digest, 0, ByteBuffer.wrap(b2)));
+    contents.close();
+
+    store = open(dir);
+    assertEquals(Set.of(hash1), store.files());
+    assertFalse(store.hasFile(digest));
+    assertEquals(-1, store.digestSpace(digest));
+    assertEquals(b1.length, store.totalSpace());
+    assertArrayEquals(b1, store.getChunk(hash1, 0));
+    store.close();
+
+    contents = new SegmentChunkStore(dir.resolve("contents"));
+    assertFalse(contents.hasChunk(digest, 0));
+    contents.close();
+  }
+}
@@ -9,6 +9,8 @@ import org.junit.jupiter.api.Test;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Arrays;
@@ -161,6 +163,30 @@ public class TestFiles {
     assertArrayEquals(p3, FilesManager.getInstance().getRestore("filename-3"));
   }
 
+  @Test
+  void restoreStreaming() throws IOException {
+    config();
+
+    Peer.createInstance(PEERID, ACCESSPOINT);
+    FilesManager.createInstance();
+    Files.createDirectories(Paths.get("/tmp/dbs/peer-1000/restored"));
+
+    FileChannel channel = FilesManager.getInstance().openRestore("filename-4", 6);
+    channel.write(ByteBuffer.wrap("bar".getBytes()), 3);
+    channel.write(ByteBuffer.wrap("baz".getBytes()), 6);
+    channel.write(ByteBuffer.wrap("foo".getBytes()), 0);
+    channel.close();
+
+    assertFalse(FilesManager.getInstance().hasRestore("filename-4"));
+    assertTrue(FilesManager.getInstance().commitRestore("filename-4"));
+    assertArrayEquals(p1, FilesManager.getInstance().getRestore("filename-4"));
+
+    FilesManager.getInstance().openRestore("filename-5", 6).close();
+    FilesManager.getInstance().abortRestore("filename-5");
+    assertFalse(FilesManager.getInstance().commitRestore("filename-5"));
+    assertFalse(FilesManager.getInstance().hasRestore("filename-5"));
+  }
+
   @Test
   void readBulk() throws IOException {
     config();
@@ -0,0 +1,245 @@
+package dbs.files;
+
+import dbs.Configuration;
+import dbs.ErasureLayout;
+import dbs.MulticastChannel;
+import dbs.Peer;
+import dbs.Protocol;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestMetadataFormat {
+  String hash1 = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+  String hash2 = "fedcba9876543210fedcba9876543210fedcba9876543210fedcba9876543210";
+
+  // The metadata files of a peer from before the binary format, Java serialized by the
+  // original OwnFileInfo, FileInfo and ChunkInfo classes, gzipped.
+  //   own:   files/a.txt (0100..00, 2 chunks, desired 2): chunk 0 on 7 and 8, 1 on 7
+  //   other: 0200..00 (desired 1): chunk 3 on 9 and 1000
+  String legacyOwnFiles =
+      "H4sIAAAAAAACA+1VTWjUQBR+3fWndqVqq+DBP7SIQk36o0UptdVKcTVa3UWpFoXZ7Oxu2uwknUz6" +
+      "oyKKUoUeLFgPooJIBZWKN/Hn4FVEj4InK1rwIIonBU++STbdlta6Ir01kCHvZb7vvZn3zZuRrzDf" +
+      "4bCxg3QTxRWGqegW013OKRNK8/jnXuJkDhA7ef192a1LmxvCEI5CxKHpLP47QJzOKCzOWfGMkRLt" +
+      "UJwzHQHV7ZpkVyW7mmdXp7BXxH1Mfa8NAEvwXeXyAP735MbhsZ7GXTU3dogQgMe0FBeo/BvH2jpt" +
+      "sO3q5oYQFLVAiWmRZAvRhcV7OWyalsm09E5HiVH85oQJDc3UkXuVlS87viCHBvOcPqYLUKffCg+t" +
+      "TkJXxBGAO4G5by00YsVBi6WIwSWUXq75HD/9IiI3gcOWgikk9smaO0MP9hw/42O3zYDdlXAQqovD" +
+      "LnVpUmIz3GLGKcpx9c1uY+wTrj6KEhNEUOSqK4CrtYeRhEknktWOPnr6MGvdDyoKjU0AThecRWY5" +
+      "LprzzewT0FRVXfVfDwpxRTLhKCnDpI6CRWrBjyhLWWx454d3XSXxEIQ0KGVuNkF5a6o547JOPP3l" +
+      "vuJNwtJqlAmaprxeg2KbiAwjWSqgbMKEuOAGS9ejUMryoYI4j78fvvvslXEzBGENViapY3CajFHb" +
+      "NHQiDIvtoWlOqVy2okGJxAY5bCqwAWFiCyQumpQsqnf4lnmKldkpufTLPt4e/nn+0nZf2d3EdKWy" +
+      "l+bnHfS2oH/k2urI0IeBQLMhryIw3tmkFfa605w+/99XKy0sV3leN171pXAG1/8YPjn23PWEE0kQ" +
+      "vdO1D1HKURlLJigjTgUKIKJLmF/CnJaKUzkFCliuIb/q8auBLv0mXV3gBbOf9mGgowbtCS5T737w" +
+      "dTT5NLQmOqgu6v/YgqeSN1umiRA8DFMChLPEluupxmznhDg7Pg6l+S6gWdjJBsYGX1/ZMIoV2Be0" +
+      "CgnZCv6zcHKD2W1ZJiXszTp+7u3NX98QdTxA2UVerAs5YLE0+m3bY+uXQ5scasbPgj/9mDeemCv4" +
+      "7PikcXFKJS57lch5KuWwTUDE7xlEEb0Cf/0Gfmy86HcLAAA=";
+  String legacyOtherFiles =
+      "H4sIAAAAAAACA+2VXUgUURTHj26FupG29tBDX5SEgs3oWlKIqK1IW6PmLn2gENydvbs77uzMdOeO" +
+      "HxVRgRn4kJA9RAYRBhVGb9HHQ68R9dhrRgkFUfRU0FPnzuy6imYb0psDc3fOmf3/79dvzp3+Cmtt" +
+      "Brv7yQCRHK7pkmoaqsMYNbgUmns8ROxUJ7HiN94Fbo3WNPvAFwa/TZMZfNdJ7HQY1mejaEpL8D4o" +
+      "yYY2h/o+RbjLwl3Ou8uL3KuinqZpyAKAcry3OCwn//vg5uSRwZa24M0DvBjAdarACUr/5rG9URk/" +
+      "ea2muRiKOqBMN0m8g6jcZEMMqpd00k01bUsRis+MGFzBMHHsXm3ty/4v6KHAGnvYUDnISy+Fq5YX" +
+      "qKuiKMCVwLHvLbTHqi7TSBCNCSm9EvwUPfvCLxaBwZ6CLYT2ybY7Ew/ae8952n3LaNtiNkpV3uNQ" +
+      "h8aFNsVMQztDGc4+5LREPuLsw4gYJ5yiV2MBXt2DBonpdL5Zw8yjpw8z5v3cjkJLK4B9Gs6js2hL" +
+      "V3PL5zi01gXrVnQhiIF4zJYSmk5tqQPbsJEwH3/vufvslTZZDD4FNseprTEaj1BL11TCNdNop0lG" +
+      "KYdKD3ydGEk5bHCapKxJgTJhFko5RhrrRHWBZQJ164QuHOcQmGcb5Uwzkt4ns9HlTKSlbG+BD7en" +
+      "fl4c3e/xOEB0R/BYkf9fl5OJUXZ5+vpW/8T7sRxpRe46wlw9EpHPrSmrVK08F8TAh9tVmQfLpUGQ" +
+      "Nb7zx9Sp2eeOS5Y/RtS0Yx2llCEp5fNIiVKOQPhVIfO2UBhLCpQksohy2KSgv+z6yzlwPU7qCzwW" +
+      "jtBh7Oi4RgdzR6Bb1T2OFmLYHeunKp5hfyqci81Dpq6jBL+WRR34MsQS85FxtKsg/p8cgw35KqCY" +
+      "WELGZsdfX901gztwOFcqhKTBXX7wfV5YYA6apk6J8WYHu/B28tc3VPXmVJZXPi55QigVwYhluW4j" +
+      "ojkhmvpsphZ/fwOZ2oxjkAkAAA==";
+
+  @Test
+  void ownFiles() throws IOException {
+    ConcurrentHashMap<String,OwnFileInfo> map = new ConcurrentHashMap<>();
+    OwnFileInfo plain = new OwnFileInfo("files/a b.txt", hash1, 3, 2);
+    plain.addBackupPeer(0, 7L);
+    plain.addBackupPeer(2, 8L);
+    plain.addBackupPeer(2, -1L);
+    map.put(hash1, plain);
+    map.put("odd", new OwnFileInfo("files/c", "odd", 10, 1, new ErasureLayout(4, 2, 10),
+        9999L));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MetadataFormat.writeOwn(map, out);
+    ConcurrentHashMap<String,OwnFileInfo> read =
+        MetadataFormat.readOwn(new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals(2, read.size());
+    OwnFileInfo a = read.get(hash1);
+    assertEquals("files/a b.txt", a.getPathname());
+    assertEquals(3, a.getNumberOfChunks());
+    assertEquals(2, a.getDesiredReplicationDegree());
+    assertNull(a.getLayout());
+    assertEquals(-1, a.getLength());
+    assertTrue(a.hasBackupPeer(0, 7L));
+    assertFalse(a.hasChunk(1));
+    assertTrue(a.hasBackupPeer(2, -1L));
+    assertEquals(2, a.getChunkReplicationDegree(2));
+
+    OwnFileInfo c = read.get("odd");
+    assertEquals("4+2", c.getLayout().toString());
+    assertEquals(10, c.getLayout().getDataChunks());
+    assertEquals(9999L, c.getLength());
+    assertFalse(c.hasBackupPeers());
+  }
+
+  @Test
+  void otherFiles() throws IOException {
+    ConcurrentHashMap<String,FileInfo> map = new ConcurrentHashMap<>();
+    FileInfo info = new FileInfo(hash2, 3);
+    for (int chunk = 0; chunk < 1000; chunk += 3) {
+      for (long peer = 1; peer <= 3; ++peer) info.addBackupPeer(chunk, peer);
+    }
+    map.put(hash2, info);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MetadataFormat.writeOther(map, out);
+    ConcurrentHashMap<String,FileInfo> read =
+        MetadataFormat.readOther(new ByteArrayInputStream(out.toByteArray()));
+
+    FileInfo file = read.get(hash2);
+    assertEquals(3, file.getDesiredReplicationDegree());
+    assertEquals(334, file.chunkCount());
+    assertEquals(3, file.getChunkReplicationDegree(999));
+    assertEquals(0, file.getChunkReplicationDegree(998));
+
+    ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+    try (ObjectOutputStream objects = new ObjectOutputStream(serialized)) {
+      objects.writeObject(map);
+    }
+    assertTrue(out.size() * 4 < serialized.size());
+  }
+
+  @Test
+  void javaSerialization() throws IOException, ClassNotFoundException {
+    FileInfo info = new FileInfo(hash1, 2);
+    info.addBackupPeer(40, 1L);
+    info.addBackupPeer(40, 2L);
+    info.addBackupPeer(3, 2L);
+    info.removeBackupPeer(40, 1L);
+    info.addBackupPeer(7, 5L);
+    info.removeChunkInfo(7);
+    assertArrayEquals(new int[]{3, 40}, info.chunkNumbers());
+
+    // Metadata files written by older peers are still read this way.
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ObjectOutputStream objects = new ObjectOutputStream(out)) {
+      objects.writeObject(info);
+    }
+    FileInfo read;
+    try (ObjectInputStream objects = new ObjectInputStream(
+        new ByteArrayInputStream(out.toByteArray()))) {
+      read = (FileInfo) objects.readObject();
+    }
+
+    assertEquals(2, read.chunkCount());
+    assertEquals(2, read.getDesiredReplicationDegree());
+    assertEquals(1, read.getChunkReplicationDegree(40));
+    assertTrue(read.hasBackupPeer(40, 2L));
+    assertFalse(read.hasBackupPeer(40, 1L));
+    assertSame(read, read.getChunkInfo(3).getFileInfo());
+  }
+
+  @Test
+  void farChunkNumbers() throws IOException {
+    FileInfo info = new FileInfo(hash1, 1);
+    info.addBackupPeer(999999999, 1L);
+    info.addBackupPeer(5000, 2L);
+    for (int chunk = 0; chunk < 3000; ++chunk) info.addBackupPeer(chunk, 3L);
+    info.removeChunkInfo(2999);
+    assertEquals(3001, info.chunkCount());
+    assertTrue(info.hasBackupPeer(5000, 2L));
+    assertTrue(info.hasBackupPeer(999999999, 1L));
+    assertFalse(info.hasChunk(999999998));
+
+    int[] numbers = info.chunkNumbers();
+    assertEquals(5000, numbers[2999]);
+    assertEquals(999999999, numbers[3000]);
+
+    ConcurrentHashMap<String,FileInfo> map = new ConcurrentHashMap<>();
+    map.put(hash1, info);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MetadataFormat.writeOther(map, out);
+    FileInfo read =
+        MetadataFormat.readOther(new ByteArrayInputStream(out.toByteArray())).get(hash1);
+    assertArrayEquals(numbers, read.chunkNumbers());
+  }
+
+  @Test
+  void wrongKind() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MetadataFormat.writeOther(new ConcurrentHashMap<>(), out);
+    assertThrows(IOException.class,
+        () -> MetadataFormat.readOwn(new ByteArrayInputStream(out.toByteArray())));
+  }
+
+  void writeLegacy(Path path, String gzipped) throws IOException {
+    byte[] bytes = Base64.getDecoder().decode(gzipped);
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+      Files.write(path, in.readAllBytes());
+    }
+  }
+
+  @Test
+  void legacyMigration() throws IOException {
+    Protocol.mc = new MulticastChannel(InetAddress.getByName("237.0.0.1"), 29500);
+    Protocol.mdb = new MulticastChannel(InetAddress.getByName("237.0.0.2"), 29501);
+    Protocol.mdr = new MulticastChannel(InetAddress.getByName("237.0.0.3"), 29502);
+    Peer.createInstance(1000, "peer-1000");
+    FilesManager files = FilesManager.createInstance();
+    Path filesinfo = Paths.get(Configuration.allPeersRootDir,
+        Configuration.peerRootDirPrefix + Peer.getInstance().getId(),
+        Configuration.filesinfoDir);
+    Files.createDirectories(filesinfo);
+    Path ownPath = filesinfo.resolve(Configuration.ownFilesinfo);
+    Path otherPath = filesinfo.resolve(Configuration.otherFilesinfo);
+    writeLegacy(ownPath, legacyOwnFiles);
+    writeLegacy(otherPath, legacyOtherFiles);
+    assertFalse(MetadataFormat.isBinary(ownPath));
+
+    String id1 = "0100000000000000000000000000000000000000000000000000000000000000";
+    String id2 = "0200000000000000000000000000000000000000000000000000000000000000";
+    for (int pass = 0; pass < 2; ++pass) {
+      ConcurrentHashMap<String,OwnFileInfo> own = files.readOwnFilesInfo();
+      ConcurrentHashMap<String,FileInfo> other = files.readOtherFilesInfo();
+
+      OwnFileInfo a = own.get(id1);
+      assertEquals("files/a.txt", a.getPathname());
+      assertEquals(2, a.getNumberOfChunks());
+      assertEquals(2, a.getDesiredReplicationDegree());
+      assertNull(a.getLayout());
+      assertEquals(-1, a.getLength());
+      assertEquals(2, a.getNumberOfShards());
+      assertEquals(2, a.getChunkReplicationDegree(0));
+      assertTrue(a.hasBackupPeer(1, 7L));
+      assertFalse(a.hasBackupPeer(1, 8L));
+
+      FileInfo b = other.get(id2);
+      assertEquals(1, b.getDesiredReplicationDegree());
+      assertEquals(1, b.chunkCount());
+      assertTrue(b.hasBackupPeer(3, 1000L));
+      assertEquals(2, b.getChunkReplicationDegree(3));
+
+      // The next snapshot rewrites both in the binary format.
+      assertTrue(files.writeOwnFilesInfo(own));
+      assertTrue(files.writeOtherFilesInfo(other));
+      assertTrue(MetadataFormat.isBinary(ownPath));
+      assertTrue(MetadataFormat.isBinary(otherPath));
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package dbs.files;
+
+import dbs.Configuration;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestMetadataJournal {
+
+  Path dir() throws IOException {
+    Configuration.journalPrefix = "journal-";
+    Configuration.journalCheckpointRecords = 10000;
+
+    Path dir = Paths.get("/tmp/dbs-journal");
+    FilesManager.deleteRecursive(dir.toFile());
+    return Files.createDirectories(dir);
+  }
+
+  @Test
+  void replayAfterCrash() throws IOException {
+    Path dir = dir();
+    MetadataJournal journal = new MetadataJournal(dir, () -> true);
+    assertTrue(journal.read().isEmpty());
+    journal.start();
+    journal.append("ADD 1 0 7");
+    journal.append("ADD 1 1 7\nREMOVE 1 0 7");
+    // No close(): the peer crashed.
+
+    AtomicInteger snapshots = new AtomicInteger(0);
+    journal = new MetadataJournal(dir, () -> snapshots.incrementAndGet() > 0);
+    assertEquals(List.of("ADD 1 0 7", "ADD 1 1 7", "REMOVE 1 0 7"), journal.read());
+    journal.start();
+    assertEquals(1, snapshots.get());
+    journal.close();
+
+    journal = new MetadataJournal(dir, () -> true);
+    assertTrue(journal.read().isEmpty());
+    journal.close();
+  }
+
+  @Test
+  void failedSnapshotKeepsJournal() throws IOException {
+    Path dir = dir();
+    MetadataJournal journal = new MetadataJournal(dir, () -> true);
+    journal.read();
+    journal.start();
+    journal.append("DELETE 1");
+    journal.close();
+
+    journal = new MetadataJournal(dir, () -> false);
+    assertEquals(List.of("DELETE 1"), journal.read());
+    journal.start();
+    journal.append("DESIRED 2 3");
+    journal.close();
+
+    journal = new MetadataJournal(dir, () -> true);
+    assertEquals(List.of("DELETE 1", "DESIRED 2 3"), journal.read());
+    journal.close();
+  }
+
+  @Test
+  void checkpoint() throws IOException, InterruptedException {
+    Path dir = dir();
+    Configuration.journalCheckpointRecords = 3;
+    AtomicInteger snapshots = new AtomicInteger(0);
+    MetadataJournal journal = new MetadataJournal(dir,
+        () -> snapshots.incrementAndGet() > 0);
+    journal.read();
+    journal.start();
+    for (int i = 0; i < 4; ++i) journal.append("ADD 1 " + i + " 7");
+
+    // Wait for the checkpoint to delete the first journal.
+    for (int wait = 0; wait < 100 && Files.exists(dir.resolve("journal-0")); ++wait) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, snapshots.get());
+    journal.close();
+
+    journal = new MetadataJournal(dir, () -> true);
+    List<String> records = journal.read();
+    assertTrue(records.isEmpty() || records.equals(List.of("ADD 1 3 7")));
+    journal.close();
+  }
+}
@@ -0,0 +1,64 @@
+package dbs.files;
+
+import dbs.ChunkKey;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestReclaimIndex {
+  String hash1 = "0100000000000000000000000000000000000000000000000000000000000000";
+  String hash2 = "0200000000000000000000000000000000000000000000000000000000000000";
+
+  List<ChunkKey> victims(ReclaimIndex index) {
+    List<ChunkKey> list = new ArrayList<>();
+    for (ChunkKey key : index.victims()) list.add(key);
+    return list;
+  }
+
+  @Test
+  void order() {
+    ReclaimIndex index = new ReclaimIndex();
+    ChunkKey a = new ChunkKey(hash1, 0), b = new ChunkKey(hash1, 1);
+    ChunkKey c = new ChunkKey(hash2, 0), d = new ChunkKey(hash2, 1);
+
+    index.update(a, 2, 2);
+    index.update(b, 4, 2);
+    index.update(c, 3, 1);
+    index.update(d, 1, 2);
+    assertEquals(List.of(b, c, a, d), victims(index));
+
+    // c loses a peer, a gains two.
+    index.update(c, 2, 1);
+    index.update(a, 4, 2);
+    assertEquals(List.of(a, b, c, d), victims(index));
+
+    index.update(a, 4, 2);
+    index.remove(b);
+    index.remove(b);
+    assertEquals(List.of(a, c, d), victims(index));
+    assertEquals(3, index.size());
+  }
+
+  @Test
+  void surplus() {
+    ReclaimIndex index = new ReclaimIndex();
+    ChunkKey a = new ChunkKey(hash1, 0), b = new ChunkKey(hash1, 1);
+    ChunkKey c = new ChunkKey(hash2, 0);
+
+    index.update(a, 3, 2);
+    index.update(b, 2, 2);
+    index.update(c, 5, 2);
+
+    List<ChunkKey> surplus = new ArrayList<>();
+    for (ChunkKey key : index.surplusVictims()) surplus.add(key);
+    assertEquals(List.of(c, a), surplus);
+
+    index.update(c, 2, 3);
+    surplus.clear();
+    for (ChunkKey key : index.surplusVictims()) surplus.add(key);
+    assertEquals(List.of(a), surplus);
+  }
+}
@@ -0,0 +1,111 @@
+package dbs.files;
+
+import dbs.Configuration;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestSegmentChunkStore {
+  String hash1 = "0100000000000000000000000000000000000000000000000000000000000000";
+  String hash2 = "0200000000000000000000000000000000000000000000000000000000000000";
+
+  byte[] b1 = "1111\n".getBytes();
+  byte[] b2 = "22222222\n".getBytes();
+  byte[] b3 = "333333\n".getBytes();
+
+  Path dir() throws IOException {
+    Configuration.segmentPrefix = "segment-";
+    Configuration.segmentSize = 1024;
+    Configuration.segmentCompactRatio = 0.5;
+
+    Path dir = Paths.get("/tmp/dbs-segments");
+    FilesManager.deleteRecursive(dir.toFile());
+    return Files.createDirectories(dir);
+  }
+
+  @Test
+  void putGetDelete() throws IOException {
+    SegmentChunkStore store = new SegmentChunkStore(dir());
+
+    assertFalse(store.hasChunk(hash1, 0));
+    assertNull(store.getChunk(hash1, 0));
+    assertEquals(-1, store.chunkSpace(hash1, 0));
+
+    assertTrue(store.putChunk(hash1, 0, ByteBuffer.wrap(b1)));
+    assertTrue(store.putChunk(hash1, 1, ByteBuffer.wrap(b2)));
+    assertTrue(store.putChunk(hash2, 7, ByteBuffer.wrap(b3)));
+
+    assertArrayEquals(b1, store.getChunk(hash1, 0));
+    assertArrayEquals(b2, store.getChunk(hash1, 1));
+    assertArrayEquals(b3, store.getChunk(hash2, 7));
+    assertEquals(b1.length + b2.length, store.fileSpace(hash1));
+    assertEquals(b1.length + b2.length + b3.length, store.totalSpace());
+    assertEquals(Set.of(hash1, hash2), store.files());
+    assertEquals(new TreeSet<>(Set.of(0, 1)), store.chunks(hash1));
+
+    assertTrue(store.putChunk(hash1, 0, ByteBuffer.wrap(b3)));
+    assertArrayEquals(b3, store.getChunk(hash1, 0));
+    assertEquals(b3.length + b2.length + b3.length, store.totalSpace());
+
+    assertTrue(store.deleteFile(hash1));
+    assertFalse(store.hasFile(hash1));
+    assertFalse(store.hasChunk(hash1, 1));
+    assertEquals(b3.length, store.totalSpace());
+    store.close();
+  }
+
+  @Test
+  void reopen() throws IOException {
+    Path dir = dir();
+    SegmentChunkStore store = new SegmentChunkStore(dir);
+    store.putChunk(hash1, 0, ByteBuffer.wrap(b1));
+    store.putChunk(hash1, 1, ByteBuffer.wrap(b2));
+    store.putChunk(hash2, 0, ByteBuffer.wrap(b3));
+    store.deleteChunk(hash1, 1);
+    store.close();
+
+    store = new SegmentChunkStore(dir);
+    assertArrayEquals(b1, store.getChunk(hash1, 0));
+    assertFalse(store.hasChunk(hash1, 1));
+    assertArrayEquals(b3, store.getChunk(hash2, 0));
+    assertEquals(b1.length + b3.length, store.totalSpace());
+    store.close();
+  }
+
+  @Test
+  void compaction() throws IOException {
+    Path dir = dir();
+    SegmentChunkStore store = new SegmentChunkStore(dir);
+    byte[] chunk = new byte[200];
+
+    // Records of 277 bytes, so each 1024 byte segment holds three of them.
+    for (int i = 0; i < 6; ++i) {
+      chunk[0] = (byte) i;
+      assertTrue(store.putChunk(hash1, i, ByteBuffer.wrap(chunk)));
+    }
+    assertTrue(Files.exists(dir.resolve("segment-0")));
+    assertTrue(Files.exists(dir.resolve("segment-1")));
+
+    store.deleteChunk(hash1, 0);
+    assertTrue(Files.exists(dir.resolve("segment-0")));
+    store.deleteChunk(hash1, 1);
+    assertFalse(Files.exists(dir.resolve("segment-0")));
+
+    assertEquals(new TreeSet<>(Set.of(2, 3, 4, 5)), store.chunks(hash1));
+    for (int i = 2; i < 6; ++i) assertEquals(i, store.getChunk(hash1, i)[0]);
+    store.close();
+
+    store = new SegmentChunkStore(dir);
+    assertEquals(new TreeSet<>(Set.of(2, 3, 4, 5)), store.chunks(hash1));
+    assertEquals(4 * chunk.length, store.totalSpace());
+    store.close();
+  }
+}
@@ -1,11 +1,16 @@
 package dbs.message;
 
+import dbs.ChunkKey;
+import dbs.ErasureLayout;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -428,4 +433,221 @@ class TestMessage {
     assertThrows(ERR,
         () -> Message.DELETE(hash1, protocolVersion).setSenderId(badsender2));
   }
-}
\ No newline at end of file
+
+  @Test
+  void parseBytes() throws MessageException {
+    String hash = "ABCDABCDabcdabcd01230123012301239876987698769876aecbaecbaecb1357";
+    byte[] body = "Some random\r\n\r\nbody\n".getBytes();
+
+    Message m = Message.PUTCHUNK(hash, "1.0", 123456, 4, body);
+    m.setSenderId("42");
+    byte[] bytes = m.makeBytes();
+
+    // Direct buffers are parsed in place, and the body is a view of the buffer.
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes).flip();
+    Message received = new Message(direct, new InetSocketAddress("localhost", 7070));
+    assertEquals(m, received);
+    assertEquals(body.length, received.getBodyLength());
+    assertEquals(ByteBuffer.wrap(body), received.getBodyBuffer());
+    assertArrayEquals(body, received.getBody());
+    assertEquals(7070, received.getPort());
+
+    // Repeated and trailing spaces, and extra header lines.
+    String text = "STORED  1.1   99 " + hash + " 7  \r\nExtra one\r\nExtra two\r\n\r\n";
+    Message stored = new Message(text.getBytes());
+    assertEquals(MessageType.STORED, stored.getType());
+    assertEquals("1.1", stored.getVersion());
+    assertEquals("99", stored.getSenderId());
+    assertEquals(7, stored.getChunkNo());
+    assertArrayEquals(new String[]{"Extra one", "Extra two"}, stored.getExtraHeaders());
+  }
+
+  @Test
+  void parseBadBytes() {
+    Class<MessageException> EXC = MessageException.class;
+    String hash = "ABCDABCDabcdabcd01230123012301239876987698769876aecbaecbaecb1357";
+
+    String[] bad = {
+        "STORED 1.0 99 " + hash + "\r\n\r\n",
+        "STORED 1.0 99 " + hash + " 7 8\r\n\r\n",
+        "STORED 1.0 9a " + hash + " 7\r\n\r\n",
+        "STORED 10 99 " + hash + " 7\r\n\r\n",
+        "STORED 1.0 99 " + hash.substring(1) + " 7\r\n\r\n",
+        "STORX 1.0 99 " + hash + " 7\r\n\r\n",
+        "STORED 1.0 99 " + hash + " 7\r\n",
+        "STORED 1.0 99 " + hash + " 7\r\n\r\nbody",
+        "STORED 1.0 99 " + hash + " 1234567890\r\n\r\n",
+        "PUTCHUNK 1.0 99 " + hash + " 7 10\r\n\r\n",
+        "\r\n\r\n"
+    };
+
+    for (String text : bad) {
+      assertThrows(EXC, () -> new Message(text.getBytes()));
+    }
+  }
+
+  @Test
+  void peekPutchunk() {
+    String hash = "ABCDABCDabcdabcd01230123012301239876987698769876aecbaecbaecb1357";
+    ByteBuffer putchunk = ByteBuffer.wrap(
+        ("PUTCHUNK  1.0 99 " + hash + " 7 2\r\n\r\nbody").getBytes());
+    ByteBuffer stored = ByteBuffer.wrap(
+        ("STORED 1.0 99 " + hash + " 7\r\n\r\n").getBytes());
+    ByteBuffer shortHash = ByteBuffer.wrap(
+        ("PUTCHUNK 1.0 99 " + hash.substring(1) + " 7 2\r\n\r\n").getBytes());
+
+    assertEquals(new ChunkKey(hash, 7), Message.peekPutchunk(putchunk));
+    assertEquals(0, putchunk.position());
+    assertNull(Message.peekPutchunk(stored));
+    assertNull(Message.peekPutchunk(shortHash));
+  }
+
+  @Test
+  void peekChunkKey() {
+    String hash = "ABCDABCDabcdabcd01230123012301239876987698769876aecbaecbaecb1357";
+    ByteBuffer stored = ByteBuffer.wrap(
+        ("STORED 1.0 99 " + hash + " 7\r\n\r\n").getBytes());
+    ByteBuffer delete = ByteBuffer.wrap(("DELETE 1.0 99 " + hash + "\r\n\r\n").getBytes());
+
+    assertEquals(new ChunkKey(hash, 7), Message.peekChunkKey(stored));
+    assertEquals(0, stored.position());
+    assertNull(Message.peekChunkKey(delete));
+  }
+
+  @Test
+  void storedSet() throws MessageException {
+    String hash = "ABCDABCDabcdabcd01230123012301239876987698769876aecbaecbaecb1357";
+    BitSet chunks = new BitSet();
+    chunks.set(1000);
+    chunks.set(1003, 1012);
+    chunks.set(5000);
+
+    Message m = Message.STOREDSET(hash, "1.1", chunks);
+    m.setSenderId("42");
+    assertEquals(1000, m.getChunkNo());
+
+    Message received = new Message(m.makeBytes());
+    assertEquals(MessageType.STOREDSET, received.getType());
+    assertEquals(1000, received.getChunkNo());
+    assertArrayEquals(chunks.stream().toArray(), received.getChunkSet());
+    assertEquals(new ChunkKey(hash, 1000),
+        Message.peekChunkKey(ByteBuffer.wrap(m.makeBytes())));
+
+    Message getchunkSet = new Message(Message.GETCHUNKSET(hash, "1.1", chunks)
+        .getPacket("42", 0, null).getData());
+    assertEquals(MessageType.GETCHUNKSET, getchunkSet.getType());
+    assertArrayEquals(chunks.stream().toArray(), getchunkSet.getChunkSet());
+
+    assertThrows(IllegalStateException.class, () -> Message.STORED(hash, 3)
+        .getChunkSet());
+  }
+
+  @Test
+  void unicastRestore() throws MessageException {
+    String hash = "ABCDABCDabcdabcd01230123012301239876987698769876aecbaecbaecb1357";
+    InetAddress loopback = InetAddress.getLoopbackAddress();
+
+    Message getchunk = new Message(Message.GETCHUNK(hash, "1.1", 7, 4242)
+        .getPacket("42", 8080, loopback));
+    assertEquals(new InetSocketAddress(loopback, 4242), getchunk.getEndpoint());
+    assertNull(new Message(Message.GETCHUNK(hash, "1.1", 7)
+        .getPacket("42", 8080, loopback)).getEndpoint());
+
+    Message announce = new Message(Message.CHUNK(hash, "1.1", 7).getPacket("42", 8080,
+        loopback));
+    assertTrue(announce.isUnicast());
+    assertEquals(0, announce.getBodyLength());
+    assertFalse(new Message(Message.CHUNK(hash, "1.1", 7, new byte[0])
+        .getPacket("42", 8080, loopback)).isUnicast());
+  }
+
+  @Test
+  void fragments() throws MessageException {
+    String hash = "ABCDABCDabcdabcd01230123012301239876987698769876aecbaecbaecb1357";
+    byte[] body = new byte[150000];
+    for (int i = 0; i < body.length; ++i) body[i] = (byte) i;
+
+    Message m = Message.PUTCHUNK(hash, "1.1", 3, 2, body);
+    m.setSenderId("42");
+    Message[] fragments = m.fragments(64000);
+    assertEquals(3, fragments.length);
+
+    ByteBuffer whole = ByteBuffer.allocate(body.length);
+    for (int i = 0; i < fragments.length; ++i) {
+      byte[] bytes = fragments[i].makeBytes();
+      assertNull(Message.peekPutchunk(ByteBuffer.wrap(bytes)));
+
+      Message received = new Message(bytes);
+      assertTrue(received.isFragment());
+      assertArrayEquals(new int[]{i, 3}, received.getFragment());
+      whole.put(received.getBodyBuffer());
+    }
+    assertEquals(m, fragments[2].reassembled(whole.array()));
+    assertFalse(m.isFragment());
+    assertNull(m.getFragment());
+
+    BitSet missing = new BitSet();
+    missing.set(1);
+    Message request = new Message(Message.GETFRAGMENTS(hash, "1.1", 3,
+        MessageType.PUTCHUNK, missing).getPacket("42", 0, null).getData());
+    assertEquals(MessageType.PUTCHUNK, request.getFragmentsOf());
+    assertEquals(missing, request.getMissingFragments());
+  }
+
+  @Test
+  void parity() throws MessageException {
+    String hash1 = "abcdefabcdefabcdefabcdefabcdefabcdef012345670123456701234567ABCD";
+    String hash2 = "ABCDABCDabcdabcd01230123012301239876987698769876aecbaecbaecb1357";
+    byte[] body = {1, 2, 3, 4, 5};
+
+    Message[] members = {
+        Message.PUTCHUNK(hash1, "1.1", 3, 2, body),
+        Message.PUTCHUNK(hash2, "1.1", 0, 9, new byte[0])
+    };
+    Message m = new Message(Message.PARITY("1.1", members, body)
+        .getPacket("42", 0, null).getData());
+    assertEquals(MessageType.PARITY, m.getType());
+    assertEquals(MessageType.PUTCHUNK, m.getParityOf());
+    assertArrayEquals(body, m.getBody());
+
+    Message.ParityMember[] parsed = m.getParityMembers();
+    assertEquals(2, parsed.length);
+    assertEquals(hash1, parsed[0].getFileId());
+    assertEquals(3, parsed[0].getChunkNo());
+    assertEquals(2, parsed[0].getReplication());
+    assertEquals(5, parsed[0].getLength());
+    assertEquals(hash2, parsed[1].getFileId());
+    assertEquals(0, parsed[1].getChunkNo());
+    assertEquals(9, parsed[1].getReplication());
+    assertEquals(0, parsed[1].getLength());
+  }
+
+  @Test
+  void stripe() throws MessageException {
+    String hash = "ABCDABCDabcdabcd01230123012301239876987698769876aecbaecbaecb1357";
+    Message m = new Message(Message.PUTCHUNK(hash, "1.1", 12, 1, new byte[]{7},
+        new ErasureLayout(4, 2, 10)).getPacket("42", 0, null).getData());
+    assertEquals(MessageType.PUTCHUNK, m.getType());
+    assertEquals(4, m.getLayout().getDataShards());
+    assertEquals(2, m.getLayout().getParityShards());
+    assertEquals(10, m.getLayout().getDataChunks());
+    assertNull(Message.PUTCHUNK(hash, "1.1", 3, 1, new byte[0]).getLayout());
+  }
+
+  @Test
+  void putdigest() throws MessageException {
+    String hash = "ABCDABCDabcdabcd01230123012301239876987698769876aecbaecbaecb1357";
+    String digest = "4c371f1050fa029547c2bae15f3281e1949e2d20ad46af4f9868dc6763a1983d";
+    Message putchunk = Message.PUTCHUNK(hash, "1.1", 5, 3, new byte[]{1, 2, 3});
+
+    Message m = new Message(Message.PUTDIGEST(putchunk, digest)
+        .getPacket("42", 0, null).getData());
+    assertEquals(MessageType.PUTDIGEST, m.getType());
+    assertEquals(hash, m.getFileId());
+    assertEquals(5, m.getChunkNo());
+    assertEquals(3, m.getReplication());
+    assertEquals(digest, m.getDigest());
+    assertNull(putchunk.getDigest());
+  }
+}